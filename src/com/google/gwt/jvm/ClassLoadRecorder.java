@@ -0,0 +1,94 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the classes a {@link GwtClassLoader} munges and defines, in the order
+ * they got defined. A superclass is always defined before its subclasses, so
+ * replaying the list in order is safe, see {@link ClassPreloader}.
+ *
+ * Enable it for a training run with
+ *
+ * -Dcom.google.gwt.jvm.recordClassLoads=/path/to/profile
+ */
+public class ClassLoadRecorder {
+  public static final String RECORD_JVM_PROPERTY = "com.google.gwt.jvm.recordClassLoads";
+
+  private final List<String> classNames = new ArrayList<String>();
+
+  public synchronized void record(String name) {
+    classNames.add(name);
+  }
+
+  public synchronized List<String> getClassNames() {
+    return new ArrayList<String>(classNames);
+  }
+
+  /**
+   * Writes the recorded class names, one per line.
+   */
+  public void save(File file) {
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+        for (String name : getClassNames()) {
+          out.write(name);
+          out.write('\n');
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the class names written by {@link #save(File)}.
+   */
+  public static List<String> read(File file) {
+    List<String> classNames = new ArrayList<String>();
+    try {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.length() > 0) {
+            classNames.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return classNames;
+  }
+}
@@ -0,0 +1,427 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts where class loading and munging time goes: how classes got loaded,
+ * which visitors munged them, munge times per class and resource load times.
+ *
+ * -Dcom.google.gwt.jvm.metrics=true registers it as an MBean, one per class
+ * loader until the loader gets garbage collected, and prints the text report
+ * when the jvm exits, -Dcom.google.gwt.jvm.metrics.json=/path
+ * writes the JSON reports of all loaders there, as an array in the order the
+ * loaders got created.
+ */
+public class ClassLoadingMetrics implements ClassLoadingMetricsMBean {
+  public static final String METRICS_JVM_PROPERTY = "com.google.gwt.jvm.metrics";
+  public static final String JSON_JVM_PROPERTY = "com.google.gwt.jvm.metrics.json";
+  /** Prefix of the MBean names, followed by a loader=<n> key. */
+  public static final String OBJECT_NAME = "com.google.gwt.jvm:type=ClassLoadingMetrics";
+
+  private static final AtomicInteger registrations = new AtomicInteger();
+  // Names of the registered MBeans, by a weak reference to their loader.
+  private static final Map<Reference<?>, ObjectName> registered =
+      new ConcurrentHashMap<Reference<?>, ObjectName>();
+  private static final ReferenceQueue<ClassLoader> discardedLoaders =
+      new ReferenceQueue<ClassLoader>();
+  private static Thread unregistration; // guarded by registered.
+  // Metrics to write as JSON when the jvm exits, by file. Holds the metrics,
+  // not their loaders, so the numbers of discarded loaders are written too.
+  private static final Map<File, List<ClassLoadingMetrics>> jsonReports =
+      new LinkedHashMap<File, List<ClassLoadingMetrics>>();
+
+  /** How the class loader got a class. */
+  public enum LoadPath {
+    UNMOCKED, CLASS_PATH, COMPILATION_STATE
+  }
+
+  /** What the munger did to a class. */
+  public enum MungeKind {
+    UNMODIFIED, NATIVE_DISPATCH, DOLLAR, INTERFACE
+  }
+
+  private static final int SLOWEST_CLASSES = 20;
+  // Bucket i counts munges which took less than 2^i microseconds.
+  private static final int BUCKETS = 21;
+
+  private final AtomicIntegerArray loadPaths = new AtomicIntegerArray(LoadPath.values().length);
+  private final AtomicIntegerArray mungeKinds = new AtomicIntegerArray(MungeKind.values().length);
+  private final AtomicIntegerArray histogram = new AtomicIntegerArray(BUCKETS);
+  private final AtomicLong mungeNanos = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicInteger resourceLoads = new AtomicInteger();
+  private final AtomicLong resourceLoadNanos = new AtomicLong();
+  private final ConcurrentMap<String, Long> mungeNanosPerClass =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Registers these metrics as an MBean of the given loader, unregistered once
+   * the loader is garbage collected.
+   * @return The name of the MBean.
+   */
+  public ObjectName register(ClassLoader loader) throws JMException {
+    ObjectName name;
+    while (true) {
+      // Loaders of their own have their own counter, so the name may be taken.
+      name = new ObjectName(OBJECT_NAME + ",loader=" + registrations.incrementAndGet());
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        break;
+      } catch (InstanceAlreadyExistsException e) {
+        continue;
+      }
+    }
+    registered.put(new WeakReference<ClassLoader>(loader, discardedLoaders), name);
+    synchronized (registered) {
+      if (unregistration == null) {
+        unregistration = new Thread("gwt-jvm metrics unregistration") {
+          @Override
+          public void run() {
+            try {
+              while (true) {
+                unregister(discardedLoaders.remove());
+              }
+            } catch (InterruptedException e) {
+              // The jvm is going down.
+            }
+          }
+        };
+        unregistration.setDaemon(true);
+        unregistration.start();
+      }
+    }
+    return name;
+  }
+
+  private static void unregister(Reference<?> loader) {
+    ObjectName name = registered.remove(loader);
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        // Unregistered by someone else already.
+      }
+    }
+  }
+
+  /**
+   * Adds the JSON report of these metrics to the given file when the jvm
+   * exits. The reports of all metrics added for the same file are written
+   * there together, from a single shutdown hook.
+   */
+  public void writeJsonAtExit(File file) {
+    synchronized (jsonReports) {
+      if (jsonReports.isEmpty()) {
+        Runtime.getRuntime().addShutdownHook(new Thread("gwt-jvm metrics json") {
+          @Override
+          public void run() {
+            writeJsonReports();
+          }
+        });
+      }
+      File key = file.getAbsoluteFile();
+      List<ClassLoadingMetrics> reports = jsonReports.get(key);
+      if (reports == null) {
+        reports = new ArrayList<ClassLoadingMetrics>();
+        jsonReports.put(key, reports);
+      }
+      reports.add(this);
+    }
+  }
+
+  private static void writeJsonReports() {
+    synchronized (jsonReports) {
+      for (Map.Entry<File, List<ClassLoadingMetrics>> entry : jsonReports.entrySet()) {
+        try {
+          writeJsonReports(entry.getKey(), entry.getValue());
+        } catch (IOException e) {
+          System.err.println("Can not write class loading metrics to " + entry.getKey()
+              + ": " + e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the JSON reports of the given metrics to the file, as an array.
+   */
+  static void writeJsonReports(File file, List<ClassLoadingMetrics> metrics)
+      throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      out.write("[");
+      for (int i = 0; i < metrics.size(); i++) {
+        out.write(i > 0 ? "," : "");
+        out.write(metrics.get(i).getJsonReport());
+      }
+      out.write("]");
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Registers these metrics as an MBean of the given loader, from another
+   * thread, and prints their report when the jvm exits.
+   */
+  public void report(ClassLoader loader) {
+    // The loader may be the system class loader still under construction,
+    // which the MBean server needs, so register it once that is done.
+    final WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(loader);
+    Thread registration = new Thread("gwt-jvm metrics registration") {
+      @Override
+      public void run() {
+        ClassLoader loader = reference.get();
+        if (loader == null) {
+          return;
+        }
+        try {
+          register(loader);
+        } catch (JMException e) {
+          System.err.println("Can not register class loading metrics: " + e);
+        }
+      }
+    };
+    registration.setDaemon(true);
+    registration.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        System.out.println(getTextReport());
+      }
+    });
+  }
+
+  public void loaded(LoadPath path) {
+    loadPaths.incrementAndGet(path.ordinal());
+  }
+
+  public void munged(String name, MungeKind kind, long nanos, int in, int out) {
+    mungeKinds.incrementAndGet(kind.ordinal());
+    mungeNanos.addAndGet(nanos);
+    bytesIn.addAndGet(in);
+    bytesOut.addAndGet(out);
+    histogram.incrementAndGet(bucket(nanos));
+    if (kind != MungeKind.UNMODIFIED) {
+      mungeNanosPerClass.put(name, nanos);
+    }
+  }
+
+  public void resourceLoaded(long nanos) {
+    resourceLoads.incrementAndGet();
+    resourceLoadNanos.addAndGet(nanos);
+  }
+
+  private static int bucket(long nanos) {
+    long micros = nanos / 1000;
+    int bucket = 0;
+    while (bucket < BUCKETS - 1 && micros >= 1L << bucket) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  public int getLoaded(LoadPath path) {
+    return loadPaths.get(path.ordinal());
+  }
+
+  public int getMunged(MungeKind kind) {
+    return mungeKinds.get(kind.ordinal());
+  }
+
+  public int getUnmockedClasses() {
+    return getLoaded(LoadPath.UNMOCKED);
+  }
+
+  public int getClassPathClasses() {
+    return getLoaded(LoadPath.CLASS_PATH);
+  }
+
+  public int getCompilationStateClasses() {
+    return getLoaded(LoadPath.COMPILATION_STATE);
+  }
+
+  public int getUnmodifiedClasses() {
+    return getMunged(MungeKind.UNMODIFIED);
+  }
+
+  public int getNativeDispatchClasses() {
+    return getMunged(MungeKind.NATIVE_DISPATCH);
+  }
+
+  public int getDollarClasses() {
+    return getMunged(MungeKind.DOLLAR);
+  }
+
+  public int getInterfaceClasses() {
+    return getMunged(MungeKind.INTERFACE);
+  }
+
+  public long getMungeTimeMillis() {
+    return mungeNanos.get() / 1000000;
+  }
+
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  public int getResourceLoads() {
+    return resourceLoads.get();
+  }
+
+  public long getResourceLoadTimeMillis() {
+    return resourceLoadNanos.get() / 1000000;
+  }
+
+  /**
+   * @return One "&lt; limit: count" line per non-empty bucket.
+   */
+  public String[] getMungeTimeHistogram() {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < BUCKETS; i++) {
+      int count = histogram.get(i);
+      if (count > 0) {
+        String limit = i == BUCKETS - 1 ? ">= " + (1 << (i - 1)) : "< " + (1 << i);
+        lines.add(limit + " us: " + count);
+      }
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * @return The classes which took longest to munge, as "name: micros us".
+   */
+  public String[] getSlowestClasses() {
+    List<Map.Entry<String, Long>> entries = slowest();
+    String[] slowest = new String[entries.size()];
+    for (int i = 0; i < slowest.length; i++) {
+      slowest[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue() / 1000 + " us";
+    }
+    return slowest;
+  }
+
+  private List<Map.Entry<String, Long>> slowest() {
+    List<Map.Entry<String, Long>> entries =
+        new ArrayList<Map.Entry<String, Long>>(mungeNanosPerClass.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    return entries.subList(0, Math.min(SLOWEST_CLASSES, entries.size()));
+  }
+
+  public String getTextReport() {
+    StringBuilder report = new StringBuilder("Class loading metrics:\n");
+    report.append("  loaded: ").append(getUnmockedClasses()).append(" unmocked, ")
+        .append(getClassPathClasses()).append(" from the class path, ")
+        .append(getCompilationStateClasses()).append(" from the compilation state\n");
+    report.append("  munged: ").append(getUnmodifiedClasses()).append(" unmodified, ")
+        .append(getNativeDispatchClasses()).append(" native dispatch, ")
+        .append(getDollarClasses()).append(" $ static conversion, ")
+        .append(getInterfaceClasses()).append(" class to interface\n");
+    report.append("  munge time: ").append(getMungeTimeMillis()).append(" ms, ")
+        .append(getBytesIn()).append(" bytes in, ").append(getBytesOut()).append(" bytes out\n");
+    report.append("  resource loads: ").append(getResourceLoads()).append(" in ")
+        .append(getResourceLoadTimeMillis()).append(" ms\n");
+    report.append("  munge time histogram:\n");
+    for (String line : getMungeTimeHistogram()) {
+      report.append("    ").append(line).append('\n');
+    }
+    report.append("  slowest classes:\n");
+    for (String line : getSlowestClasses()) {
+      report.append("    ").append(line).append('\n');
+    }
+    return report.toString();
+  }
+
+  public String getJsonReport() {
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"unmockedClasses\":").append(getUnmockedClasses());
+    json.append(",\"classPathClasses\":").append(getClassPathClasses());
+    json.append(",\"compilationStateClasses\":").append(getCompilationStateClasses());
+    json.append(",\"unmodifiedClasses\":").append(getUnmodifiedClasses());
+    json.append(",\"nativeDispatchClasses\":").append(getNativeDispatchClasses());
+    json.append(",\"dollarClasses\":").append(getDollarClasses());
+    json.append(",\"interfaceClasses\":").append(getInterfaceClasses());
+    json.append(",\"mungeTimeMillis\":").append(getMungeTimeMillis());
+    json.append(",\"bytesIn\":").append(getBytesIn());
+    json.append(",\"bytesOut\":").append(getBytesOut());
+    json.append(",\"resourceLoads\":").append(getResourceLoads());
+    json.append(",\"resourceLoadTimeMillis\":").append(getResourceLoadTimeMillis());
+    json.append(",\"mungeTimeHistogram\":[");
+    for (int i = 0; i < BUCKETS; i++) {
+      json.append(i > 0 ? "," : "").append(histogram.get(i));
+    }
+    json.append("],\"slowestClasses\":{");
+    List<Map.Entry<String, Long>> slowest = slowest();
+    for (int i = 0; i < slowest.size(); i++) {
+      json.append(i > 0 ? "," : "").append('"').append(slowest.get(i).getKey()).append("\":")
+          .append(slowest.get(i).getValue() / 1000);
+    }
+    json.append("}}");
+    return json.toString();
+  }
+
+  public void reset() {
+    for (int i = 0; i < loadPaths.length(); i++) {
+      loadPaths.set(i, 0);
+    }
+    for (int i = 0; i < mungeKinds.length(); i++) {
+      mungeKinds.set(i, 0);
+    }
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram.set(i, 0);
+    }
+    mungeNanos.set(0);
+    bytesIn.set(0);
+    bytesOut.set(0);
+    resourceLoads.set(0);
+    resourceLoadNanos.set(0);
+    mungeNanosPerClass.clear();
+  }
+}
@@ -0,0 +1,56 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+/**
+ * JMX view of {@link ClassLoadingMetrics}.
+ */
+public interface ClassLoadingMetricsMBean {
+
+  int getUnmockedClasses();
+
+  int getClassPathClasses();
+
+  int getCompilationStateClasses();
+
+  int getUnmodifiedClasses();
+
+  int getNativeDispatchClasses();
+
+  int getDollarClasses();
+
+  int getInterfaceClasses();
+
+  long getMungeTimeMillis();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  int getResourceLoads();
+
+  long getResourceLoadTimeMillis();
+
+  String[] getMungeTimeHistogram();
+
+  String[] getSlowestClasses();
+
+  String getTextReport();
+
+  String getJsonReport();
+
+  void reset();
+}
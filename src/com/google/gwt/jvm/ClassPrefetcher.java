@@ -0,0 +1,195 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.ClassPrescan;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Speculatively munges the classes referenced by freshly munged classes on a
+ * ForkJoin pool, so that they are ready by the time they get loaded.
+ *
+ * Enable it with
+ *
+ * -Dcom.google.gwt.jvm.prefetch=true
+ *
+ * and tune it with the .depth, .threads and .budget (bytes) sub properties.
+ * The pool is shut down by {@link #shutdown()}, see
+ * {@link GwtClassLoader#disablePrefetching()}.
+ */
+public class ClassPrefetcher {
+  public static final String PREFETCH_JVM_PROPERTY = "com.google.gwt.jvm.prefetch";
+
+  private class PrefetchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final int depth;
+
+    PrefetchTask(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (!classLoader.isPrefetchable(name)) {
+          return;
+        }
+        byte[] mungedBytes;
+        try {
+          mungedBytes = classLoader.munge(name);
+        } catch (RuntimeException e) {
+          // Missing or broken, loading it for real reports the problem.
+          return;
+        }
+        munged.incrementAndGet();
+        if (readyBytes.addAndGet(mungedBytes.length) > budget
+            || !classLoader.isPrefetchable(name)) {
+          readyBytes.addAndGet(-mungedBytes.length);
+          wasted.incrementAndGet();
+        } else {
+          ready.put(name, mungedBytes);
+        }
+        if (depth < maxDepth) {
+          prefetchReferences(mungedBytes, depth + 1);
+        }
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  private final GwtClassLoader classLoader;
+  private final int maxDepth;
+  private final long budget;
+  private final ForkJoinPool pool;
+
+  private final ConcurrentMap<String, Boolean> requested = new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentMap<String, byte[]> ready = new ConcurrentHashMap<String, byte[]>();
+  private final AtomicLong readyBytes = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicInteger munged = new AtomicInteger();
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger wasted = new AtomicInteger();
+
+  /**
+   * @param maxDepth How many references away from a loaded class to prefetch.
+   * @param threads Size of the pool.
+   * @param budget Maximum number of bytes of munged classes waiting to be loaded.
+   */
+  public ClassPrefetcher(GwtClassLoader classLoader, int maxDepth, int threads, long budget) {
+    this.classLoader = classLoader;
+    this.maxDepth = maxDepth;
+    this.budget = budget;
+    this.pool = new ForkJoinPool(threads);
+  }
+
+  /**
+   * Queues the classes referenced by the given munged class.
+   */
+  public void prefetchReferences(byte[] mungedBytes) {
+    prefetchReferences(mungedBytes, 1);
+  }
+
+  private void prefetchReferences(byte[] mungedBytes, int depth) {
+    if (pool.isShutdown()) {
+      return;
+    }
+    for (String internalName : ClassPrescan.referencedClasses(mungedBytes)) {
+      String name = internalName.replace('/', '.');
+      if (requested.putIfAbsent(name, Boolean.TRUE) == null && classLoader.isPrefetchable(name)) {
+        inFlight.incrementAndGet();
+        try {
+          pool.execute(new PrefetchTask(name, depth));
+        } catch (RejectedExecutionException e) {
+          // Shut down in the meantime.
+          inFlight.decrementAndGet();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the munged bytes of the given class if they were prefetched, or null.
+   */
+  public byte[] take(String name) {
+    byte[] mungedBytes = ready.remove(name);
+    if (mungedBytes != null) {
+      readyBytes.addAndGet(-mungedBytes.length);
+      hits.incrementAndGet();
+    }
+    return mungedBytes;
+  }
+
+  /**
+   * Stops prefetching: queued prefetches still run, but nothing new is queued
+   * and the pool threads exit once idle. Bytes already prefetched can still be
+   * taken.
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  public boolean isShutdown() {
+    return pool.isShutdown();
+  }
+
+  /**
+   * Waits until there are no prefetches queued or running.
+   * @return false if the timeout elapsed first.
+   */
+  public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeoutMillis;
+    while (inFlight.get() > 0) {
+      if (System.currentTimeMillis() > end) {
+        return false;
+      }
+      Thread.sleep(1);
+    }
+    return true;
+  }
+
+  public int getMunged() {
+    return munged.get();
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return Number of prefetched classes thrown away or still waiting unused.
+   */
+  public int getWasted() {
+    return wasted.get() + ready.size();
+  }
+
+  public String report() {
+    return "Class prefetcher: " + munged + " classes munged ahead, " + hits + " used, "
+        + getWasted() + " wasted.";
+  }
+}
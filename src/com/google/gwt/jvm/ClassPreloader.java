@@ -0,0 +1,200 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.dev.javac.CompilationState;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Munges the classes of a profile recorded by {@link ClassLoadRecorder} on a
+ * thread pool, ahead of the test or entry point asking for them. Optionally a
+ * background thread also defines them, in the recorded order. Bytes munged
+ * before the munging settings or the compilation state of the loader changed
+ * are thrown away instead of defined.
+ *
+ * Enable it with
+ *
+ * -Dcom.google.gwt.jvm.preloadClasses=/path/to/profile
+ * -Dcom.google.gwt.jvm.preloadClasses.define=true
+ */
+public class ClassPreloader {
+  public static final String PRELOAD_JVM_PROPERTY = "com.google.gwt.jvm.preloadClasses";
+  public static final String DEFINE_JVM_PROPERTY = "com.google.gwt.jvm.preloadClasses.define";
+
+  private final GwtClassLoader classLoader;
+  private final List<String> classNames;
+  private final boolean define;
+  private final ConcurrentMap<String, FutureTask<byte[]>> tasks =
+      new ConcurrentHashMap<String, FutureTask<byte[]>>();
+  private final ExecutorService executor;
+  private Thread definer;
+  // What the bytes got munged against, see isStale.
+  private volatile String mungingStamp;
+  private volatile CompilationState compilationState;
+
+  private final AtomicInteger remaining = new AtomicInteger();
+  private final AtomicInteger served = new AtomicInteger();
+  private final AtomicInteger discarded = new AtomicInteger();
+  private final long start = System.nanoTime();
+  private volatile long finished;
+
+  public ClassPreloader(GwtClassLoader classLoader, List<String> classNames, boolean define) {
+    this.classLoader = classLoader;
+    this.classNames = classNames;
+    this.define = define;
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "gwt-jvm class preloader");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  public void start() {
+    mungingStamp = classLoader.munger.getMungingStamp();
+    compilationState = classLoader.getCompilationState();
+    Set<String> uniqueNames = new LinkedHashSet<String>(classNames);
+    remaining.set(uniqueNames.size());
+    List<FutureTask<byte[]>> queue = new ArrayList<FutureTask<byte[]>>();
+    for (final String name : uniqueNames) {
+      FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          try {
+            return classLoader.munge(name);
+          } finally {
+            if (remaining.decrementAndGet() == 0 && !define) {
+              finished = System.nanoTime();
+            }
+          }
+        }
+      });
+      tasks.put(name, task);
+      queue.add(task);
+    }
+    for (FutureTask<byte[]> task : queue) {
+      executor.execute(task);
+    }
+    executor.shutdown();
+    if (define) {
+      definer = new Thread("gwt-jvm class definer") {
+        @Override
+        public void run() {
+          for (String name : classNames) {
+            try {
+              Class.forName(name, false, classLoader);
+            } catch (Throwable e) {
+              // The class is gone or broken, leave it to whoever asks for it.
+            }
+          }
+          finished = System.nanoTime();
+        }
+      };
+      definer.setDaemon(true);
+      definer.start();
+    }
+  }
+
+  /**
+   * Returns the preloaded bytes of the given class, or null if it is not part
+   * of the profile (or got taken already). Munges it in the calling thread if
+   * the pool did not get to it yet.
+   */
+  public byte[] take(String name) {
+    FutureTask<byte[]> task = tasks.remove(name);
+    if (task == null) {
+      return null;
+    }
+    if (isStale()) {
+      task.cancel(false);
+      discarded.incrementAndGet();
+      return null;
+    }
+    task.run();
+    try {
+      byte[] bytes = task.get();
+      if (isStale()) {
+        discarded.incrementAndGet();
+        return null;
+      }
+      served.incrementAndGet();
+      return bytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // Let the class loader retry, and report, the failure itself.
+      return null;
+    }
+  }
+
+  /**
+   * Whether the loader would munge differently than when the preloading started.
+   */
+  private boolean isStale() {
+    return !classLoader.munger.getMungingStamp().equals(mungingStamp)
+        || classLoader.getCompilationState() != compilationState;
+  }
+
+  /**
+   * Waits until all classes got munged and, when defining, defined.
+   */
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    if (definer != null) {
+      definer.join();
+    }
+  }
+
+  /**
+   * @return Number of classes in the profile served from preloaded bytes.
+   */
+  public int getServed() {
+    return served.get();
+  }
+
+  /**
+   * @return Number of preloaded classes thrown away as munged against older settings.
+   */
+  public int getDiscarded() {
+    return discarded.get();
+  }
+
+  public String report() {
+    String time = finished == 0 ? "not finished"
+        : "finished in " + (finished - start) / 1000000 + " ms";
+    return "Class preloader: " + served + " of " + classNames.size()
+        + " profiled classes served preloaded, " + discarded + " discarded as stale, "
+        + time + ".";
+  }
+}
@@ -42,7 +42,6 @@ public class ClasspathResourceLoader implements ResourceLoader {
   public byte[] loadBytes(String fileName) {
     InputStream is = classLoader.getResourceAsStream(fileName);
     if (is == null) {
-      System.out.println(fileName +  " - null");
       return null;
     }
     try {
@@ -69,7 +68,11 @@ public class ClasspathResourceLoader implements ResourceLoader {
   }
 
   public Set<String> loadSet(String fileName) {
-    ByteArrayInputStream is = new ByteArrayInputStream(loadBytes(fileName));
+    byte[] bytes = loadBytes(fileName);
+    if (bytes == null) {
+      throw new IllegalArgumentException("Resource not found: " + fileName);
+    }
+    ByteArrayInputStream is = new ByteArrayInputStream(bytes);
     BufferedReader reader = new BufferedReader(new InputStreamReader(is));
     TreeSet<String> set = new TreeSet<String>();
     try {
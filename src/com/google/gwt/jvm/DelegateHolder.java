@@ -0,0 +1,36 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+/**
+ * Added by the munger to classes declaring instance natives, so that the mock
+ * of an instance lives in synthetic transient fields of the instance itself
+ * rather than in a map of the {@link GwtNativeDispatch}.
+ */
+public interface DelegateHolder {
+
+  /**
+   * @return The mock of this instance, or null if none was set.
+   */
+  Object $gwtDelegate();
+
+  /**
+   * @return The dispatcher which set the mock.
+   */
+  Object $gwtDelegateOwner();
+
+  void $gwtSetDelegate(Object owner, Object delegate);
+}
@@ -0,0 +1,143 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.Type;
+
+import java.lang.reflect.Method;
+
+/**
+ * Cache of a munged native method's mock method, held in a synthetic static
+ * field of the munged class and passed to
+ * {@link GwtNativeDispatch#getDelegate(Object, DispatchSite)}.
+ *
+ * Static natives cache the method resolved by a dispatcher, valid as long as
+ * the current dispatcher has the same mappings version, e.g. as a copy of it.
+ * Instance natives cache the method of the last mock class they were called on.
+ *
+ * Static natives bound to their mock at munging time ask their site whether
+ * the binding still holds before calling the mock directly. It does not while
+ * the natives are profiled, so that their calls go through the dispatcher.
+ */
+public final class DispatchSite {
+
+  /** Immutable, so that it can be replaced in one write. */
+  private static final class Resolved {
+    final Object version;
+    final Class<?> delegateClass;
+    final Method method;
+
+    Resolved(Object version, Class<?> delegateClass, Method method) {
+      this.version = version;
+      this.delegateClass = delegateClass;
+      this.method = method;
+    }
+  }
+
+  /** Whether a munging time binding holds for a version of the mappings. */
+  private static final class Binding {
+    final Object version;
+    final boolean bound;
+
+    Binding(Object version, boolean bound) {
+      this.version = version;
+      this.bound = bound;
+    }
+  }
+
+  private final String className;
+  private final String methodName;
+  private final String methodDesc;
+  private volatile Resolved resolved;
+  private volatile Binding binding;
+  private volatile NativeDispatchProfiler.Profile profile;
+
+  public DispatchSite(String className, String methodName, String methodDesc) {
+    this.className = className;
+    this.methodName = methodName;
+    this.methodDesc = methodDesc;
+  }
+
+  /**
+   * @return The mock method of the static native in the given dispatcher.
+   */
+  public Method getStaticMethod(GwtNativeDispatch dispatcher) {
+    Resolved current = resolved;
+    Object version = dispatcher.getVersion();
+    if (current != null && current.version == version) {
+      return current.method;
+    }
+    Method method = dispatcher.getStaticMethod(className, methodName, methodDesc);
+    resolved = new Resolved(version, null, method);
+    return method;
+  }
+
+  /**
+   * @param owner Internal name of the class declaring the mock method the
+   *   static native was bound to when munged.
+   * @return Whether the current dispatcher, if any, maps the native to the same
+   *   method, i.e. a test did not register another mock for it.
+   */
+  public boolean isBoundTo(String owner) {
+    GwtNativeDispatch dispatcher = GwtNativeDispatch.instance;
+    if (dispatcher == null) {
+      return true;
+    }
+    if (NativeDispatchProfiler.getCurrent() != null) {
+      return false;
+    }
+    Binding current = binding;
+    Object version = dispatcher.getVersion();
+    if (current != null && current.version == version) {
+      return current.bound;
+    }
+    Method method = dispatcher.findStaticMethod(className, methodName, methodDesc);
+    boolean bound = method == null
+        || method.getDeclaringClass().getName().replace('.', '/').equals(owner);
+    binding = new Binding(version, bound);
+    return bound;
+  }
+
+  /**
+   * @return The method of the given mock class implementing the instance native.
+   */
+  public Method getInstanceMethod(Class<?> delegateClass) {
+    Resolved current = resolved;
+    if (current != null && current.delegateClass == delegateClass) {
+      return current.method;
+    }
+    Method method = Type.type(delegateClass).getMethod(methodName, methodDesc);
+    resolved = new Resolved(null, delegateClass, method);
+    return method;
+  }
+
+  /**
+   * @return The profile of the native in the given profiler.
+   */
+  public NativeDispatchProfiler.Profile getProfile(NativeDispatchProfiler profiler) {
+    NativeDispatchProfiler.Profile current = profile;
+    if (current == null || current.getProfiler() != profiler) {
+      current = profiler.getProfile(className, methodName, methodDesc);
+      profile = current;
+    }
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    return className + "." + methodName + methodDesc;
+  }
+}
@@ -154,10 +154,15 @@ public class GwtBrowserEmulator {
 
   public static class JavaGWTBridge extends GWTBridge {
 
-    private final ClassMap classMap = new ClassMap();
+    private final ClassMap classMap;
     private final Map<Class<?>, Object> instanceMap = new HashMap<Class<?>, Object>();
 
     public JavaGWTBridge() {
+      this(new ClassMap());
+    }
+
+    private JavaGWTBridge(ClassMap classMap) {
+      this.classMap = classMap;
     }
 
     /**
@@ -310,50 +315,80 @@ public class GwtBrowserEmulator {
     javaGWTBridge.automaticGwtCreate = value;
   }
 
-  @SuppressWarnings("deprecation")
+  // The baseline configuration of this class loader, copied by every reset.
+  private static ClassMap bridgeTemplate;
+  private static GwtNativeDispatch dispatcherTemplate;
+
   protected void resetBridge() {
-    javaGWTBridge = new JavaGWTBridge();
-//    setGWTcreateClass(BidiPolicy.BidiPolicyImpl.class, BidiPolicy.BidiPolicyImpl.class);
-    setGWTcreateClass(DebugIdImpl.class, JavaDebugIdImpl.class);
-    setGWTcreateClass(DOMImpl.class, "com.google.gwt.user.client.impl.DOMImplSafari");
-    setGWTcreateClass("com.google.gwt.dom.client.DOMImpl",
+    javaGWTBridge = new JavaGWTBridge(bridgeTemplate().copy());
+    type(GWT.class).invoke("setBridge", javaGWTBridge);
+  }
+
+  protected void resetDispatcher() {
+    dispatcher = dispatcherTemplate().copy();
+    GwtNativeDispatch.instance = dispatcher;
+  }
+
+  private static synchronized ClassMap bridgeTemplate() {
+    if (bridgeTemplate == null) {
+      bridgeTemplate = newBaselineBridge();
+    }
+    return bridgeTemplate;
+  }
+
+  private static synchronized GwtNativeDispatch dispatcherTemplate() {
+    if (dispatcherTemplate == null) {
+      dispatcherTemplate = newBaselineDispatcher();
+    }
+    return dispatcherTemplate;
+  }
+
+  /** Builds the GWT.create() mappings every reset starts from. */
+  @SuppressWarnings("deprecation")
+  static ClassMap newBaselineBridge() {
+    ClassMap classMap = new ClassMap();
+//    classMap.addImplementor(BidiPolicy.BidiPolicyImpl.class, BidiPolicy.BidiPolicyImpl.class);
+    classMap.addImplementor(DebugIdImpl.class, JavaDebugIdImpl.class);
+    classMap.addImplementor(DOMImpl.class, "com.google.gwt.user.client.impl.DOMImplSafari");
+    classMap.addImplementor("com.google.gwt.dom.client.DOMImpl",
         "com.google.gwt.dom.client.DOMImplSafari");
-    setGWTcreateClass("com.google.gwt.i18n.client.impl.LocaleInfoImpl",
+    classMap.addImplementor("com.google.gwt.i18n.client.impl.LocaleInfoImpl",
         "com.google.gwt.i18n.client.impl.LocaleInfoImpl");
-    setGWTcreateClass("com.google.gwt.i18n.client.impl.CldrImpl",
+    classMap.addImplementor("com.google.gwt.i18n.client.impl.CldrImpl",
         "com.google.gwt.i18n.client.impl.CldrImpl");
-    setGWTcreateClass("com.google.gwt.user.client.ui.impl.FocusImpl",
+    classMap.addImplementor("com.google.gwt.user.client.ui.impl.FocusImpl",
         "com.google.gwt.user.client.ui.impl.FocusImpl");
-    setGWTcreateClass("com.google.gwt.user.client.ui.impl.TextBoxImpl",
+    classMap.addImplementor("com.google.gwt.user.client.ui.impl.TextBoxImpl",
         "com.google.gwt.user.client.ui.impl.TextBoxImpl");
-    setGWTcreateClass("com.google.gwt.layout.client.LayoutImpl",
+    classMap.addImplementor("com.google.gwt.layout.client.LayoutImpl",
         "com.google.gwt.layout.client.LayoutImpl");
-    setGWTcreateClass(TreeImages.class, JavaTreeImages.class);
-    setGWTcreateClass(TreeItem.TreeItemImpl.class, TreeItem.TreeItemImpl.class);
-    setGWTcreateClass(WindowImpl.class, WindowImpl.class);
-    setGWTcreateClass("com.google.gwt.user.client.History", HistoryImpl.class);
-    setGWTcreateClass(HistoryImpl.class, HistoryImpl.class);
-    setGWTcreateClass(HTMLTable.class, HTMLTable.class);
-    setGWTcreateClass(SimplePanel.class, SimplePanel.class);
-    setGWTcreateClass(DateTimeConstantsImpl.class, JavaDateTimeConstantsImpl.class);
-//    setGWTcreateClass(DateTimeFormatInfoImpl.class, DefaultDateTimeFormatInfo.class);
-    setGWTcreateClass(DateBox.DefaultFormat.class, DateBox.DefaultFormat.class);
-    setGWTcreateClass(NumberConstantsImpl.class, JavaNumberConstantsImpl.class);
-    setGWTcreateClass(CurrencyList.class, JavaCurrencyListImpl.class);
-    setGWTcreateClass(CurrencyCodeMapConstants.class, JavaCurrencyCodeMapConstants.class);
-    setGWTcreateClass(PopupImpl.class, PopupImpl.class);
-    setGWTcreateClass(ClippedImageImpl.class, ClippedImageImpl.class);
-    setGWTcreateClass(TextBoxImpl.class, TextBoxImpl.class);
-    setGWTcreateClass(SchedulerImpl.class, JavaSchedulerImpl.class);
-    setGWTcreateClass(StyleInjectorImpl.class, StyleInjectorImpl.class);
+    classMap.addImplementor(TreeImages.class, JavaTreeImages.class);
+    classMap.addImplementor(TreeItem.TreeItemImpl.class, TreeItem.TreeItemImpl.class);
+    classMap.addImplementor(WindowImpl.class, WindowImpl.class);
+    classMap.addImplementor("com.google.gwt.user.client.History", HistoryImpl.class);
+    classMap.addImplementor(HistoryImpl.class, HistoryImpl.class);
+    classMap.addImplementor(HTMLTable.class, HTMLTable.class);
+    classMap.addImplementor(SimplePanel.class, SimplePanel.class);
+    classMap.addImplementor(DateTimeConstantsImpl.class, JavaDateTimeConstantsImpl.class);
+//    classMap.addImplementor(DateTimeFormatInfoImpl.class, DefaultDateTimeFormatInfo.class);
+    classMap.addImplementor(DateBox.DefaultFormat.class, DateBox.DefaultFormat.class);
+    classMap.addImplementor(NumberConstantsImpl.class, JavaNumberConstantsImpl.class);
+    classMap.addImplementor(CurrencyList.class, JavaCurrencyListImpl.class);
+    classMap.addImplementor(CurrencyCodeMapConstants.class, JavaCurrencyCodeMapConstants.class);
+    classMap.addImplementor(PopupImpl.class, PopupImpl.class);
+    classMap.addImplementor(ClippedImageImpl.class, ClippedImageImpl.class);
+    classMap.addImplementor(TextBoxImpl.class, TextBoxImpl.class);
+    classMap.addImplementor(SchedulerImpl.class, JavaSchedulerImpl.class);
+    classMap.addImplementor(StyleInjectorImpl.class, StyleInjectorImpl.class);
     // TODO(yizhi): Refactor into a Corp/UX/UI setup helper when we have a few
     // more.
-//    setGWTcreateClass(MenuButtonDecorator.class, JavaMenuButtonDecorator.class);
-    type(GWT.class).invoke("setBridge", javaGWTBridge);
+//    classMap.addImplementor(MenuButtonDecorator.class, JavaMenuButtonDecorator.class);
+    return classMap;
   }
 
-  protected void resetDispatcher() {
-    dispatcher = new GwtNativeDispatch();
+  /** Builds the native delegates every reset starts from. */
+  static GwtNativeDispatch newBaselineDispatcher() {
+    GwtNativeDispatch dispatcher = new GwtNativeDispatch();
     dispatcher.delegate(JavaScriptObject.class, JavaJSObject.class);
     dispatcher.delegate(Document.class, JavaDocument.class);
     dispatcher.delegate("com.google.gwt.dom.client.DOMImplSafari", JavaDOMImpl.class);
@@ -361,7 +396,8 @@ public class GwtBrowserEmulator {
     dispatcher.delegate("com.google.gwt.dom.client.DOMImplStandard", JavaDOMImpl.class);
     dispatcher.delegate("com.google.gwt.user.client.DOMImpl", JavaClientDOMImpl.class);
     dispatcher.delegate("com.google.gwt.user.client.impl.DOMImpl", JavaClientDOMImpl.class);
-    dispatcher.delegate("com.google.gwt.user.client.impl.DOMImplStandard", JavaClientDOMImpl.class);
+    dispatcher.delegate("com.google.gwt.user.client.impl.DOMImplStandard",
+        JavaClientDOMImpl.class);
     dispatcher.delegate("com.google.gwt.user.client.impl.DOMImpl", JavaClientDOMImpl.class);
     dispatcher.delegate("com.google.gwt.user.client.ui.impl.FocusImpl", JavaFocusImpl.class);
     dispatcher.delegate("com.google.gwt.user.client.ui.PrefixTree", JavaPrefixTree.class);
@@ -387,7 +423,7 @@ public class GwtBrowserEmulator {
     dispatcher.delegate(Cookies.class, JavaCookies.class);
     dispatcher.delegate(Tree.class, JavaTree.class);
     dispatcher.delegate(NumberFormat.class, JavaNumberFormat.class);
-    GwtNativeDispatch.instance = dispatcher;
+    return dispatcher;
   }
 
   public void clearDispatcher() {
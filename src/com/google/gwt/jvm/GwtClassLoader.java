@@ -16,18 +16,28 @@
 package com.google.gwt.jvm;
 
 import static com.google.gwt.jvm.asm.GwtClassMunger.JAVA_JS_OBJECT;
+import static com.google.gwt.jvm.asm.GwtClassMunger.JAVA_JS_OBJECT_FAMILY;
 
 import com.google.common.collect.Sets;
 import com.google.gwt.dev.javac.CompilationState;
 import com.google.gwt.dev.javac.CompiledClass;
 import com.google.gwt.dev.util.Name;
+import com.google.gwt.jvm.ClassLoadingMetrics.LoadPath;
+import com.google.gwt.jvm.asm.ClassPrescan;
 import com.google.gwt.jvm.asm.GwtClassMunger;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The GWT class loader which needs to be included in the JVM start up like this
@@ -35,16 +45,55 @@ import java.util.Set;
  * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
  *
  * to take advantage of running of GWT in java only mode.
+ *
+ * The loader is parallel capable: classes are loaded and munged under a lock
+ * per class name, so several threads can munge different classes at once.
  */
 public class GwtClassLoader extends ClassLoader {
+  static {
+    registerAsParallelCapable();
+  }
+
   public static final String OVERLAY_TYPES =
       "com/google/gwt/jvm/OverlayTypes.properties";
   public static final String ADDITIONAL_OVERLAY_TYPES_JVM_PROPERTY =
       "com.google.gwt.jvm.additionalOverlayTypes";
+  /** The mocks GwtBrowserEmulator registers for classes with static natives. */
+  public static final String STATIC_DELEGATES =
+      "com/google/gwt/jvm/StaticDelegates.properties";
+  /** Resource with gwt.Class=mock.Class lines whose static natives get bound at munging time. */
+  public static final String STATIC_DELEGATES_JVM_PROPERTY =
+      "com.google.gwt.jvm.staticDelegates";
+  /** Overlay families of the mocks GwtBrowserEmulator wraps. */
+  public static final String JS_OBJECT_FAMILIES =
+      "com/google/gwt/jvm/JavaJSObjectFamilies.properties";
+  /** Resource with mock.Class=overlay/Type,... lines to specialize JavaJSObject by. */
+  public static final String JS_OBJECT_FAMILIES_JVM_PROPERTY =
+      "com.google.gwt.jvm.jsObjectFamilies";
+  /** Set to true to dispatch natives through linked call sites instead of reflection. */
+  public static final String NATIVE_CALL_SITES_JVM_PROPERTY =
+      "com.google.gwt.jvm.nativeCallSites";
 
   private final ResourceLoader resourceLoader;
-  private final Set<String> unmockedPrefixes; // prefixes of classes to be loaded by parent loader.
+  private final ClassLoadingMetrics metrics = new ClassLoadingMetrics();
+  // prefixes of classes to be loaded by parent loader.
+  private final PrefixMatcher unmockedPrefixes;
   public GwtClassMunger munger;
+  private volatile MungedClassCache mungedClassCache; // null unless enabled in the jvm.
+  private volatile ClassLoadRecorder classLoadRecorder; // null unless recording.
+  private volatile ClassPreloader classPreloader; // null unless preloading.
+  private volatile ClassPrefetcher classPrefetcher; // null unless prefetching.
+  // Reports made at exit, see reportAtExit.
+  private final List<Runnable> shutdownReports = new CopyOnWriteArrayList<Runnable>();
+
+  private static final String JAVA_JS_OBJECT_FAMILY_NAME = JAVA_JS_OBJECT_FAMILY.replace('/', '.');
+  private static final int MISSING_CLASSES_SIZE = 4096;
+  private static final Object NO_COMPILATION_STATE = new Object();
+  // Names known to be neither on the class path nor in the compilation state,
+  // mapped to the compilation state they were missing from. Cleared when full
+  // instead of kept in LRU order, so that every loadClass can check it unlocked.
+  private final ConcurrentMap<String, Object> missingClasses =
+      new ConcurrentHashMap<String, Object>();
 
   /**
    * Construct a class loader using defaults for the unmocked prefix set and additional overlays.
@@ -60,13 +109,14 @@ public class GwtClassLoader extends ClassLoader {
    * Construct a class loader along with additional mocking information.
    * @param delegate Parent classloader.
    * @param additionalOverlayTypes Set of class names for overlay types (i.e. JSO implementations).
-   *   Use null if they are to be loaded from a file configured in the jvm.
+   *   Use null if they are to be loaded from a file configured in the jvm, or
+   *   scanned for on the class path (see {@link OverlayTypeScanner}).
    * @param unmockedPrefixes Non-null prefixes, any class with a prefix in this will not be mocked.
    */
   public GwtClassLoader(ClassLoader delegate, Set<String> additionalOverlayTypes,
       Set<String> unmockedPrefixes) {
     super(delegate);
-    this.resourceLoader = new ClasspathResourceLoader(delegate);
+    this.resourceLoader = new MeteredResourceLoader(new IndexedResourceLoader(delegate), metrics);
     Set<String> defaultOverlayTypes = resourceLoader.loadSet(OVERLAY_TYPES);
 
     // load overlays:
@@ -77,6 +127,12 @@ public class GwtClassLoader extends ClassLoader {
       } else {
         additionalOverlayTypes = Collections.emptySet();
       }
+      if (Boolean.getBoolean(OverlayTypeScanner.SCAN_JVM_PROPERTY)) {
+        String cacheDir = System.getProperty(OverlayTypeScanner.CACHE_DIR_JVM_PROPERTY);
+        OverlayTypeScanner scanner =
+            new OverlayTypeScanner(cacheDir == null ? null : new File(cacheDir));
+        defaultOverlayTypes.addAll(scanner.scan(IndexedResourceLoader.classPath(delegate)));
+      }
     }
     defaultOverlayTypes.addAll(additionalOverlayTypes);
 
@@ -85,55 +141,128 @@ public class GwtClassLoader extends ClassLoader {
       unmockedPrefixes = Sets.newHashSet("java.", "javax.", "sun.", "org.xml.", "com.sun.net",
           "org.mockito.");
     }
-    this.unmockedPrefixes = unmockedPrefixes;
+    this.unmockedPrefixes = new PrefixMatcher(unmockedPrefixes);
 
     // initialise class munging:
-    this.munger = new GwtClassMunger(resourceLoader, defaultOverlayTypes);
+    this.munger = new GwtClassMunger(resourceLoader, defaultOverlayTypes, metrics);
+    String staticDelegatesFile = System.getProperty(STATIC_DELEGATES_JVM_PROPERTY);
+    if (staticDelegatesFile != null) {
+      munger.setStaticDelegates(loadStaticDelegates(staticDelegatesFile));
+    }
+    munger.setNativeCallSites(Boolean.getBoolean(NATIVE_CALL_SITES_JVM_PROPERTY));
+    String jsObjectFamiliesFile = System.getProperty(JS_OBJECT_FAMILIES_JVM_PROPERTY);
+    if (jsObjectFamiliesFile != null) {
+      munger.setJavaJSObjectFamilies(loadJavaJSObjectFamilies(jsObjectFamiliesFile));
+    }
+    String mungedClassCacheDir = System.getProperty(MungedClassCache.CACHE_DIR_JVM_PROPERTY);
+    if (mungedClassCacheDir != null) {
+      enableMungedClassCache(new File(mungedClassCacheDir));
+    }
     try {
       defineMungedClass(JAVA_JS_OBJECT.replace('/', '.'), munger.getJavaJSObject());
     } catch (ClassFormatError e) {
       throw new RuntimeException(e);
     }
+
+    // profile guided preloading:
+    String recordFile = System.getProperty(ClassLoadRecorder.RECORD_JVM_PROPERTY);
+    if (recordFile != null) {
+      recordClassLoads(new File(recordFile));
+    }
+    String preloadFile = System.getProperty(ClassPreloader.PRELOAD_JVM_PROPERTY);
+    if (preloadFile != null && new File(preloadFile).isFile()) {
+      preloadClasses(ClassLoadRecorder.read(new File(preloadFile)),
+          Boolean.getBoolean(ClassPreloader.DEFINE_JVM_PROPERTY)).start();
+    }
+    if (Boolean.getBoolean(ClassLoadingMetrics.METRICS_JVM_PROPERTY)) {
+      reportMetrics();
+    }
+    String metricsJsonFile = System.getProperty(ClassLoadingMetrics.JSON_JVM_PROPERTY);
+    if (metricsJsonFile != null) {
+      writeMetricsJson(new File(metricsJsonFile));
+    }
+    if (Boolean.getBoolean(ClassPrefetcher.PREFETCH_JVM_PROPERTY)) {
+      String prefix = ClassPrefetcher.PREFETCH_JVM_PROPERTY;
+      enablePrefetching(Integer.getInteger(prefix + ".depth", 1),
+          Integer.getInteger(prefix + ".threads", Runtime.getRuntime().availableProcessors()),
+          Long.getLong(prefix + ".budget", 32 * 1024 * 1024));
+    }
   }
 
   @Override
   public Class<?> loadClass(String name) throws ClassNotFoundException {
+    synchronized (getClassLoadingLock(name)) {
+      return loadClassLocked(name);
+    }
+  }
+
+  private Class<?> loadClassLocked(String name) throws ClassNotFoundException {
     Class<?> clazz = findLoadedClass(name);
     if (clazz != null) {
       return clazz;
     }
 
-    for (String prefix : unmockedPrefixes) {
-      if (name.startsWith(prefix)) {
-        return super.loadClass(name);
-      }
+    if (unmockedPrefixes.matches(name)) {
+      metrics.loaded(LoadPath.UNMOCKED);
+      return super.loadClass(name);
+    }
+    if (missingClasses.get(name) == missingFrom(compilationState)) {
+      throw new ClassNotFoundException(name);
     }
 
     // special case for exception:
     if (name.equals(ClassResourceNotFoundException.class.getName())) {
+      metrics.loaded(LoadPath.UNMOCKED);
       return super.loadClass(name);
     }
 
     // Try and load it 'normally', munging the bytes.
     try {
-      byte[] mungedBytes = munger.munge(name);
+      ClassPreloader preloader = classPreloader;
+      ClassPrefetcher prefetcher = classPrefetcher;
+      byte[] mungedBytes = preloader != null ? preloader.take(name) : null;
+      if (mungedBytes == null && prefetcher != null) {
+        mungedBytes = prefetcher.take(name);
+      }
+      if (mungedBytes == null) {
+        mungedBytes = munge(name);
+      }
       if (mungedBytes != null) {
-        return defineMungedClass(name, mungedBytes);
+        clazz = defineMungedClass(name, mungedBytes);
+        metrics.loaded(LoadPath.CLASS_PATH);
+        ClassLoadRecorder recorder = classLoadRecorder;
+        if (recorder != null) {
+          recorder.record(name);
+        }
+        if (prefetcher != null) {
+          prefetcher.prefetchReferences(mungedBytes);
+        }
+        return clazz;
       }
     } catch (ClassResourceNotFoundException e) {
       // Try and load the class from the compilation state. The generator
       // will need to have already been run on the class for this to work.
-      if (compilationState != null) {
+      CompilationState state = compilationState;
+      if (state != null) {
         String internalName = Name.BinaryName.toInternalName(name);
-        CompiledClass compiledClass
-          = compilationState.getClassFileMap().get(internalName);
-        
+        CompiledClass compiledClass;
+        // The compilation state is not thread safe, other threads may be loading too.
+        synchronized (state) {
+          compiledClass = state.getClassFileMap().get(internalName);
+        }
+
         if (compiledClass != null) {
-          byte[] bytes = munger.mungeBytes(name, compiledClass.getBytes());
-          return defineMungedClass(name, bytes);
+          byte[] bytes = mungeBytes(name, compiledClass.getBytes());
+          clazz = defineMungedClass(name, bytes);
+          metrics.loaded(LoadPath.COMPILATION_STATE);
+          return clazz;
         }
       }
 
+      if (missingClasses.size() >= MISSING_CLASSES_SIZE) {
+        missingClasses.clear();
+      }
+      missingClasses.put(name, missingFrom(state));
       throw new ClassNotFoundException(e.getMessage(), e);
     }
 
@@ -141,19 +270,229 @@ public class GwtClassLoader extends ClassLoader {
     return defineClass(name, originalBytes, 0, originalBytes.length, null);
   }
   
+  /**
+   * Whether the class is worth munging ahead of time: it is not loaded yet and
+   * would be munged by this loader.
+   */
+  boolean isPrefetchable(String name) {
+    return !unmockedPrefixes.matches(name) && findLoadedClass(name) == null
+        && !missingClasses.containsKey(name)
+        && !name.equals(ClassResourceNotFoundException.class.getName());
+  }
+
+  private static Object missingFrom(CompilationState state) {
+    return state == null ? NO_COMPILATION_STATE : state;
+  }
+
   protected Class<?> defineMungedClass(String name, byte[] mungedBytes)
           throws ClassFormatError {
     // Left, but disabled, for debugging purposes.
     // writeClassToFile(name, mungedBytes);
     String packageName = GwtClassMunger.packageName(name);
     if (getPackage(packageName) == null) {
-      definePackage(packageName, null, null, null, null, null, null, null);
+      try {
+        definePackage(packageName, null, null, null, null, null, null, null);
+      } catch (IllegalArgumentException e) {
+        // Another thread defined the package in the meantime.
+      }
     }
     return defineClass(name, mungedBytes, 0, mungedBytes.length);
   }
   
+  byte[] munge(String name) {
+    if (name.startsWith(JAVA_JS_OBJECT_FAMILY_NAME)) {
+      return munger.getJavaJSObjectFamily(name);
+    }
+    if (mungedClassCache == null) {
+      return munger.munge(name);
+    }
+    return mungeBytes(name, resourceLoader.loadClassBytes(GwtClassMunger.resourceName(name)));
+  }
+
   public byte[] mungeBytes(String name, byte[] classBytes) {
-    return munger.mungeBytes(name, classBytes);
+    if (mungedClassCache == null) {
+      return munger.mungeBytes(name, classBytes);
+    }
+    // Classes the munger leaves alone are cheaper to prescan than to look up.
+    ClassPrescan prescan = munger.prescan(name, classBytes);
+    if (!munger.needsMunging(name, prescan)) {
+      return munger.mungeBytes(name, classBytes, prescan);
+    }
+    // The munger's settings may have changed since the cache was enabled.
+    String stamp = munger.getMungingStamp();
+    byte[] mungedBytes = mungedClassCache.get(stamp, name, classBytes);
+    if (mungedBytes == null) {
+      mungedBytes = munger.mungeBytes(name, classBytes, prescan);
+      if (mungedBytes != null) {
+        mungedClassCache.put(stamp, name, classBytes, mungedBytes);
+      }
+    }
+    return mungedBytes;
+  }
+
+  /**
+   * Reads a static delegation table, one gwt.Class=mock.Class line per GWT class.
+   */
+  public Map<String, String> loadStaticDelegates(String fileName) {
+    Map<String, String> delegates = new LinkedHashMap<String, String>();
+    for (String line : resourceLoader.loadSet(fileName)) {
+      int index = line.indexOf('=');
+      if (index < 0) {
+        throw new IllegalArgumentException("Expected gwt.Class=mock.Class in " + fileName
+            + ": " + line);
+      }
+      delegates.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+    }
+    return delegates;
+  }
+
+  /**
+   * Reads a JavaJSObject family table, one mock.Class=overlay/Type,... line per
+   * delegate class.
+   */
+  public Map<String, Set<String>> loadJavaJSObjectFamilies(String fileName) {
+    Map<String, Set<String>> families = new LinkedHashMap<String, Set<String>>();
+    for (String line : resourceLoader.loadSet(fileName)) {
+      int index = line.indexOf('=');
+      if (index < 0) {
+        throw new IllegalArgumentException("Expected mock.Class=overlay/Type,... in " + fileName
+            + ": " + line);
+      }
+      Set<String> roots = new TreeSet<String>();
+      for (String root : line.substring(index + 1).split(",")) {
+        roots.add(root.trim());
+      }
+      families.put(line.substring(0, index).trim(), roots);
+    }
+    return families;
+  }
+
+  /**
+   * Serve munged classes from (and store them into) a persistent cache in the
+   * given directory. The hit/miss report is printed when the jvm exits.
+   */
+  public void enableMungedClassCache(File directory) {
+    MungedClassCache cache = new MungedClassCache(directory, munger.getMungingStamp());
+    reportAtExit(cacheReport(cache));
+    mungedClassCache = cache;
+  }
+
+  private static Runnable cacheReport(final MungedClassCache cache) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        System.out.println(cache.report());
+      }
+    };
+  }
+
+  /**
+   * Makes the report when the jvm exits, unless this loader was garbage
+   * collected by then: only the loader holds on to its reports.
+   */
+  private void reportAtExit(Runnable report) {
+    shutdownReports.add(report);
+    ShutdownReports.add(report);
+  }
+
+  public MungedClassCache getMungedClassCache() {
+    return mungedClassCache;
+  }
+
+  /**
+   * Record the classes munged from here on, and save them to the given file
+   * when the jvm exits.
+   */
+  public ClassLoadRecorder recordClassLoads(final File file) {
+    final ClassLoadRecorder recorder = recordClassLoads();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        recorder.save(file);
+      }
+    });
+    return recorder;
+  }
+
+  public ClassLoadRecorder recordClassLoads() {
+    ClassLoadRecorder recorder = new ClassLoadRecorder();
+    classLoadRecorder = recorder;
+    return recorder;
+  }
+
+  public ClassLoadingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Register the metrics as an MBean and print their report when the jvm exits.
+   */
+  public void reportMetrics() {
+    metrics.report(this);
+  }
+
+  /**
+   * Write the JSON metrics report to the given file when the jvm exits, along
+   * with the reports of the other loaders writing there.
+   */
+  public void writeMetricsJson(File file) {
+    metrics.writeJsonAtExit(file);
+  }
+
+  /**
+   * Munge the classes referenced by each munged class ahead of time, until
+   * {@link #disablePrefetching()}. The prefetch report is printed when the jvm
+   * exits.
+   * @param depth How many references away from a loaded class to prefetch.
+   * @param threads Size of the prefetching pool.
+   * @param budget Maximum number of bytes of prefetched classes waiting to be loaded.
+   */
+  public ClassPrefetcher enablePrefetching(int depth, int threads, long budget) {
+    ClassPrefetcher prefetcher = new ClassPrefetcher(this, depth, threads, budget);
+    reportAtExit(prefetcherReport(prefetcher));
+    disablePrefetching();
+    classPrefetcher = prefetcher;
+    return prefetcher;
+  }
+
+  private static Runnable prefetcherReport(final ClassPrefetcher prefetcher) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        System.out.println(prefetcher.report());
+      }
+    };
+  }
+
+  /**
+   * Stop prefetching and shut the prefetching pool down.
+   */
+  public void disablePrefetching() {
+    ClassPrefetcher prefetcher = classPrefetcher;
+    classPrefetcher = null;
+    if (prefetcher != null) {
+      prefetcher.shutdown();
+    }
+  }
+
+  /**
+   * Serve the given classes from preloaded bytes. The returned preloader still
+   * needs to be started, its report is printed when the jvm exits.
+   */
+  public ClassPreloader preloadClasses(List<String> classNames, boolean define) {
+    ClassPreloader preloader = new ClassPreloader(this, classNames, define);
+    reportAtExit(preloaderReport(preloader));
+    classPreloader = preloader;
+    return preloader;
+  }
+
+  private static Runnable preloaderReport(final ClassPreloader preloader) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        System.out.println(preloader.report());
+      }
+    };
   }
   
   /**
@@ -163,7 +502,7 @@ public class GwtClassLoader extends ClassLoader {
    * @return The requested class, munged.
    */
   protected Class<?> defineAndMungeClass(String name, byte[] classBytes) {
-    byte[] mungedBytes = munger.mungeBytes(name, classBytes);
+    byte[] mungedBytes = mungeBytes(name, classBytes);
     if (mungedBytes != null) {
       return defineMungedClass(name, mungedBytes);
     } else {
@@ -185,7 +524,7 @@ public class GwtClassLoader extends ClassLoader {
   }
 
 
-  private CompilationState compilationState;
+  private volatile CompilationState compilationState;
 
   public CompilationState getCompilationState() {
     return compilationState;
@@ -193,5 +532,7 @@ public class GwtClassLoader extends ClassLoader {
 
   public void setCompilationState(CompilationState compilationState) {
     this.compilationState = compilationState;
+    // Entries for the previous state can never match again.
+    missingClasses.clear();
   }
 }
@@ -18,13 +18,15 @@ package com.google.gwt.jvm;
 import static com.google.gwt.jvm.asm.Descriptor.toJava;
 import static com.google.gwt.jvm.asm.Type.type;
 
+import com.google.common.collect.MapMaker;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.jvm.asm.ClassMap;
 import com.google.gwt.jvm.asm.InvocationDelegate;
 import com.google.gwt.jvm.asm.Type;
 
+import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.Method;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /**
  * Native methods have a body auto generated which delegate the native method to this class
@@ -38,57 +40,197 @@ public class GwtNativeDispatch {
     return instance;
   }
 
-  private final ClassMap classDelegates = new ClassMap();
-  private final Map<Object, Object> delegates = new WeakHashMap<Object, Object>();
+  private final ClassMap classDelegates;
+  // Mocks of instances which are not DelegateHolders, i.e. of classes not munged.
+  private final Map<Object, Object> delegates = new MapMaker().weakKeys().makeMap();
+  // Guards the call sites linked against the current mappings, null until one links.
+  private SwitchPoint mappings;
+  // Bumped whenever the mappings change.
+  private volatile int epoch;
+  // Replaced whenever the mappings change and shared by copies, see DispatchSite.
+  private volatile Object version = new Object();
 
   public GwtNativeDispatch() {
+    classDelegates = new ClassMap();
     delegate(JavaScriptObject.class, JavaJSObject.class);
   }
 
-  public void delegate(Class<?> gwtClass, Class<?> mockClass) {
+  private GwtNativeDispatch(GwtNativeDispatch template) {
+    classDelegates = template.classDelegates.copy();
+    epoch = template.epoch;
+    version = template.version;
+  }
+
+  /**
+   * @return A dispatcher with the mappings of this one, but none of its mocks.
+   *   The mappings are copied on write, so this takes constant time.
+   */
+  public synchronized GwtNativeDispatch copy() {
+    return new GwtNativeDispatch(this);
+  }
+
+  public synchronized void delegate(Class<?> gwtClass, Class<?> mockClass) {
     classDelegates.addImplementor(gwtClass, mockClass);
+    mappingsChanged();
   }
 
-  public void delegate(Class<?> gwtClass, String mockClass) {
+  public synchronized void delegate(Class<?> gwtClass, String mockClass) {
     classDelegates.addImplementor(gwtClass, mockClass);
+    mappingsChanged();
   }
 
-  public void delegate(String gwtClass, Class<?> mockClass) {
+  public synchronized void delegate(String gwtClass, Class<?> mockClass) {
     classDelegates.addImplementor(gwtClass, mockClass);
+    mappingsChanged();
   }
 
-  public void delegate(String gwtClass, String mockClass) {
+  public synchronized void delegate(String gwtClass, String mockClass) {
     classDelegates.addImplementor(gwtClass, mockClass);
+    mappingsChanged();
   }
 
   public InvocationDelegate getDelegate(Object instance, String className, String methodName,
       String methodDesc) throws SecurityException {
-    Object delegate;
-    Type delegateClass;
+    NativeDispatchProfiler profiler = NativeDispatchProfiler.getCurrent();
+    long start = profiler == null ? 0 : System.nanoTime();
+    Object delegate = null;
+    Method method;
     if (instance == null) {
       // static method dispatch;
-      delegate = null;
-      delegateClass = classDelegates.map(type(toJava(className)));
-    } else if (instance instanceof JavaJSObject) {
-      delegate = ((JavaJSObject) instance).delegate;
-      delegateClass = type(delegate.getClass());
+      method = getStaticMethod(className, methodName, methodDesc);
+    } else {
+      delegate = getInstanceDelegate(instance);
+      method = type(delegate.getClass()).getMethod(methodName, methodDesc);
+    }
+    InvocationDelegate invocation = InvocationDelegate.acquire(delegate, method);
+    if (profiler != null) {
+      profile(invocation, profiler.getProfile(className, methodName, methodDesc), start, delegate,
+          method);
+    }
+    return invocation;
+  }
+
+  /**
+   * Same as {@link #getDelegate(Object, String, String, String)}, resolving the
+   * mock method through the cache of the native's call site.
+   */
+  public InvocationDelegate getDelegate(Object instance, DispatchSite site) {
+    NativeDispatchProfiler profiler = NativeDispatchProfiler.getCurrent();
+    long start = profiler == null ? 0 : System.nanoTime();
+    Object delegate = null;
+    Method method;
+    if (instance == null) {
+      method = site.getStaticMethod(this);
     } else {
-      delegate = delegates.get(instance);
-      if (delegate == null) {
-        delegateClass = classDelegates.map(instance.getClass());
-        if (delegateClass == null) {
-          throw new IllegalStateException("Don't have a GWT emulation delegate for '"
-              + instance.getClass().getCanonicalName() + "'.");
-        }
-        delegate = delegateClass.newInstance(instance);
-        delegates.put(instance, delegate);
+      delegate = getInstanceDelegate(instance);
+      method = site.getInstanceMethod(delegate.getClass());
+    }
+    InvocationDelegate invocation = InvocationDelegate.acquire(delegate, method);
+    if (profiler != null) {
+      profile(invocation, site.getProfile(profiler), start, delegate, method);
+    }
+    return invocation;
+  }
+
+  private static void profile(InvocationDelegate invocation, NativeDispatchProfiler.Profile profile,
+      long start, Object delegate, Method method) {
+    invocation.profile(profile, start,
+        delegate == null ? method.getDeclaringClass() : delegate.getClass());
+  }
+
+  /**
+   * @return Number of times the mappings of this dispatcher changed.
+   */
+  public int getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * @return Token of the current mappings, the same for dispatchers copied from
+   *   each other as long as none of them changed.
+   */
+  public Object getVersion() {
+    return version;
+  }
+
+  /**
+   * @return The mock method implementing the given static native.
+   */
+  public Method getStaticMethod(String className, String methodName, String methodDesc) {
+    Method method = findStaticMethod(className, methodName, methodDesc);
+    if (method == null) {
+      throw new IllegalStateException("No delegate found for '" + className + "'");
+    }
+    return method;
+  }
+
+  /**
+   * @return The mock method implementing the given static native, or null if
+   *   the class has no delegate in this dispatcher.
+   */
+  public Method findStaticMethod(String className, String methodName, String methodDesc) {
+    Type delegateClass = classDelegates.map(type(toJava(className)));
+    return delegateClass == null ? null : delegateClass.getMethod(methodName, methodDesc);
+  }
+
+  /**
+   * @return The mock which implements the instance natives of the given object,
+   *   created on first use.
+   */
+  public Object getInstanceDelegate(Object instance) {
+    if (instance instanceof JavaJSObject) {
+      return ((JavaJSObject) instance).delegate;
+    }
+    if (instance instanceof DelegateHolder) {
+      DelegateHolder holder = (DelegateHolder) instance;
+      if (holder.$gwtDelegateOwner() == this) {
+        return holder.$gwtDelegate();
       }
-      delegateClass = type(delegate.getClass());
+      Object delegate = newDelegate(instance);
+      holder.$gwtSetDelegate(this, delegate);
+      return delegate;
+    }
+    Object delegate = delegates.get(instance);
+    if (delegate == null) {
+      delegate = newDelegate(instance);
+      delegates.put(instance, delegate);
     }
+    return delegate;
+  }
+
+  private Object newDelegate(Object instance) {
+    Type delegateClass = classDelegates.map(instance.getClass());
     if (delegateClass == null) {
-      throw new IllegalStateException("No delegate found for '" + className + "'");
+      throw new IllegalStateException("Don't have a GWT emulation delegate for '"
+          + instance.getClass().getCanonicalName() + "'.");
+    }
+    return delegateClass.newInstance(instance);
+  }
+
+  /**
+   * Mock of the given object in the current dispatcher.
+   */
+  public static Object delegateOf(Object instance) {
+    return getInstance().getInstanceDelegate(instance);
+  }
+
+  /**
+   * @return Switch point which gets invalidated when the mappings of this dispatcher change.
+   */
+  public synchronized SwitchPoint getMappings() {
+    if (mappings == null) {
+      mappings = new SwitchPoint();
+    }
+    return mappings;
+  }
+
+  private synchronized void mappingsChanged() {
+    epoch++;
+    version = new Object();
+    if (mappings != null) {
+      SwitchPoint.invalidateAll(new SwitchPoint[] {mappings});
+      mappings = null;
     }
-    return new InvocationDelegate(delegate, delegateClass.getMethod(methodName, methodDesc));
   }
 
 }
@@ -0,0 +1,471 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads raw bytes through an index of every jar and directory on the class
+ * path, built once at construction.
+ *
+ * Jars are memory mapped and their central directory is read straight from the
+ * mapping, entries are read into buffers of their exact size. The index of a
+ * jar is shared by all the loaders for as long as the jar keeps its length and
+ * modification time. Resources not in the index (e.g. the JDK's, those of a
+ * class path the index does not see, or of entries which can not be indexed)
+ * are loaded from the class loader, and misses there are remembered so that
+ * they get answered without any I/O the next time.
+ */
+public class IndexedResourceLoader extends ClasspathResourceLoader {
+
+  /** A resource in the index. */
+  private abstract static class Resource {
+    abstract byte[] read() throws IOException;
+  }
+
+  private static class FileResource extends Resource {
+    private final File file;
+
+    FileResource(File file) {
+      this.file = file;
+    }
+
+    @Override
+    byte[] read() throws IOException {
+      byte[] bytes = new byte[(int) file.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return bytes;
+    }
+  }
+
+  /** An entry read from the memory mapped jar. */
+  private static class MappedResource extends Resource {
+    private final ByteBuffer jar;
+    private final int localHeader;
+    private final int method;
+    private final int compressedSize;
+    private final int size;
+
+    MappedResource(ByteBuffer jar, int localHeader, int method, int compressedSize, int size) {
+      this.jar = jar;
+      this.localHeader = localHeader;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    @Override
+    byte[] read() throws IOException {
+      ByteBuffer buffer = jar.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt(localHeader) != LOCAL_HEADER) {
+        throw new IOException("Bad local header at " + localHeader);
+      }
+      int data = localHeader + 30 + (buffer.getShort(localHeader + 26) & 0xFFFF)
+          + (buffer.getShort(localHeader + 28) & 0xFFFF);
+      buffer.position(data);
+      if (method == ZipEntry.STORED) {
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return bytes;
+      }
+      // Raw deflate data needs an extra dummy byte at the end of the input.
+      byte[] compressed = new byte[compressedSize + 1];
+      buffer.get(compressed, 0, compressedSize);
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        byte[] bytes = new byte[size];
+        int length = 0;
+        while (length < size) {
+          int inflated = inflater.inflate(bytes, length, size - length);
+          if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+            throw new IOException("Truncated entry at " + localHeader);
+          }
+          length += inflated;
+        }
+        return bytes;
+      } catch (DataFormatException e) {
+        throw new IOException(e.getMessage());
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Fallback for jars which can not be mapped, i.e. ZIP64 ones. These are rare,
+   * so each read opens the jar rather than keeping it open.
+   */
+  private static class ZipResource extends Resource {
+    private final File file;
+    private final String name;
+
+    ZipResource(File file, String name) {
+      this.file = file;
+      this.name = name;
+    }
+
+    @Override
+    byte[] read() throws IOException {
+      ZipFile zip = new ZipFile(file);
+      try {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+          throw new IOException(name + " is gone from " + file);
+        }
+        byte[] bytes = new byte[(int) entry.getSize()];
+        DataInputStream in = new DataInputStream(zip.getInputStream(entry));
+        try {
+          in.readFully(bytes);
+        } finally {
+          in.close();
+        }
+        return bytes;
+      } finally {
+        zip.close();
+      }
+    }
+  }
+
+  /** The index of a jar, valid while the jar keeps its length and modification time. */
+  private static class JarIndex {
+    final long length;
+    final long lastModified;
+    final Map<String, Resource> resources;
+
+    JarIndex(long length, long lastModified, Map<String, Resource> resources) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.resources = resources;
+    }
+  }
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_HEADER = 0x06054b50;
+
+  // Indexes of the jars seen by any loader, by canonical file.
+  private static final ConcurrentMap<File, JarIndex> jarIndexes =
+      new ConcurrentHashMap<File, JarIndex>();
+
+  private final Map<String, Resource> resources = new HashMap<String, Resource>();
+  // Resources neither in the index nor found by the class loader.
+  private final Set<String> misses =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Indexes the class path of the given class loader.
+   */
+  public IndexedResourceLoader(ClassLoader classLoader) {
+    this(classLoader, classPath(classLoader));
+  }
+
+  /**
+   * @param classLoader Loads the resources outside of the indexed packages.
+   * @param classPath Jars and directories to index, earlier ones take precedence.
+   */
+  public IndexedResourceLoader(ClassLoader classLoader, List<File> classPath) {
+    super(classLoader);
+    for (File file : classPath) {
+      try {
+        if (file.isDirectory()) {
+          indexDirectory(file, "");
+        } else if (file.isFile()) {
+          for (Map.Entry<String, Resource> resource : jarIndex(file).entrySet()) {
+            index(resource.getKey(), resource.getValue());
+          }
+        }
+      } catch (IOException e) {
+        // Its resources are left to the class loader.
+        System.err.println("Can not index " + file + ": " + e);
+      }
+    }
+  }
+
+  @Override
+  public byte[] loadBytes(String fileName) {
+    Resource resource = resources.get(fileName);
+    if (resource != null) {
+      try {
+        return resource.read();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    if (misses.contains(fileName)) {
+      return null;
+    }
+    byte[] bytes = super.loadBytes(fileName);
+    if (bytes == null) {
+      misses.add(fileName);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return Number of resources in the index.
+   */
+  public int size() {
+    return resources.size();
+  }
+
+  private void index(String name, Resource resource) {
+    if (!resources.containsKey(name)) {
+      resources.put(name, resource);
+    }
+  }
+
+  private void indexDirectory(File directory, String prefix) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        indexDirectory(child, prefix + child.getName() + "/");
+      } else {
+        index(prefix + child.getName(), new FileResource(child));
+      }
+    }
+  }
+
+  /** @return The resources of the jar, indexed by this or an earlier loader. */
+  private static Map<String, Resource> jarIndex(File file) throws IOException {
+    File key = file.getCanonicalFile();
+    long length = key.length();
+    long lastModified = key.lastModified();
+    JarIndex index = jarIndexes.get(key);
+    if (index == null || index.length != length || index.lastModified != lastModified) {
+      index = new JarIndex(length, lastModified, indexJar(key));
+      jarIndexes.put(key, index);
+    }
+    return index.resources;
+  }
+
+  private static Map<String, Resource> indexJar(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    ByteBuffer jar;
+    try {
+      if (randomAccessFile.length() > Integer.MAX_VALUE) {
+        return indexZipFile(file);
+      }
+      jar = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          randomAccessFile.length()).order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      randomAccessFile.close();
+    }
+    try {
+      return indexMappedJar(file, jar);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Bad central directory in " + file);
+    }
+  }
+
+  private static Map<String, Resource> indexMappedJar(File file, ByteBuffer jar)
+      throws IOException {
+    int end = findEndHeader(jar);
+    if (end < 0 || (jar.getShort(end + 10) & 0xFFFF) == 0xFFFF) {
+      return indexZipFile(file);
+    }
+    int count = jar.getShort(end + 10) & 0xFFFF;
+    int header = jar.getInt(end + 16);
+    Map<String, Resource> resources = new HashMap<String, Resource>(count * 2);
+    for (int i = 0; i < count; i++) {
+      if (jar.getInt(header) != CENTRAL_HEADER) {
+        throw new IOException("Bad central directory header in " + file);
+      }
+      int method = jar.getShort(header + 10) & 0xFFFF;
+      int compressedSize = jar.getInt(header + 20);
+      int size = jar.getInt(header + 24);
+      int nameLength = jar.getShort(header + 28) & 0xFFFF;
+      int extraLength = jar.getShort(header + 30) & 0xFFFF;
+      int commentLength = jar.getShort(header + 32) & 0xFFFF;
+      int localHeader = jar.getInt(header + 42);
+      if (compressedSize == -1 || size == -1 || localHeader == -1) {
+        // ZIP64 sizes, let ZipFile deal with them.
+        return indexZipFile(file);
+      }
+      String name = readName(jar, header + 46, nameLength);
+      if (!name.endsWith("/")) {
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+          throw new IOException("Unsupported compression of " + name + " in " + file);
+        }
+        if (!resources.containsKey(name)) {
+          resources.put(name, new MappedResource(jar, localHeader, method, compressedSize, size));
+        }
+      }
+      header += 46 + nameLength + extraLength + commentLength;
+    }
+    return resources;
+  }
+
+  private static Map<String, Resource> indexZipFile(File file) throws IOException {
+    Map<String, Resource> resources = new HashMap<String, Resource>();
+    ZipFile zip = new ZipFile(file);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+        ZipEntry entry = e.nextElement();
+        if (!entry.isDirectory() && !resources.containsKey(entry.getName())) {
+          resources.put(entry.getName(), new ZipResource(file, entry.getName()));
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    return resources;
+  }
+
+  private static int findEndHeader(ByteBuffer jar) {
+    // The end header is at least 22 bytes, followed by a comment of up to 64k.
+    int minimum = Math.max(0, jar.limit() - 22 - 0xFFFF);
+    for (int i = jar.limit() - 22; i >= minimum; i--) {
+      if (jar.getInt(i) == END_HEADER) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String readName(ByteBuffer jar, int offset, int length) {
+    byte[] name = new byte[length];
+    for (int i = 0; i < length; i++) {
+      name[i] = jar.get(offset + i);
+    }
+    try {
+      return new String(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Class path of the given class loader and its parents, parents first, plus
+   * the jvm's class path, each jar followed by the Class-Path of its manifest.
+   */
+  public static List<File> classPath(ClassLoader classLoader) {
+    List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+    for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+      loaders.add(loader);
+    }
+    Collections.reverse(loaders);
+    Set<File> classPath = new LinkedHashSet<File>();
+    for (ClassLoader loader : loaders) {
+      if (loader instanceof URLClassLoader) {
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+          File file = toFile(url);
+          if (file != null) {
+            addWithManifestClassPath(classPath, file);
+          }
+        }
+      }
+    }
+    String jvmClassPath = System.getProperty("java.class.path");
+    if (jvmClassPath != null) {
+      for (String path : jvmClassPath.split(File.pathSeparator)) {
+        if (path.length() > 0) {
+          addWithManifestClassPath(classPath, new File(path).getAbsoluteFile());
+        }
+      }
+    }
+    return new ArrayList<File>(classPath);
+  }
+
+  private static File toFile(URL url) {
+    if (!url.getProtocol().equals("file")) {
+      return null;
+    }
+    try {
+      return new File(url.toURI()).getAbsoluteFile();
+    } catch (URISyntaxException e) {
+      return new File(url.getPath()).getAbsoluteFile();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Adds the file, and the class path in its manifest if it is a jar. */
+  private static void addWithManifestClassPath(Set<File> classPath, File file) {
+    if (!classPath.add(file) || !file.isFile()) {
+      return;
+    }
+    String manifestClassPath;
+    try {
+      JarFile jar = new JarFile(file);
+      try {
+        Manifest manifest = jar.getManifest();
+        if (manifest == null) {
+          return;
+        }
+        manifestClassPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+      } finally {
+        jar.close();
+      }
+    } catch (IOException e) {
+      // Not a jar, or not a readable one: indexing skips it.
+      return;
+    }
+    if (manifestClassPath == null) {
+      return;
+    }
+    for (String entry : manifestClassPath.trim().split("\\s+")) {
+      if (entry.length() == 0) {
+        continue;
+      }
+      try {
+        File entryFile = toFile(new URL(file.toURI().toURL(), entry));
+        if (entryFile != null) {
+          addWithManifestClassPath(classPath, entryFile);
+        }
+      } catch (MalformedURLException e) {
+        // Skipped, as the jvm does with bad Class-Path entries.
+      }
+    }
+  }
+}
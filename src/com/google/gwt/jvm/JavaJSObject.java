@@ -15,27 +15,97 @@
 
 package com.google.gwt.jvm;
 
+import com.google.common.collect.MapMaker;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.jvm.mock.JavaJsArray;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /**
  * For overlay types (see: http://code.google.com/p/google-web-toolkit/wiki/OverlayTypes)
  * the class loader adds all interfaces to this class making it possible to cast it 
  * to any overlay type. This class acts as a proxy to JavaScriptObject in GWT.
+ *
+ * When the class loader specializes wrappers (see
+ * {@link com.google.gwt.jvm.asm.GwtClassMunger#setJavaJSObjectFamilies}), the
+ * overlay interfaces go to generated subclasses instead, one per family of
+ * delegates, and each wrapper is created from the family of its delegate.
  */
 public class JavaJSObject {
-  
-  private static Map<Object, JavaJSObject> identityMap = new WeakHashMap<Object, JavaJSObject>();
+
+  /** Added to JavaJSObject by the munger when wrappers are specialized. */
+  public interface Specialized {
+  }
+
+  private static final boolean SPECIALIZED =
+      Specialized.class.isAssignableFrom(JavaJSObject.class);
+
+  /** Constructor of the family subclass, per delegate class. */
+  private static final ClassValue<MethodHandle> FAMILIES = new ClassValue<MethodHandle>() {
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      ClassLoader loader = JavaJSObject.class.getClassLoader();
+      for (Class<?> delegateClass = type; delegateClass != null;
+          delegateClass = delegateClass.getSuperclass()) {
+        try {
+          return constructor(Class.forName(family(delegateClass.getName()), true, loader));
+        } catch (ClassNotFoundException e) {
+          // not a family of its own, try its superclass.
+        }
+      }
+      try {
+        return constructor(Class.forName(family("Overlays"), true, loader));
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /**
+   * Wrappers of the delegates which don't hold their own, keyed by identity. A
+   * wrapper refers to its delegate, so it is held weakly: when nobody holds it
+   * any more, a new one is as good.
+   */
+  private static Map<Object, JavaJSObject> identityMap =
+      new MapMaker().weakKeys().weakValues().makeMap();
 
   public final Object delegate;
 
-  private JavaJSObject(Object delegate) {
+  JavaJSObject(Object delegate) {
     this.delegate = delegate;
   }
 
+  /** Same as GwtClassMunger.javaJSObjectFamily, which is not loaded in here. */
+  private static String family(String delegateClassName) {
+    return JavaJSObject.class.getName() + "$$" + delegateClassName.replace('.', '$');
+  }
+
+  private static MethodHandle constructor(Class<?> family) {
+    try {
+      return MethodHandles.lookup().findConstructor(family,
+          MethodType.methodType(void.class, Object.class)).asType(
+          MethodType.methodType(JavaJSObject.class, Object.class));
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static JavaJSObject newWrapper(Object delegate) {
+    if (!SPECIALIZED) {
+      return new JavaJSObject(delegate);
+    }
+    try {
+      return (JavaJSObject) FAMILIES.get(delegate.getClass()).invokeExact(delegate);
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   public static <T> T unwrap(Object object) {
     JavaJSObject jsObject = (JavaJSObject) object;
@@ -48,10 +118,18 @@ public class JavaJSObject {
       return null;
     } else if (delegate instanceof JavaJSObject) {
       throw new IllegalStateException("Trying to wrap already wrapped object.");
+    } else if (delegate instanceof WrapperHolder) {
+      WrapperHolder holder = (WrapperHolder) delegate;
+      JavaJSObject jsObject = holder.getWrapper();
+      if (jsObject == null) {
+        jsObject = newWrapper(delegate);
+        holder.setWrapper(jsObject);
+      }
+      return (T) jsObject;
     } else {
       JavaJSObject jsObject = identityMap.get(delegate);
       if (jsObject == null) {
-        jsObject = new JavaJSObject(delegate);
+        jsObject = newWrapper(delegate);
         identityMap.put(delegate, jsObject);
       }
       return (T) jsObject;
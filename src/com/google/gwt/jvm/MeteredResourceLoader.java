@@ -0,0 +1,54 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.util.Set;
+
+/**
+ * Times the resource loads of another loader into {@link ClassLoadingMetrics}.
+ */
+public class MeteredResourceLoader implements ResourceLoader {
+
+  private final ResourceLoader delegate;
+  private final ClassLoadingMetrics metrics;
+
+  public MeteredResourceLoader(ResourceLoader delegate, ClassLoadingMetrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  public byte[] loadBytes(String fileName) {
+    long start = System.nanoTime();
+    try {
+      return delegate.loadBytes(fileName);
+    } finally {
+      metrics.resourceLoaded(System.nanoTime() - start);
+    }
+  }
+
+  public byte[] loadClassBytes(String name) {
+    long start = System.nanoTime();
+    try {
+      return delegate.loadClassBytes(name);
+    } finally {
+      metrics.resourceLoaded(System.nanoTime() - start);
+    }
+  }
+
+  public Set<String> loadSet(String fileName) {
+    return delegate.loadSet(fileName);
+  }
+}
@@ -0,0 +1,179 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent on-disk cache of munged class bytes.
+ *
+ * The output of the munger only depends on the class name, the original class
+ * bytes and the munging stamp (munger version plus overlay type set), so each
+ * entry is stored under a digest of all three. Enable it for a JVM with
+ *
+ * -Dcom.google.gwt.jvm.mungedClassCache=/path/to/cache/dir
+ */
+public class MungedClassCache {
+  public static final String CACHE_DIR_JVM_PROPERTY = "com.google.gwt.jvm.mungedClassCache";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final File directory;
+  private final String stamp;
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+  private final AtomicLong bytesSaved = new AtomicLong();
+
+  /**
+   * @param directory Directory the entries are stored in, created if missing.
+   * @param stamp Identifies the munging configuration, see
+   *   {@link com.google.gwt.jvm.asm.GwtClassMunger#getMungingStamp()}.
+   */
+  public MungedClassCache(File directory, String stamp) {
+    this.directory = directory;
+    this.stamp = stamp;
+    directory.mkdirs();
+  }
+
+  /**
+   * Returns the cached munged bytes for the given class, or null on a miss.
+   */
+  public byte[] get(String name, byte[] classBytes) {
+    return get(stamp, name, classBytes);
+  }
+
+  /**
+   * Same as {@link #get(String, byte[])}, for a munging configuration which may
+   * have changed since the cache was created.
+   */
+  public byte[] get(String stamp, String name, byte[] classBytes) {
+    File file = entryFile(stamp, name, classBytes);
+    if (!file.isFile()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    try {
+      byte[] mungedBytes = new byte[(int) file.length()];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readFully(mungedBytes);
+      } finally {
+        in.close();
+      }
+      hits.incrementAndGet();
+      bytesSaved.addAndGet(mungedBytes.length);
+      return mungedBytes;
+    } catch (IOException e) {
+      // An unreadable entry is treated as a miss, it gets rewritten by put().
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  public void put(String name, byte[] classBytes, byte[] mungedBytes) {
+    put(stamp, name, classBytes, mungedBytes);
+  }
+
+  public void put(String stamp, String name, byte[] classBytes, byte[] mungedBytes) {
+    File file = entryFile(stamp, name, classBytes);
+    file.getParentFile().mkdirs();
+    // Write to a temporary file first so that concurrent JVMs sharing the
+    // directory never see a partially written entry.
+    File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId()
+        + "." + System.nanoTime() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(mungedBytes);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      // The cache is best effort only, failing to write just costs a munge next time.
+      tmp.delete();
+    }
+  }
+
+  public int getHits() {
+    return hits.get();
+  }
+
+  public int getMisses() {
+    return misses.get();
+  }
+
+  public long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  public String report() {
+    return "Munged class cache " + directory + ": " + hits + " hits, " + misses + " misses, "
+        + bytesSaved + " bytes read instead of munged.";
+  }
+
+  private File entryFile(String stamp, String name, byte[] classBytes) {
+    String key = digest(stamp, name, classBytes);
+    return new File(new File(directory, key.substring(0, 2)), key.substring(2) + ".class");
+  }
+
+  static String digest(String stamp, String name, byte[] classBytes) {
+    MessageDigest digest = newDigest();
+    digest.update(utf8(stamp));
+    digest.update((byte) 0);
+    digest.update(utf8(name));
+    digest.update((byte) 0);
+    digest.update(classBytes);
+    return hex(digest.digest());
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static byte[] utf8(String text) {
+    try {
+      return text.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static String hex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,233 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Call site of a munged native method, linked to its mock method on the first
+ * call. Munged classes keep a handle to each of their sites in a static field
+ * and invoke it with the exact signature of the native, so the JIT can inline
+ * the mock into the caller and primitives are passed without boxing.
+ *
+ * Static natives are linked against the mappings of the current dispatcher and
+ * relinked when they change or a dispatcher with other mappings replaces it. Instance natives are
+ * linked against the class of the receiver's mock and relinked when a mock of
+ * another class turns up, up to MAX_RELINKS times after which the site looks
+ * up the handle of each call's mock class in a per site ClassValue.
+ *
+ * While the {@link NativeDispatchProfiler} is on, sites link to handles which
+ * record the time of each call, boxing its arguments on the way, and get
+ * relinked when it is turned on or off.
+ */
+public class NativeCallSite extends MutableCallSite {
+
+  private static final int MAX_RELINKS = 8;
+
+  private static final MethodHandle RELINK;
+  private static final MethodHandle IS_VERSION;
+  private static final MethodHandle IS_CLASS;
+  private static final MethodHandle DELEGATE_OF;
+  private static final MethodHandle HANDLE_OF;
+  private static final MethodHandle PROFILED;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      RELINK = lookup.findVirtual(NativeCallSite.class, "relink",
+          MethodType.methodType(Object.class, Object[].class));
+      IS_VERSION = lookup.findStatic(NativeCallSite.class, "isVersion",
+          MethodType.methodType(boolean.class, Object.class));
+      IS_CLASS = lookup.findStatic(NativeCallSite.class, "isClass",
+          MethodType.methodType(boolean.class, Class.class, Object.class));
+      DELEGATE_OF = lookup.findStatic(GwtNativeDispatch.class, "delegateOf",
+          MethodType.methodType(Object.class, Object.class));
+      HANDLE_OF = lookup.findVirtual(NativeCallSite.class, "handleOf",
+          MethodType.methodType(MethodHandle.class, Object.class));
+      PROFILED = lookup.findVirtual(NativeCallSite.class, "profiled",
+          MethodType.methodType(Object.class, MethodHandle.class, Class.class, Object[].class));
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private final String className;
+  private final String methodName;
+  private final String methodDesc;
+  private final boolean isStatic;
+  private final MethodHandle relink;
+  private int relinks;
+  private volatile NativeDispatchProfiler.Profile profile;
+  // Unguarded handles of the instance native, by mock class.
+  private final ClassValue<MethodHandle> handles = new ClassValue<MethodHandle>() {
+    @Override
+    protected MethodHandle computeValue(Class<?> delegateClass) {
+      Method method = Type.type(delegateClass).getMethod(methodName, methodDesc);
+      try {
+        return MethodHandles.lookup().unreflect(method).asType(type());
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /**
+   * @param type Signature of the native, instance natives take the receiver as
+   *   an Object first.
+   */
+  public NativeCallSite(String className, String methodName, String methodDesc, boolean isStatic,
+      MethodType type) {
+    super(type);
+    this.className = className;
+    this.methodName = methodName;
+    this.methodDesc = methodDesc;
+    this.isStatic = isStatic;
+    this.relink = RELINK.bindTo(this).asCollector(Object[].class, type.parameterCount())
+        .asType(type);
+    setTarget(isStatic ? relink : delegateOf(relink));
+  }
+
+  /**
+   * Called from the static initializer of munged classes.
+   * @return Invoker of a new call site for the given native method.
+   */
+  public static MethodHandle link(String className, String methodName, String methodDesc,
+      boolean isStatic) {
+    MethodType type = MethodType.fromMethodDescriptorString(methodDesc,
+        NativeCallSite.class.getClassLoader());
+    if (!isStatic) {
+      type = type.insertParameterTypes(0, Object.class);
+    }
+    return new NativeCallSite(className, methodName, methodDesc, isStatic, type)
+        .dynamicInvoker();
+  }
+
+  /**
+   * Links the site and runs the call. The arguments of instance natives start
+   * with the mock instead of the receiver.
+   */
+  private Object relink(Object[] args) throws Throwable {
+    // read before the profiler, see NativeDispatchProfiler.getSwitchPoint.
+    SwitchPoint profiling = NativeDispatchProfiler.getSwitchPoint();
+    boolean profiled = NativeDispatchProfiler.getCurrent() != null;
+    MethodHandle target;
+    if (isStatic) {
+      target = linkStatic(profiled);
+      setTarget(profiling.guardWithTest(target, relink));
+    } else {
+      target = linkInstance(args[0].getClass(), profiled);
+      synchronized (this) {
+        if (relinks < MAX_RELINKS) {
+          relinks++;
+          setTarget(delegateOf(profiling.guardWithTest(target, relink)));
+        } else {
+          // megamorphic: look the handle up by the mock's class on each call.
+          MethodHandle megamorphic = MethodHandles.foldArguments(
+              MethodHandles.exactInvoker(type()), HANDLE_OF.bindTo(this));
+          setTarget(delegateOf(profiling.guardWithTest(
+              profiled ? profiled(megamorphic, null) : megamorphic, relink)));
+        }
+      }
+    }
+    return target.invokeWithArguments(args);
+  }
+
+  private MethodHandle linkStatic(boolean profiled) throws IllegalAccessException {
+    GwtNativeDispatch dispatcher = GwtNativeDispatch.getInstance();
+    Object version = dispatcher.getVersion();
+    Method method = dispatcher.getStaticMethod(className, methodName, methodDesc);
+    if (!Modifier.isStatic(method.getModifiers())) {
+      throw new IllegalStateException(method + " does not implement static native "
+          + className + "." + methodName + methodDesc);
+    }
+    MethodHandle handle = MethodHandles.lookup().unreflect(method).asType(type());
+    if (profiled) {
+      handle = profiled(handle, method.getDeclaringClass());
+    }
+    handle = MethodHandles.guardWithTest(IS_VERSION.bindTo(version), handle, relink);
+    return dispatcher.getMappings().guardWithTest(handle, relink);
+  }
+
+  private MethodHandle linkInstance(Class<?> delegateClass, boolean profiled) {
+    MethodHandle handle = handles.get(delegateClass);
+    if (profiled) {
+      handle = profiled(handle, delegateClass);
+    }
+    return MethodHandles.guardWithTest(IS_CLASS.bindTo(delegateClass), handle, relink);
+  }
+
+  /**
+   * @param mockClass The class of the mock the handle calls, null to take the
+   *   class of the first argument.
+   * @return Handle timing the calls of the given one in the current profiler.
+   */
+  private MethodHandle profiled(MethodHandle handle, Class<?> mockClass) {
+    return MethodHandles.insertArguments(PROFILED.bindTo(this), 0, handle, mockClass)
+        .asCollector(Object[].class, type().parameterCount()).asType(type());
+  }
+
+  private Object profiled(MethodHandle handle, Class<?> mockClass, Object[] args)
+      throws Throwable {
+    NativeDispatchProfiler profiler = NativeDispatchProfiler.getCurrent();
+    if (profiler == null) {
+      // turned off since, the site gets relinked.
+      return handle.invokeWithArguments(args);
+    }
+    long start = System.nanoTime();
+    try {
+      return handle.invokeWithArguments(args);
+    } finally {
+      getProfile(profiler).record(System.nanoTime() - start,
+          mockClass != null ? mockClass : args[0].getClass(), false);
+    }
+  }
+
+  private NativeDispatchProfiler.Profile getProfile(NativeDispatchProfiler profiler) {
+    NativeDispatchProfiler.Profile current = profile;
+    if (current == null || current.getProfiler() != profiler) {
+      current = profiler.getProfile(className, methodName, methodDesc);
+      profile = current;
+    }
+    return current;
+  }
+
+  private MethodHandle handleOf(Object delegate) {
+    return handles.get(delegate.getClass());
+  }
+
+  /** Replaces the receiver by its mock before calling the given handle. */
+  private static MethodHandle delegateOf(MethodHandle handle) {
+    return MethodHandles.filterArguments(handle, 0, DELEGATE_OF);
+  }
+
+  private static boolean isVersion(Object version) {
+    return GwtNativeDispatch.instance.getVersion() == version;
+  }
+
+  private static boolean isClass(Class<?> clazz, Object delegate) {
+    return delegate.getClass() == clazz;
+  }
+}
@@ -0,0 +1,314 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.Descriptor;
+
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Profiles the natives dispatched by {@link GwtNativeDispatch}: calls, time
+ * and its percentiles, arguments boxed for reflective invocation and the mock
+ * classes which served the calls, per native method. Times include nested
+ * native calls.
+ *
+ * Off unless enabled, either by {@link #enable()} or by
+ * -Dcom.google.gwt.jvm.nativeProfiler=true, which also prints the report when
+ * the jvm exits. While profiling, natives bound to a static delegate take the
+ * dispatcher instead, and natives dispatched through method handle call sites
+ * get relinked to time their calls, so both are profiled too.
+ */
+public class NativeDispatchProfiler {
+  public static final String PROFILER_JVM_PROPERTY = "com.google.gwt.jvm.nativeProfiler";
+
+  private static final int REPORTED_NATIVES = 50;
+  // Bucket 4 * e + s counts times in [(4 + s) << (e - 2), (5 + s) << (e - 2)) ns.
+  private static final int BUCKETS = 4 * 64;
+
+  private static volatile NativeDispatchProfiler current;
+  // Invalidated when profiling is turned on or off, relinking the call sites.
+  private static volatile SwitchPoint switchPoint = new SwitchPoint();
+
+  static {
+    if (Boolean.getBoolean(PROFILER_JVM_PROPERTY)) {
+      final NativeDispatchProfiler profiler = enable();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          System.out.println(profiler.getTextReport());
+        }
+      });
+    }
+  }
+
+  /** Statistics of one native method. */
+  public static class Profile {
+    private final NativeDispatchProfiler profiler;
+    private final String className;
+    private final String methodName;
+    private final String methodDesc;
+    private final int boxedPerCall; // primitive arguments and return value.
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong boxed = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final ConcurrentMap<Class<?>, AtomicLong> mockClasses =
+        new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    Profile(NativeDispatchProfiler profiler, String className, String methodName,
+        String methodDesc) {
+      this.profiler = profiler;
+      this.className = className;
+      this.methodName = methodName;
+      this.methodDesc = methodDesc;
+      Descriptor descriptor = Descriptor.of(methodDesc);
+      int primitives = isPrimitive(descriptor.getReturnDesc()) ? 1 : 0;
+      for (String parameter : descriptor.getParameterDescs()) {
+        primitives += isPrimitive(parameter) ? 1 : 0;
+      }
+      this.boxedPerCall = primitives;
+    }
+
+    private static boolean isPrimitive(String desc) {
+      return desc.charAt(0) != 'L' && desc.charAt(0) != '[' && desc.charAt(0) != 'V';
+    }
+
+    /**
+     * Records a call.
+     * @param reflective Whether the mock method was invoked reflectively,
+     *   boxing the primitive arguments and return value.
+     */
+    public void record(long callNanos, Class<?> mockClass, boolean reflective) {
+      calls.incrementAndGet();
+      nanos.addAndGet(callNanos);
+      if (reflective) {
+        boxed.addAndGet(boxedPerCall);
+      }
+      histogram.incrementAndGet(bucket(callNanos));
+      AtomicLong mockCalls = mockClasses.get(mockClass);
+      if (mockCalls == null) {
+        AtomicLong existing = mockClasses.putIfAbsent(mockClass, mockCalls = new AtomicLong());
+        if (existing != null) {
+          mockCalls = existing;
+        }
+      }
+      mockCalls.incrementAndGet();
+    }
+
+    NativeDispatchProfiler getProfiler() {
+      return profiler;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    public String getMethodName() {
+      return methodName;
+    }
+
+    public String getMethodDesc() {
+      return methodDesc;
+    }
+
+    public long getCalls() {
+      return calls.get();
+    }
+
+    public long getTotalNanos() {
+      return nanos.get();
+    }
+
+    public long getBoxedArguments() {
+      return boxed.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return Upper bound of the time the given percentage of the calls took,
+     *   exact to a quarter.
+     */
+    public long getPercentileNanos(double percentile) {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += histogram.get(i);
+      }
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += histogram.get(i);
+        if (seen >= rank && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * @return Calls per name of the mock classes which served them.
+     */
+    public Map<String, Long> getMockClasses() {
+      Map<String, Long> calls = new HashMap<String, Long>();
+      for (Map.Entry<Class<?>, AtomicLong> entry : mockClasses.entrySet()) {
+        calls.put(entry.getKey().getName(), entry.getValue().get());
+      }
+      return calls;
+    }
+
+    /** Copy which stays as it is while this profile keeps recording. */
+    Profile copy() {
+      Profile copy = new Profile(profiler, className, methodName, methodDesc);
+      copy.calls.set(calls.get());
+      copy.nanos.set(nanos.get());
+      copy.boxed.set(boxed.get());
+      for (int i = 0; i < BUCKETS; i++) {
+        copy.histogram.set(i, histogram.get(i));
+      }
+      for (Map.Entry<Class<?>, AtomicLong> entry : mockClasses.entrySet()) {
+        copy.mockClasses.put(entry.getKey(), new AtomicLong(entry.getValue().get()));
+      }
+      return copy;
+    }
+
+    @Override
+    public String toString() {
+      return className + "." + methodName + methodDesc;
+    }
+  }
+
+  private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+  /**
+   * @return The profiler natives get recorded in, or null if profiling is off.
+   */
+  public static NativeDispatchProfiler getCurrent() {
+    return current;
+  }
+
+  /**
+   * Turns profiling on, keeping the profiler if it already is.
+   */
+  public static synchronized NativeDispatchProfiler enable() {
+    if (current == null) {
+      current = new NativeDispatchProfiler();
+      switched();
+    }
+    return current;
+  }
+
+  public static synchronized void disable() {
+    if (current != null) {
+      current = null;
+      switched();
+    }
+  }
+
+  private static void switched() {
+    SwitchPoint old = switchPoint;
+    switchPoint = new SwitchPoint();
+    SwitchPoint.invalidateAll(new SwitchPoint[] {old});
+  }
+
+  /**
+   * @return Switch point which gets invalidated when profiling is turned on or
+   *   off. Get it before {@link #getCurrent()} to link against the latter.
+   */
+  static SwitchPoint getSwitchPoint() {
+    return switchPoint;
+  }
+
+  /**
+   * @return The profile of the given native, created on first use.
+   */
+  public Profile getProfile(String className, String methodName, String methodDesc) {
+    String key = className + "." + methodName + methodDesc;
+    Profile profile = profiles.get(key);
+    if (profile == null) {
+      profile = new Profile(this, className, methodName, methodDesc);
+      Profile existing = profiles.putIfAbsent(key, profile);
+      if (existing != null) {
+        profile = existing;
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * @return Copies of the profiles, most time consuming first.
+   */
+  public List<Profile> snapshot() {
+    List<Profile> snapshot = new ArrayList<Profile>();
+    for (Profile profile : profiles.values()) {
+      snapshot.add(profile.copy());
+    }
+    Collections.sort(snapshot, new Comparator<Profile>() {
+      @Override
+      public int compare(Profile a, Profile b) {
+        return a.getTotalNanos() < b.getTotalNanos() ? 1
+            : a.getTotalNanos() == b.getTotalNanos() ? 0 : -1;
+      }
+    });
+    return snapshot;
+  }
+
+  public String getTextReport() {
+    List<Profile> snapshot = snapshot();
+    StringBuilder report = new StringBuilder("Native dispatch profile:\n");
+    report.append(String.format("  %10s %10s %9s %9s %9s %10s  %s%n", "calls", "total ms",
+        "p50 us", "p90 us", "p99 us", "boxed", "native (mock classes)"));
+    for (Profile profile : snapshot.subList(0, Math.min(REPORTED_NATIVES, snapshot.size()))) {
+      report.append(String.format("  %10d %10.1f %9.1f %9.1f %9.1f %10d  %s %s%n",
+          profile.getCalls(), profile.getTotalNanos() / 1e6,
+          profile.getPercentileNanos(50) / 1e3, profile.getPercentileNanos(90) / 1e3,
+          profile.getPercentileNanos(99) / 1e3, profile.getBoxedArguments(), profile,
+          profile.getMockClasses()));
+    }
+    if (snapshot.size() > REPORTED_NATIVES) {
+      report.append("  ... ").append(snapshot.size() - REPORTED_NATIVES).append(" more\n");
+    }
+    return report.toString();
+  }
+
+  public void reset() {
+    profiles.clear();
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos < 4) {
+      return (int) Math.max(nanos, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    return 4 * exponent + (int) ((nanos >>> (exponent - 2)) & 3);
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < 4) {
+      return bucket + 1;
+    }
+    int exponent = bucket / 4;
+    return (5L + bucket % 4) << (exponent - 2);
+  }
+}
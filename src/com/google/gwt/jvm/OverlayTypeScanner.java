@@ -0,0 +1,314 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.ClassPrescan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the overlay types on a class path, i.e. JavaScriptObject and all of
+ * its transitive subclasses, so they don't need to be listed by hand.
+ *
+ * Jars and directories are scanned in parallel, reading each class only up to
+ * its superclass, i.e. through the constant pool. Class files which can not be
+ * read are skipped with a warning, and so are class path entries. With a cache
+ * directory the superclasses found in a jar are stored under a digest of its
+ * canonical path, length and modification time, so unchanged jars are not
+ * scanned again. Enable it for a GwtClassLoader with
+ *
+ * -Dcom.google.gwt.jvm.overlayTypeScan=true
+ * -Dcom.google.gwt.jvm.overlayTypeScan.cacheDir=/path/to/cache/dir
+ */
+public class OverlayTypeScanner {
+  public static final String SCAN_JVM_PROPERTY = "com.google.gwt.jvm.overlayTypeScan";
+  public static final String CACHE_DIR_JVM_PROPERTY = "com.google.gwt.jvm.overlayTypeScan.cacheDir";
+
+  public static final String JAVA_SCRIPT_OBJECT = "com/google/gwt/core/client/JavaScriptObject";
+
+  private final File cacheDirectory;
+  private final int threads;
+
+  private final AtomicInteger cacheHits = new AtomicInteger();
+  private final AtomicInteger cacheMisses = new AtomicInteger();
+
+  /**
+   * @param cacheDirectory Directory for the per jar results, created if
+   *   missing. Null for no caching.
+   */
+  public OverlayTypeScanner(File cacheDirectory) {
+    this(cacheDirectory, Runtime.getRuntime().availableProcessors());
+  }
+
+  public OverlayTypeScanner(File cacheDirectory, int threads) {
+    this.cacheDirectory = cacheDirectory;
+    this.threads = threads;
+    if (cacheDirectory != null) {
+      cacheDirectory.mkdirs();
+    }
+  }
+
+  /**
+   * @return Internal names of JavaScriptObject and its subclasses on the class path.
+   */
+  public Set<String> scan(List<File> classPath) {
+    return scan(classPath, JAVA_SCRIPT_OBJECT);
+  }
+
+  /**
+   * @return Internal names of the root class and its transitive subclasses on
+   *   the class path, earlier entries taking precedence.
+   */
+  public Set<String> scan(List<File> classPath, String root) {
+    Map<String, String> superNames = new HashMap<String, String>();
+    for (Map<String, String> entry : superNames(classPath)) {
+      for (Map.Entry<String, String> superName : entry.entrySet()) {
+        if (!superNames.containsKey(superName.getKey())) {
+          superNames.put(superName.getKey(), superName.getValue());
+        }
+      }
+    }
+    Map<String, List<String>> subclasses = new HashMap<String, List<String>>();
+    for (Map.Entry<String, String> superName : superNames.entrySet()) {
+      List<String> children = subclasses.get(superName.getValue());
+      if (children == null) {
+        children = new ArrayList<String>();
+        subclasses.put(superName.getValue(), children);
+      }
+      children.add(superName.getKey());
+    }
+    Set<String> found = new TreeSet<String>();
+    List<String> queue = new ArrayList<String>();
+    queue.add(root);
+    while (!queue.isEmpty()) {
+      String name = queue.remove(queue.size() - 1);
+      if (found.add(name) && subclasses.containsKey(name)) {
+        queue.addAll(subclasses.get(name));
+      }
+    }
+    return found;
+  }
+
+  public int getCacheHits() {
+    return cacheHits.get();
+  }
+
+  public int getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /** Superclass of each class, per class path entry. */
+  private List<Map<String, String>> superNames(List<File> classPath) {
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(threads, classPath.size())), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "gwt-jvm overlay type scanner");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+      for (final File file : classPath) {
+        futures.add(executor.submit(new Callable<Map<String, String>>() {
+          @Override
+          public Map<String, String> call() throws IOException {
+            if (file.isDirectory()) {
+              Map<String, String> superNames = new HashMap<String, String>();
+              scanDirectory(file, "", superNames);
+              return superNames;
+            } else if (file.isFile()) {
+              return scanJar(file);
+            }
+            return new HashMap<String, String>();
+          }
+        }));
+      }
+      List<Map<String, String>> superNames = new ArrayList<Map<String, String>>();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          superNames.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          System.err.println("Overlay type scan skips " + classPath.get(i) + ": " + e.getCause());
+          superNames.add(new HashMap<String, String>());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+      return superNames;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void scanDirectory(File directory, String prefix, Map<String, String> superNames)
+      throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        scanDirectory(child, prefix + child.getName() + "/", superNames);
+      } else if (isClass(child.getName())) {
+        InputStream in = new FileInputStream(child);
+        try {
+          add(prefix + child.getName(), in, child.getPath(), superNames);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  private Map<String, String> scanJar(File jar) throws IOException {
+    File cacheFile = null;
+    if (cacheDirectory != null) {
+      cacheFile = new File(cacheDirectory, cacheKey(jar) + ".supers");
+      if (cacheFile.isFile()) {
+        try {
+          Map<String, String> superNames = readCache(cacheFile);
+          cacheHits.incrementAndGet();
+          return superNames;
+        } catch (IOException e) {
+          // An unreadable entry is treated as a miss, it gets rewritten below.
+        }
+      }
+      cacheMisses.incrementAndGet();
+    }
+    Map<String, String> superNames = new HashMap<String, String>();
+    ZipFile zip = new ZipFile(jar);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+        ZipEntry entry = e.nextElement();
+        if (!entry.isDirectory() && isClass(entry.getName())
+            && !entry.getName().startsWith("META-INF/")) {
+          InputStream in = zip.getInputStream(entry);
+          try {
+            add(entry.getName(), in, jar + "!/" + entry.getName(), superNames);
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    if (cacheFile != null) {
+      writeCache(cacheFile, superNames);
+    }
+    return superNames;
+  }
+
+  private static boolean isClass(String fileName) {
+    return fileName.endsWith(".class") && !fileName.endsWith("package-info.class")
+        && !fileName.endsWith("module-info.class");
+  }
+
+  /** Adds the superclass of a class file, skipping files which can not be read as one. */
+  private static void add(String fileName, InputStream in, String location,
+      Map<String, String> superNames) {
+    String superName;
+    try {
+      superName = ClassPrescan.superName(new BufferedInputStream(in, 1024));
+    } catch (IOException e) {
+      System.err.println("Overlay type scan skips " + location + ": " + e);
+      return;
+    }
+    if (superName != null) {
+      superNames.put(fileName.substring(0, fileName.length() - ".class".length()), superName);
+    }
+  }
+
+  /** Identifies a version of the jar without reading it. */
+  private static String cacheKey(File jar) throws IOException {
+    MessageDigest digest = MungedClassCache.newDigest();
+    digest.update(MungedClassCache.utf8(jar.getCanonicalPath() + " " + jar.length() + " "
+        + jar.lastModified()));
+    return MungedClassCache.hex(digest.digest());
+  }
+
+  /** Reads the "name superName" lines of a cache entry. */
+  private static Map<String, String> readCache(File file) throws IOException {
+    Map<String, String> superNames = new HashMap<String, String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int space = line.indexOf(' ');
+        if (space < 0) {
+          throw new IOException("Bad line in " + file + ": " + line);
+        }
+        superNames.put(line.substring(0, space), line.substring(space + 1));
+      }
+    } finally {
+      reader.close();
+    }
+    return superNames;
+  }
+
+  private static void writeCache(File file, Map<String, String> superNames) {
+    // Write to a temporary file first so that concurrent JVMs sharing the
+    // directory never see a partially written entry.
+    File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId()
+        + "." + System.nanoTime() + ".tmp");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+      try {
+        for (Map.Entry<String, String> superName : superNames.entrySet()) {
+          writer.write(superName.getKey() + " " + superName.getValue() + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      // The cache is best effort only, failing to write just costs a scan next time.
+      tmp.delete();
+    }
+  }
+}
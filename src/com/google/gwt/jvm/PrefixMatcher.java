@@ -0,0 +1,85 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import java.util.Collection;
+
+/**
+ * Matches names against a fixed set of prefixes with a single walk down a
+ * character trie, instead of calling startsWith for each prefix.
+ */
+public class PrefixMatcher {
+
+  private static class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private boolean terminal;
+
+    Node child(char key) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == key) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node addChild(char key) {
+      Node child = child(key);
+      if (child == null) {
+        child = new Node();
+        char[] newKeys = new char[keys.length + 1];
+        Node[] newChildren = new Node[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, keys.length);
+        System.arraycopy(children, 0, newChildren, 0, keys.length);
+        newKeys[keys.length] = key;
+        newChildren[keys.length] = child;
+        keys = newKeys;
+        children = newChildren;
+      }
+      return child;
+    }
+  }
+
+  private final Node root = new Node();
+
+  public PrefixMatcher(Collection<String> prefixes) {
+    for (String prefix : prefixes) {
+      Node node = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.addChild(prefix.charAt(i));
+      }
+      node.terminal = true;
+    }
+  }
+
+  /**
+   * @return true if the name starts with any of the prefixes.
+   */
+  public boolean matches(String name) {
+    Node node = root;
+    for (int i = 0; i < name.length(); i++) {
+      if (node.terminal) {
+        return true;
+      }
+      node = node.child(name.charAt(i));
+      if (node == null) {
+        return false;
+      }
+    }
+    return node.terminal;
+  }
+}
@@ -0,0 +1,79 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Makes the reports class loaders print or save when the jvm exits, from a
+ * single shutdown hook. The hook refers to the reports weakly, so it keeps no
+ * loader alive: a report is made only if its owner still holds on to it.
+ */
+final class ShutdownReports {
+
+  private static final List<WeakReference<Runnable>> reports =
+      new ArrayList<WeakReference<Runnable>>();
+  private static boolean hooked; // guarded by reports.
+
+  private ShutdownReports() {
+  }
+
+  /**
+   * Makes the report at exit, unless it got garbage collected by then. The
+   * caller needs to keep it reachable for as long as it should be made.
+   */
+  static void add(Runnable report) {
+    synchronized (reports) {
+      if (!hooked) {
+        Runtime.getRuntime().addShutdownHook(new Thread("gwt-jvm shutdown reports") {
+          @Override
+          public void run() {
+            makeReports();
+          }
+        });
+        hooked = true;
+      }
+      for (Iterator<WeakReference<Runnable>> i = reports.iterator(); i.hasNext();) {
+        if (i.next().get() == null) {
+          i.remove();
+        }
+      }
+      reports.add(new WeakReference<Runnable>(report));
+    }
+  }
+
+  private static void makeReports() {
+    List<Runnable> live = new ArrayList<Runnable>();
+    synchronized (reports) {
+      for (WeakReference<Runnable> reference : reports) {
+        Runnable report = reference.get();
+        if (report != null) {
+          live.add(report);
+        }
+      }
+    }
+    for (Runnable report : live) {
+      try {
+        report.run();
+      } catch (RuntimeException e) {
+        // One failing report should not keep the others from being made.
+        System.err.println("Can not make report at exit: " + e);
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+/**
+ * A delegate which keeps its own {@link JavaJSObject}, so that wrapping it is a
+ * field read rather than a lookup in the identity map of JavaJSObject.
+ */
+public interface WrapperHolder {
+
+  /**
+   * @return The wrapper of this delegate, or null if it was not wrapped yet.
+   */
+  JavaJSObject getWrapper();
+
+  void setWrapper(JavaJSObject wrapper);
+}
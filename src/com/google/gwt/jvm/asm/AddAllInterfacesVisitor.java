@@ -15,7 +15,7 @@
 
 package com.google.gwt.jvm.asm;
 
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ClassVisitor;
 
 import java.util.Set;
 
@@ -26,7 +26,7 @@ public class AddAllInterfacesVisitor extends DelegatingClassVisitor {
 
   private final Set<String> overlayTypes;
 
-  public AddAllInterfacesVisitor(ClassWriter delegate, Set<String> overlayTypes) {
+  public AddAllInterfacesVisitor(ClassVisitor delegate, Set<String> overlayTypes) {
     super(delegate);
     this.overlayTypes = overlayTypes;
   }
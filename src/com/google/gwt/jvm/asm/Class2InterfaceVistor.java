@@ -19,7 +19,7 @@ import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
 import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
 
-import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 
@@ -30,7 +30,7 @@ public class Class2InterfaceVistor extends DelegatingClassVisitor {
 
   private static final String JAVA_LANG_OBJECT = "java/lang/Object";
 
-  public Class2InterfaceVistor(ClassWriter delegate) {
+  public Class2InterfaceVistor(ClassVisitor delegate) {
     super(delegate);
   }
 
@@ -48,7 +48,7 @@ public class ClassDollarVistor extends DelegatingClassVisitor {
     MethodVisitor visitor;
     if (!isStatic(access) && (!isConstructor(name))) {
       int staticMethodAccess = access | Opcodes.ACC_STATIC;
-      String staticDesc = new Descriptor(desc).toDescPrefix(originalClassName);
+      String staticDesc = Descriptor.of(desc).toDescPrefix(originalClassName);
       // System.out.println("Creating: " + originalClassName + "$." + name +
       // staticDesc);
       visitor = delegate.visitMethod(staticMethodAccess, name, staticDesc, signature, exceptions);
@@ -18,17 +18,65 @@ import static com.google.gwt.jvm.asm.Type.type;
 
 import com.google.gwt.jvm.ClassResourceNotFoundException;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Map of GWT class to Mock Class
+ *
+ * Resolved lookups, including misses, are remembered per class until the next
+ * implementor gets added. Lookups don't lock, so the map may be read from
+ * several threads while it is being configured.
+ *
+ * Copies share the mappings and the resolved lookups with their original until
+ * either of them gets an implementor added.
  */
 public class ClassMap {
-  private final Map<Type, Type> classes = new HashMap<Type, Type>();
+  // Marks classes resolved to no mapping, the concurrent maps don't take null.
+  private static final Type NONE = new Type(ClassMap.class.getName() + "$None");
+
+  /** The mappings and the lookups resolved against them. */
+  private static final class State {
+    final ConcurrentMap<String, Type> classes;
+    final ConcurrentMap<String, Type> resolved = new ConcurrentHashMap<String, Type>();
+
+    State(ConcurrentMap<String, Type> classes) {
+      this.classes = classes;
+    }
+  }
+
+  // Replaced rather than cleared, so that lookups racing with an addImplementor
+  // can only store their result in the discarded state.
+  private volatile State state;
+  // Whether the classes of the state are shared with a copy, guarded by this.
+  private boolean shared;
+
+  public ClassMap() {
+    state = new State(new ConcurrentHashMap<String, Type>());
+  }
+
+  private ClassMap(State state) {
+    shared = true;
+    this.state = state;
+  }
+
+  /**
+   * @return A map with the same mappings, which costs nothing until one of the
+   *   two gets an implementor added.
+   */
+  public synchronized ClassMap copy() {
+    shared = true;
+    return new ClassMap(state);
+  }
 
-  public void addImplementor(Type key, Type use) {
-    classes.put(key, use);
+  public synchronized void addImplementor(Type key, Type use) {
+    ConcurrentMap<String, Type> classes = state.classes;
+    if (shared) {
+      classes = new ConcurrentHashMap<String, Type>(classes);
+      shared = false;
+    }
+    classes.put(key.toString(), use);
+    state = new State(classes);
   }
 
   public void addImplementor(String keyName, String useName) {
@@ -101,19 +149,28 @@ public class ClassMap {
    * a mapping does not exist.
    */
   public Type map(Type type) {
-    Type t = type;
-    while (t != null) {
-      Type delegate = classes.get(t);
+    State state = this.state;
+    Type delegate = state.resolved.get(type.toString());
+    if (delegate == null) {
+      delegate = resolve(state.classes, type);
+      state.resolved.put(type.toString(), delegate);
+    }
+    return delegate == NONE ? null : delegate;
+  }
+
+  private static Type resolve(ConcurrentMap<String, Type> classes, Type type) {
+    Type delegate = classes.get(type.toString());
+    if (delegate != null) {
+      return delegate;
+    }
+    // walks the superclasses up to and including Object.
+    Class<?> clazz = type.getJavaClass();
+    while (clazz != Object.class && (clazz = clazz.getSuperclass()) != null) {
+      delegate = classes.get(clazz.getName());
       if (delegate != null) {
         return delegate;
-      } else {
-        if (t.getJavaClass() == Object.class) {
-          break;
-        } else {
-          t = t.getSuperType();
-        }
       }
     }
-    return null;
+    return NONE;
   }
 }
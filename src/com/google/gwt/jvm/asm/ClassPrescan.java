@@ -0,0 +1,331 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import static com.google.gwt.jvm.asm.GwtClassMunger.isOpcode;
+
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads only the constant pool and the method access flags of a class file to
+ * decide whether it needs munging at all. A class without native methods and
+ * without references to overlay types comes out of the munger unchanged, so it
+ * can be defined from its original bytes.
+ */
+public class ClassPrescan {
+
+  private static final int UTF8 = 1;
+  private static final int INT = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STR = 8;
+  private static final int FIELD = 9;
+  private static final int METH = 10;
+  private static final int IMETH = 11;
+  private static final int NAME_TYPE = 12;
+  private static final int HANDLE = 15;
+  private static final int MTYPE = 16;
+  private static final int CONDY = 17;
+  private static final int INDY = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  private final byte[] b;
+  private final int[] utf8Offsets;
+  private final int[] classNameIndexes;
+  private final int[] classEntries; // name index of each class entry, by constant pool index.
+  private int classCount;
+  private final int header;
+
+  private ClassPrescan(byte[] b) {
+    this.b = b;
+    int count = readUnsignedShort(8);
+    utf8Offsets = new int[count];
+    classNameIndexes = new int[count];
+    classEntries = new int[count];
+    int index = 10;
+    for (int i = 1; i < count; i++) {
+      int tag = b[index];
+      switch (tag) {
+        case UTF8:
+          utf8Offsets[i] = index + 1;
+          index += 3 + readUnsignedShort(index + 1);
+          break;
+        case CLASS:
+          classEntries[i] = readUnsignedShort(index + 1);
+          classNameIndexes[classCount++] = classEntries[i];
+          index += 3;
+          break;
+        case STR:
+        case MTYPE:
+        case MODULE:
+        case PACKAGE:
+          index += 3;
+          break;
+        case HANDLE:
+          index += 4;
+          break;
+        case INT:
+        case FLOAT:
+        case FIELD:
+        case METH:
+        case IMETH:
+        case NAME_TYPE:
+        case CONDY:
+        case INDY:
+          index += 5;
+          break;
+        case LONG:
+        case DOUBLE:
+          index += 9;
+          i++;
+          break;
+        default:
+          throw new IllegalStateException("Unknown constant pool tag " + tag);
+      }
+    }
+    header = index;
+  }
+
+  /**
+   * @return The prescan of a class, to ask several of the questions below of
+   *   a single pass over its constant pool.
+   */
+  public static ClassPrescan of(byte[] classBytes) {
+    return new ClassPrescan(classBytes);
+  }
+
+  /**
+   * @return true if the class declares native methods or references any overlay
+   *   type as an owner of a method, field or type instruction.
+   */
+  public static boolean needsMunging(byte[] classBytes, OverlayTypePredicate overlayTypes) {
+    return of(classBytes).needsMunging(overlayTypes);
+  }
+
+  /** See {@link #needsMunging(byte[], OverlayTypePredicate)}. */
+  public boolean needsMunging(OverlayTypePredicate overlayTypes) {
+    return hasNativeMethods() || referencesOverlayTypes(overlayTypes);
+  }
+
+  /**
+   * @return true if the class declares native instance methods.
+   */
+  public static boolean hasInstanceNatives(byte[] classBytes) {
+    return of(classBytes).hasInstanceNatives();
+  }
+
+  /** See {@link #hasInstanceNatives(byte[])}. */
+  public boolean hasInstanceNatives() {
+    return hasMethods(Opcodes.ACC_NATIVE, Opcodes.ACC_STATIC);
+  }
+
+  /**
+   * @return Internal name of the superclass, null for java/lang/Object.
+   */
+  public static String superName(byte[] classBytes) {
+    ClassPrescan prescan = new ClassPrescan(classBytes);
+    int superClass = prescan.readUnsignedShort(prescan.header + 4);
+    if (superClass == 0) {
+      return null;
+    }
+    int offset = prescan.utf8Offsets[prescan.classEntries[superClass]];
+    return prescan.readUTF8(offset, new char[prescan.readUnsignedShort(offset)]);
+  }
+
+  /**
+   * Reads a class file only up to its superclass, i.e. through the constant pool.
+   * @return Internal name of the superclass, null for java/lang/Object.
+   * @throws IOException if the stream ends early or is not a class file.
+   */
+  public static String superName(InputStream classFile) throws IOException {
+    DataInputStream in = new DataInputStream(classFile);
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("Not a class file");
+    }
+    in.readInt(); // minor and major version
+    int count = in.readUnsignedShort();
+    // utf8 entries are kept undecoded, with their length, until one is needed.
+    byte[][] utf8Entries = new byte[count][];
+    int[] classEntries = new int[count];
+    byte[] skipped = new byte[8];
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case UTF8:
+          int length = in.readUnsignedShort();
+          utf8Entries[i] = new byte[2 + length];
+          utf8Entries[i][0] = (byte) (length >> 8);
+          utf8Entries[i][1] = (byte) length;
+          in.readFully(utf8Entries[i], 2, length);
+          break;
+        case CLASS:
+          classEntries[i] = in.readUnsignedShort();
+          break;
+        case STR:
+        case MTYPE:
+        case MODULE:
+        case PACKAGE:
+          in.readFully(skipped, 0, 2);
+          break;
+        case HANDLE:
+          in.readFully(skipped, 0, 3);
+          break;
+        case INT:
+        case FLOAT:
+        case FIELD:
+        case METH:
+        case IMETH:
+        case NAME_TYPE:
+        case CONDY:
+        case INDY:
+          in.readFully(skipped, 0, 4);
+          break;
+        case LONG:
+        case DOUBLE:
+          in.readFully(skipped, 0, 8);
+          i++;
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    in.readInt(); // access and this class
+    int superClass = in.readUnsignedShort();
+    if (superClass == 0) {
+      return null;
+    }
+    if (superClass >= count || classEntries[superClass] >= count
+        || utf8Entries[classEntries[superClass]] == null) {
+      throw new IOException("Bad superclass index " + superClass);
+    }
+    return new DataInputStream(new ByteArrayInputStream(
+        utf8Entries[classEntries[superClass]])).readUTF();
+  }
+
+  /**
+   * @return Internal names of the classes referenced from the constant pool,
+   *   leaving out array types.
+   */
+  public static List<String> referencedClasses(byte[] classBytes) {
+    ClassPrescan prescan = new ClassPrescan(classBytes);
+    List<String> classes = new ArrayList<String>(prescan.classCount);
+    char[] buf = new char[64];
+    for (int i = 0; i < prescan.classCount; i++) {
+      int offset = prescan.utf8Offsets[prescan.classNameIndexes[i]];
+      if (classBytes[offset + 2] != '[') {
+        if (buf.length < prescan.readUnsignedShort(offset)) {
+          buf = new char[prescan.readUnsignedShort(offset)];
+        }
+        classes.add(prescan.readUTF8(offset, buf));
+      }
+    }
+    return classes;
+  }
+
+  boolean referencesOverlayTypes(OverlayTypePredicate overlayTypes) {
+    char[] buf = new char[64];
+    for (int i = 0; i < classCount; i++) {
+      int offset = utf8Offsets[classNameIndexes[i]];
+      if (b[offset + 2] == '[') {
+        // array types are never rewritten.
+        continue;
+      }
+      if (buf.length < readUnsignedShort(offset)) {
+        buf = new char[readUnsignedShort(offset)];
+      }
+      if (overlayTypes.isOverlayDesc(readUTF8(offset, buf))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean hasNativeMethods() {
+    return hasMethods(Opcodes.ACC_NATIVE, 0);
+  }
+
+  /**
+   * @return true if a method has all the required and none of the excluded access flags.
+   */
+  private boolean hasMethods(int required, int excluded) {
+    // skip access, this, super and the interfaces
+    int index = header + 6;
+    index += 2 + 2 * readUnsignedShort(index);
+    // skip the fields
+    int fieldCount = readUnsignedShort(index);
+    index += 2;
+    for (int i = 0; i < fieldCount; i++) {
+      index = skipMember(index);
+    }
+    int methodCount = readUnsignedShort(index);
+    index += 2;
+    for (int i = 0; i < methodCount; i++) {
+      int access = readUnsignedShort(index);
+      if (isOpcode(access, required) && (access & excluded) == 0) {
+        return true;
+      }
+      index = skipMember(index);
+    }
+    return false;
+  }
+
+  private int skipMember(int index) {
+    int attributeCount = readUnsignedShort(index + 6);
+    index += 8;
+    for (int i = 0; i < attributeCount; i++) {
+      index += 6 + readInt(index + 2);
+    }
+    return index;
+  }
+
+  private int readUnsignedShort(int index) {
+    return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+  }
+
+  private int readInt(int index) {
+    return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16)
+        | ((b[index + 2] & 0xFF) << 8) | (b[index + 3] & 0xFF);
+  }
+
+  /** Decodes the modified UTF-8 entry at the given offset (as ClassReader does). */
+  private String readUTF8(int offset, char[] buf) {
+    int index = offset + 2;
+    int end = index + readUnsignedShort(offset);
+    int length = 0;
+    while (index < end) {
+      int c = b[index++] & 0xFF;
+      if (c < 0x80) {
+        buf[length++] = (char) c;
+      } else if (c < 0xE0) {
+        buf[length++] = (char) (((c & 0x1F) << 6) | (b[index++] & 0x3F));
+      } else {
+        buf[length++] = (char) (((c & 0x0F) << 12) | ((b[index] & 0x3F) << 6)
+            | (b[index + 1] & 0x3F));
+        index += 2;
+      }
+    }
+    return new String(buf, 0, length);
+  }
+}
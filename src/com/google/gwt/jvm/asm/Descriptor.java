@@ -19,13 +19,21 @@ import org.objectweb.asm.signature.SignatureVisitor;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Parser/Convertor for JVM descriptors in form Ljava/lang/Object; to java.lang.Object
+ *
+ * {@link #of(String)} parses each distinct method descriptor once and shares the
+ * result between the munger and the runtime dispatch of the class loader.
  */
 public class Descriptor {
   // Descriptor-wide cache of methods, for speedup.
-  private static final ReflectionCache CACHE = new ReflectionCache();
+  private static final ReflectionCache CACHE = ReflectionCache.SHARED;
+  // Parsed method descriptors, by descriptor.
+  private static final ConcurrentMap<String, Descriptor> INTERNED =
+      new ConcurrentHashMap<String, Descriptor>();
 
   private static class Visitor extends NoopSignatureVisitor {
 
@@ -83,6 +91,9 @@ public class Descriptor {
   private final String signature;
   private final String[] parameterDescs;
   private final String returnDesc;
+  private final int parameterSlots;
+  // Resolved on first use, by the class loader of Descriptor.
+  private volatile Class<?>[] parameters;
 
   public Descriptor(String signature) {
     this.signature = signature;
@@ -90,14 +101,53 @@ public class Descriptor {
     new SignatureReader(signature).accept(visitor);
     parameterDescs = visitor.getParameters();
     returnDesc = visitor.getReturnType();
+    int slots = 0;
+    for (String parameterDesc : parameterDescs) {
+      slots += slotSize(parameterDesc);
+    }
+    parameterSlots = slots;
+  }
+
+  /**
+   * @return The shared, parsed form of the given method descriptor.
+   */
+  public static Descriptor of(String signature) {
+    Descriptor descriptor = INTERNED.get(signature);
+    if (descriptor == null) {
+      descriptor = new Descriptor(signature);
+      Descriptor existing = INTERNED.putIfAbsent(signature, descriptor);
+      if (existing != null) {
+        descriptor = existing;
+      }
+    }
+    return descriptor;
   }
 
   public Class<?>[] getParameters() {
-    Class<?>[] classes = new Class<?>[parameterDescs.length];
-    for (int i = 0; i < parameterDescs.length; i++) {
-      classes[i] = toClass(parameterDescs[i]);
+    Class<?>[] classes = parameters;
+    if (classes == null) {
+      classes = new Class<?>[parameterDescs.length];
+      for (int i = 0; i < parameterDescs.length; i++) {
+        classes[i] = toClass(parameterDescs[i]);
+      }
+      parameters = classes;
     }
-    return classes;
+    return classes.clone();
+  }
+
+  /**
+   * @return Number of local variable slots the parameters take.
+   */
+  public int getParameterSlots() {
+    return parameterSlots;
+  }
+
+  /**
+   * @return The first character of the return descriptor, with 'L' standing
+   *   for arrays as well.
+   */
+  public char getReturnKind() {
+    return returnDesc.charAt(0);
   }
 
   public String getMethodDesc() {
@@ -108,6 +158,9 @@ public class Descriptor {
     return returnDesc;
   }
 
+  /**
+   * @return The parameter descriptors, which must not be modified.
+   */
   public String[] getParameterDescs() {
     return parameterDescs;
   }
@@ -179,6 +232,14 @@ public class Descriptor {
     }
   }
 
+  /**
+   * @return Number of local variable slots a value of the given type takes.
+   */
+  public static int slotSize(String descriptor) {
+    char kind = descriptor.charAt(0);
+    return kind == 'J' || kind == 'D' ? 2 : 1;
+  }
+
   private static String inlineDesc(String descriptor) {
     return descriptor.length() == 1 ? descriptor : "L" + descriptor + ";";
   }
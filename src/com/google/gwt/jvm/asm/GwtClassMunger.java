@@ -17,6 +17,10 @@ package com.google.gwt.jvm.asm;
 import static com.google.gwt.jvm.asm.Descriptor.toDesc;
 
 import com.google.gwt.jvm.Bucket;
+import com.google.gwt.jvm.ClassLoadingMetrics;
+import com.google.gwt.jvm.ClassResourceNotFoundException;
+import com.google.gwt.jvm.ClassLoadingMetrics.MungeKind;
+import com.google.gwt.jvm.MungedClassCache;
 import com.google.gwt.jvm.ResourceLoader;
 
 import org.objectweb.asm.ClassReader;
@@ -25,26 +29,41 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main controller which decides which classes should be munged for native methods and OverlayTypes.
  */
-public class GwtClassMunger implements OverlayTypePredicate {
+public class GwtClassMunger implements OverlayTypePredicate, StaticNativeBinder {
 
   public static class ClassMeta {
 
+    private final int access;
     private final String superClass;
     private final String[] interfaces;
-    private final Set<String> methods;
+    private final Map<String, Integer> methods;
 
-    public ClassMeta(String superClass, String[] interfaces, Set<String> methods) {
+    public ClassMeta(int access, String superClass, String[] interfaces,
+        Map<String, Integer> methods) {
+      this.access = access;
       this.superClass = superClass;
       this.interfaces = interfaces;
       this.methods = methods;
     }
 
+    public int getAccess() {
+      return access;
+    }
+
     public String getSuperClass() {
       return superClass;
     }
@@ -54,87 +73,402 @@ public class GwtClassMunger implements OverlayTypePredicate {
     }
 
     public boolean hasMethod(String methodName, String desc) {
-      return methods.contains(methodName + desc);
+      return methods.containsKey(methodName + desc);
+    }
+
+    /**
+     * @return Access flags of the declared method, or -1 if there is no such method.
+     */
+    public int getMethodAccess(String methodName, String desc) {
+      Integer methodAccess = methods.get(methodName + desc);
+      return methodAccess == null ? -1 : methodAccess;
     }
 
   }
 
+  /**
+   * Identifies the output of the munger. Bump whenever the generated bytecode
+   * changes so that persisted munged classes get invalidated.
+   */
+  public static final String VERSION = "4";
+
   public static final String JAVA_JS_OBJECT = "com/google/gwt/jvm/JavaJSObject";
   public static final String GWT_JAVA_SCRIPT_OBJECT = "com/google/gwt/core/client/JavaScriptObject";
+  /** Prefix of the JavaJSObject subclasses generated per overlay family. */
+  public static final String JAVA_JS_OBJECT_FAMILY = JAVA_JS_OBJECT + "$$";
+  /** The family of the wrappers of delegates not in any other family. */
+  public static final String JAVA_JS_OBJECT_OVERLAYS = JAVA_JS_OBJECT_FAMILY + "Overlays";
   private final ResourceLoader resourceLoader;
   private Set<String> overlayTypes;
 
+  private final ClassLoadingMetrics metrics;
+
+  // Hierarchy index, filled lazily as overlay call sites get rewritten.
+  private final ConcurrentMap<String, ClassMeta> classMetas =
+      new ConcurrentHashMap<String, ClassMeta>();
+  private final ConcurrentMap<String, String> implementingClasses =
+      new ConcurrentHashMap<String, String>();
+  private final AtomicInteger indexLookups = new AtomicInteger();
+  private final AtomicInteger indexHits = new AtomicInteger();
+
+  // Static natives of these classes call their mock directly, internal names.
+  private volatile Map<String, String> staticDelegates = Collections.emptyMap();
+  private volatile boolean nativeCallSites;
+  // Overlay types wrappers get cast to, by family class. Null unless specialized.
+  private volatile Map<String, Set<String>> javaJSObjectFamilies;
+  // Computed on first use, cleared whenever a setting it covers changes.
+  private volatile String mungingStamp;
+
   public GwtClassMunger(ResourceLoader resourceLoader, Set<String> overlayTypes) {
+    this(resourceLoader, overlayTypes, new ClassLoadingMetrics());
+  }
+
+  public GwtClassMunger(ResourceLoader resourceLoader, Set<String> overlayTypes,
+      ClassLoadingMetrics metrics) {
     this.resourceLoader = resourceLoader;
     this.overlayTypes = overlayTypes;
+    this.metrics = metrics;
   }
 
   public byte[] getJavaJSObject() {
-    ClassWriter classWriter = new ClassWriter(0);
+    Set<String> interfaces = overlayTypes;
+    if (javaJSObjectFamilies != null) {
+      // the overlay interfaces go to the family subclasses instead.
+      interfaces = new TreeSet<String>();
+      interfaces.add(GWT_JAVA_SCRIPT_OBJECT);
+      interfaces.add(JAVA_JS_OBJECT + "$Specialized");
+    }
     ClassReader reader = new ClassReader(resourceLoader.loadBytes(JAVA_JS_OBJECT + ".class"));
-    reader.accept(new AddAllInterfacesVisitor(classWriter, overlayTypes), 0);
+    ClassWriter classWriter = new ClassWriter(reader, 0);
+    reader.accept(new AddAllInterfacesVisitor(classWriter, interfaces), 0);
     return classWriter.toByteArray();
   }
 
+  /**
+   * Generates a JavaJSObject subclass implementing the overlay interfaces of
+   * one family only, see {@link #setJavaJSObjectFamilies(Map)}.
+   * @param name Binary name of the family class.
+   */
+  public byte[] getJavaJSObjectFamily(String name) {
+    String internalName = name.replace('.', '/');
+    Map<String, Set<String>> families = javaJSObjectFamilies;
+    Set<String> interfaces = families == null ? null : families.get(internalName);
+    if (interfaces == null) {
+      throw new ClassResourceNotFoundException(name);
+    }
+    ClassWriter classWriter = new ClassWriter(0);
+    classWriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+        internalName, null, JAVA_JS_OBJECT, interfaces.toArray(new String[interfaces.size()]));
+    MethodVisitor constructor =
+        classWriter.visitMethod(0, "<init>", "(Ljava/lang/Object;)V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitVarInsn(Opcodes.ALOAD, 1);
+    constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, JAVA_JS_OBJECT, "<init>",
+        "(Ljava/lang/Object;)V");
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(2, 2);
+    constructor.visitEnd();
+    classWriter.visitEnd();
+    return classWriter.toByteArray();
+  }
+
+  /**
+   * @return Name of the family class for the wrappers of the given delegate class.
+   */
+  public static String javaJSObjectFamily(String delegateClassName) {
+    return JAVA_JS_OBJECT_FAMILY + delegateClassName.replace('.', '$').replace('/', '$');
+  }
+
+  /**
+   * Munges the class in a single pass: the bytes are parsed once, run through
+   * the visitor chain for the class and written by a writer which reuses the
+   * constant pool of the reader. Classes which the munger would not change are
+   * returned as is, see {@link #needsMunging(String, byte[])}.
+   */
   public byte[] mungeBytes(String name, byte[] classBytes) {
+    return mungeBytes(name, classBytes, prescan(name, classBytes));
+  }
+
+  /**
+   * Munges the class, given its prescan as returned by {@link #prescan}.
+   */
+  public byte[] mungeBytes(String name, byte[] classBytes, ClassPrescan prescan) {
+    long start = System.nanoTime();
+    if (!needsMunging(name, prescan)) {
+      metrics.munged(name, MungeKind.UNMODIFIED, System.nanoTime() - start, classBytes.length,
+          classBytes.length);
+      return classBytes;
+    }
+    ClassReader reader = new ClassReader(classBytes);
+    ClassWriter classWriter = new ClassWriter(reader, 0);
+    reader.accept(mungingVisitor(name, prescan, classWriter), 0);
+    byte[] mungedBytes = classWriter.toByteArray();
+    metrics.munged(name, mungeKind(name), System.nanoTime() - start, classBytes.length,
+        mungedBytes.length);
+    return mungedBytes;
+  }
+
+  private MungeKind mungeKind(String name) {
     if (name.endsWith("$")) {
-      String nameNo$ = GwtClassMunger.chop$(name);
-      // TODO: we should be able to chain the delegates instead of chaining the byte arrays.
-      return translateClass$InstanceToStaticMethods(translateNativeMethodsToDispatch(classBytes));
+      return MungeKind.DOLLAR;
     } else if (isOverlayDesc(toDesc(name))) {
-      return translateClassToInterface(classBytes);
+      return MungeKind.INTERFACE;
     } else {
-      return translateNativeMethodsToDispatch(classBytes);
+      return MungeKind.NATIVE_DISPATCH;
     }
   }
-  
-  public byte[] munge(String name) {
-    String resourceName = name;
+
+  /**
+   * Decides from the constant pool and the method access flags alone whether
+   * the visitor chain would change the class.
+   */
+  public boolean needsMunging(String name, byte[] classBytes) {
+    return needsMunging(name, prescan(name, classBytes));
+  }
+
+  /** See {@link #needsMunging(String, byte[])}, given the prescan of the class. */
+  public boolean needsMunging(String name, ClassPrescan prescan) {
+    return prescan == null || prescan.needsMunging(this);
+  }
+
+  /**
+   * @return The prescan of the class, which the munging decisions share, or
+   *   null if its name alone decides how it is munged ($ and overlay classes).
+   */
+  public ClassPrescan prescan(String name, byte[] classBytes) {
+    if (name.endsWith("$") || isOverlayDesc(toDesc(name))) {
+      return null;
+    }
+    return ClassPrescan.of(classBytes);
+  }
+
+  /**
+   * @return Number of classes run through the visitor chain.
+   */
+  public int getMungedClassCount() {
+    return metrics.getNativeDispatchClasses() + metrics.getDollarClasses()
+        + metrics.getInterfaceClasses();
+  }
+
+  /**
+   * @return Number of classes which took the fast path and kept their original bytes.
+   */
+  public int getUnmodifiedClassCount() {
+    return metrics.getUnmodifiedClasses();
+  }
+
+  public ClassLoadingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Builds the visitor chain which munges the given class into the given visitor.
+   * Classes declaring instance natives get to implement DelegateHolder.
+   */
+  public ClassVisitor mungingVisitor(String name, byte[] classBytes, ClassVisitor visitor) {
+    return mungingVisitor(name, prescan(name, classBytes), visitor);
+  }
+
+  private ClassVisitor mungingVisitor(String name, ClassPrescan prescan, ClassVisitor visitor) {
     if (name.endsWith("$")) {
-      resourceName = GwtClassMunger.chop$(name);
+      // Overlay type implementation: dispatch the natives, then turn the
+      // instance methods into static ones on the OverlayType$ class.
+      return new NativeMethodDispatchVisitor(new ClassDollarVistor(visitor, this), this, this,
+          nativeCallSites);
+    } else if (isOverlayDesc(toDesc(name))) {
+      return new Class2InterfaceVistor(visitor);
+    } else {
+      return new NativeMethodDispatchVisitor(visitor, this, this, nativeCallSites,
+          prescan.hasInstanceNatives());
+    }
+  }
+
+  /**
+   * Sets whether natives munged from now on dispatch through a NativeCallSite,
+   * linked to the mock method once, instead of resolving the mock reflectively
+   * on every call. Natives bound to a static delegate are called directly either
+   * way, guarded by a DispatchSite.
+   */
+  public void setNativeCallSites(boolean nativeCallSites) {
+    this.nativeCallSites = nativeCallSites;
+    mungingStamp = null;
+  }
+
+  /**
+   * Specializes JavaJSObject: instead of one class implementing every overlay
+   * interface, wrappers of the given delegate classes (and their subclasses)
+   * implement only the overlay types of their family, i.e. the given roots and
+   * the overlay types extending them. Wrappers of other delegates implement all
+   * overlay types, as before. Takes effect for JavaJSObject munged from now on.
+   * @param families Delegate class names to the overlay types they get cast to.
+   */
+  public void setJavaJSObjectFamilies(Map<String, Set<String>> families) {
+    Map<String, Set<String>> classes = new HashMap<String, Set<String>>();
+    for (Map.Entry<String, Set<String>> family : families.entrySet()) {
+      Set<String> interfaces = new TreeSet<String>();
+      interfaces.add(GWT_JAVA_SCRIPT_OBJECT);
+      for (String overlayType : overlayTypes) {
+        for (String type = overlayType; type != null && overlayTypes.contains(type);
+            type = overlaySuperName(type)) {
+          if (family.getValue().contains(type)) {
+            interfaces.add(overlayType);
+            break;
+          }
+        }
+      }
+      classes.put(javaJSObjectFamily(family.getKey()), interfaces);
     }
-    byte[] classBytes = resourceLoader.loadClassBytes(resourceName);
+    classes.put(JAVA_JS_OBJECT_OVERLAYS, overlayTypes);
+    javaJSObjectFamilies = classes;
+    mungingStamp = null;
+  }
+
+  private String overlaySuperName(String overlayType) {
+    byte[] classBytes = resourceLoader.loadBytes(overlayType + ".class");
+    return classBytes == null ? null : ClassPrescan.superName(classBytes);
+  }
+
+  /**
+   * Sets the table of GWT classes whose static natives are bound to the static
+   * methods of their mock when munged. Natives without a matching accessible
+   * static mock method, and classes munged before, keep dispatching at runtime.
+   * So do bound natives while the current GwtNativeDispatch maps them to
+   * another mock, e.g. a fake a test registered with setGWTDelegate.
+   * @param delegates GWT class names to mock class names.
+   */
+  public void setStaticDelegates(Map<String, String> delegates) {
+    Map<String, String> internalNames = new TreeMap<String, String>();
+    for (Map.Entry<String, String> entry : delegates.entrySet()) {
+      internalNames.put(entry.getKey().replace('.', '/'), entry.getValue().replace('.', '/'));
+    }
+    staticDelegates = internalNames;
+    mungingStamp = null;
+  }
+
+  public String getStaticDelegate(String className, String methodName, String desc) {
+    String mockClass = staticDelegates.get(className);
+    if (mockClass == null) {
+      return null;
+    }
+    for (String owner = mockClass; owner != null; owner = classMeta(owner).getSuperClass()) {
+      ClassMeta meta = classMeta(owner);
+      int access = meta.getMethodAccess(methodName, desc);
+      if (access == -1) {
+        continue;
+      }
+      if (!isStatic(access) || isOpcode(access, Opcodes.ACC_PRIVATE)) {
+        return null;
+      }
+      boolean isPublic = isOpcode(access, Opcodes.ACC_PUBLIC)
+          && isOpcode(meta.getAccess(), Opcodes.ACC_PUBLIC);
+      if (isPublic || internalPackageName(owner).equals(internalPackageName(className))) {
+        return owner;
+      }
+      return null;
+    }
+    return null;
+  }
+  
+  public byte[] munge(String name) {
+    byte[] classBytes = resourceLoader.loadClassBytes(resourceName(name));
 
     return mungeBytes(name, classBytes);
   }
 
-  private byte[] translateClassToInterface(byte[] classBytes) {
-    ClassWriter classWriter = new ClassWriter(0);
-    Class2InterfaceVistor visitor = new Class2InterfaceVistor(classWriter);
-    new ClassReader(classBytes).accept(visitor, 0);
-    return classWriter.toByteArray();
+  /**
+   * Returns a digest of everything besides the class bytes which influences the
+   * munged output: the munger version, the overlay types, the bytecode of the
+   * overlay types (their methods are looked up when rewriting call sites), the
+   * static delegates and the bytecode of their mocks and superclasses, the
+   * JavaJSObject families and the way natives are dispatched. Recomputed after
+   * any of the settings changes.
+   */
+  public String getMungingStamp() {
+    String stamp = mungingStamp;
+    if (stamp == null) {
+      stamp = computeMungingStamp();
+      mungingStamp = stamp;
+    }
+    return stamp;
   }
 
-  private byte[] translateClass$InstanceToStaticMethods(byte[] classBytes) {
-    ClassWriter classWriter = new ClassWriter(0);
-    ClassVisitor visitor = classWriter;
-    // visitor = new NativeMethodDispatchVisitor(visitor, this);
-    visitor = new ClassDollarVistor(visitor, this);
-    new ClassReader(classBytes).accept(visitor, 0);
-    return classWriter.toByteArray();
+  private String computeMungingStamp() {
+    MessageDigest digest = MungedClassCache.newDigest();
+    digest.update(MungedClassCache.utf8(VERSION));
+    for (String overlayType : new TreeSet<String>(overlayTypes)) {
+      digest.update(MungedClassCache.utf8(overlayType));
+      byte[] overlayBytes = resourceLoader.loadBytes(overlayType + ".class");
+      if (overlayBytes != null) {
+        digest.update(overlayBytes);
+      }
+    }
+    for (Map.Entry<String, String> entry : staticDelegates.entrySet()) {
+      digest.update(MungedClassCache.utf8(entry.getKey() + "=" + entry.getValue()));
+      // the natives get bound to methods of the mock or of its superclasses.
+      for (String owner = entry.getValue(); owner != null && !owner.equals("java/lang/Object");) {
+        byte[] ownerBytes = resourceLoader.loadBytes(owner + ".class");
+        if (ownerBytes == null) {
+          break;
+        }
+        digest.update(ownerBytes);
+        owner = ClassPrescan.superName(ownerBytes);
+      }
+    }
+    Map<String, Set<String>> families = javaJSObjectFamilies;
+    if (families != null) {
+      for (Map.Entry<String, Set<String>> family
+          : new TreeMap<String, Set<String>>(families).entrySet()) {
+        digest.update(MungedClassCache.utf8(family.getKey() + "="
+            + new TreeSet<String>(family.getValue())));
+      }
+    }
+    if (nativeCallSites) {
+      digest.update(MungedClassCache.utf8("nativeCallSites"));
+    }
+    return MungedClassCache.hex(digest.digest());
   }
 
-  private byte[] translateNativeMethodsToDispatch(byte[] classBytes) {
-    ClassWriter classWriter = new ClassWriter(0);
-    NativeMethodDispatchVisitor visitor = new NativeMethodDispatchVisitor(classWriter, this);
-    new ClassReader(classBytes).accept(visitor, 0);
-    return classWriter.toByteArray();
+  /**
+   * Name of the class whose bytes get munged into the given class.
+   */
+  public static String resourceName(String name) {
+    return name.endsWith("$") ? chop$(name) : name;
   }
 
   public boolean isOverlayDesc(String name) {
     return overlayTypes.contains(name);
   }
 
+  /**
+   * Returns the hierarchy and methods of the given class, parsing the class only
+   * the first time it is asked for.
+   */
   public ClassMeta classMeta(String name) {
+    String internalName = name.replace('.', '/');
+    ClassMeta meta = classMetas.get(internalName);
+    if (meta == null) {
+      meta = readClassMeta(name);
+      ClassMeta existing = classMetas.putIfAbsent(internalName, meta);
+      if (existing != null) {
+        meta = existing;
+      }
+    }
+    return meta;
+  }
+
+  private ClassMeta readClassMeta(String name) {
     byte[] classBytes = resourceLoader.loadClassBytes(name);
     ClassReader reader = new ClassReader(classBytes);
+    final Bucket<Integer> classAccess = new Bucket<Integer>();
     final Bucket<String> superClassName = new Bucket<String>();
     final Bucket<String[]> interfaceNames = new Bucket<String[]>();
-    final Set<String> methods = new TreeSet<String>();
+    final Map<String, Integer> methods = new HashMap<String, Integer>();
     NoopClassVisitor classMetaVisitor = new NoopClassVisitor() {
       @Override
       public void visit(int version, int access, String name, String signature, String superName,
           String[] interfaces) {
+        classAccess.set(access);
         superClassName.set(superName);
         String[] javaInterfaces = new String[interfaces.length];
         for (int i = 0; i < interfaces.length; i++) {
@@ -146,15 +480,28 @@ public class GwtClassMunger implements OverlayTypePredicate {
       @Override
       public MethodVisitor visitMethod(int access, String name, String desc, String signature,
           String[] exceptions) {
-        methods.add(name + desc);
+        methods.put(name + desc, access);
         return null;
       }
     };
     reader.accept(classMetaVisitor, 0);
-    return new ClassMeta(superClassName.get(), interfaceNames.get(), methods);
+    return new ClassMeta(classAccess.get(), superClassName.get(), interfaceNames.get(), methods);
   }
 
   public String getImplementingClass(String clazz, String methodName, String desc) {
+    indexLookups.incrementAndGet();
+    String key = clazz + '.' + methodName + desc;
+    String implementingClass = implementingClasses.get(key);
+    if (implementingClass != null) {
+      indexHits.incrementAndGet();
+      return implementingClass;
+    }
+    implementingClass = findImplementingClass(clazz, methodName, desc);
+    implementingClasses.put(key, implementingClass);
+    return implementingClass;
+  }
+
+  private String findImplementingClass(String clazz, String methodName, String desc) {
     do {
       ClassMeta meta = classMeta(clazz);
       if (meta.hasMethod(methodName, desc)) {
@@ -165,6 +512,27 @@ public class GwtClassMunger implements OverlayTypePredicate {
     throw new IllegalStateException();
   }
 
+  /**
+   * @return Number of classes in the hierarchy index.
+   */
+  public int getIndexSize() {
+    return classMetas.size();
+  }
+
+  /**
+   * @return Number of implementing class lookups.
+   */
+  public int getIndexLookups() {
+    return indexLookups.get();
+  }
+
+  /**
+   * @return Number of implementing class lookups answered without walking the hierarchy.
+   */
+  public int getIndexHits() {
+    return indexHits.get();
+  }
+
   public static String chop$(String name) {
     if (name.endsWith("$")) {
       return name.substring(0, name.length() - 1);
@@ -190,4 +558,9 @@ public class GwtClassMunger implements OverlayTypePredicate {
     return className.substring(0, index);
   }
 
+  private static String internalPackageName(String internalName) {
+    int index = internalName.lastIndexOf('/');
+    return index < 0 ? "" : internalName.substring(0, index);
+  }
+
 }
@@ -16,116 +16,214 @@ package com.google.gwt.jvm.asm;
 
 import static java.lang.reflect.Modifier.isStatic;
 
+import com.google.gwt.jvm.NativeDispatchProfiler.Profile;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Delegate which simplifies the generation of bytecodes for the GWTClassLoader.
+ *
+ * Arguments are kept in typed slots and passed to the mock method by its
+ * {@link MethodInvoker}. Delegates returned from {@link #acquire} are reused:
+ * each thread keeps one per nesting depth of native calls, which is released
+ * by the invokeReturn call, so steady state dispatch does not allocate.
  */
 public class InvocationDelegate {
 
-  private final Object delegate;
-  private final Method method;
-  private final List<Object> arguments = new ArrayList<Object>();
+  /** The pooled delegates of a thread, indexed by nesting depth. */
+  private static class Frames {
+    InvocationDelegate[] delegates = new InvocationDelegate[8];
+    int depth;
+  }
+
+  private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+    @Override
+    protected Frames initialValue() {
+      return new Frames();
+    }
+  };
+
+  private final Frames frames; // null unless pooled.
+  private Object delegate;
+  private MethodInvoker invoker;
+  private long[] primitives = new long[8];
+  private Object[] objects = new Object[8];
+  private int argumentCount;
+  private Profile profile; // null unless the invocation is profiled.
+  private long start;
+  private Class<?> mockClass;
 
   public InvocationDelegate(Object delegate, Method method) {
-    this.delegate = delegate;
-    this.method = method;
+    this(null);
+    reset(delegate, method);
+  }
+
+  private InvocationDelegate(Frames frames) {
+    this.frames = frames;
+  }
+
+  /**
+   * @return A delegate of this thread for the given method, to be released by
+   *   one of the invokeReturn methods.
+   */
+  public static InvocationDelegate acquire(Object delegate, Method method) {
+    Frames frames = FRAMES.get();
+    if (frames.depth == frames.delegates.length) {
+      frames.delegates = Arrays.copyOf(frames.delegates, frames.depth * 2);
+    }
+    InvocationDelegate invocation = frames.delegates[frames.depth];
+    if (invocation == null) {
+      invocation = new InvocationDelegate(frames);
+      frames.delegates[frames.depth] = invocation;
+    }
+    invocation.reset(delegate, method);
+    frames.depth++;
+    return invocation;
+  }
+
+  private void reset(Object delegate, Method method) {
     if (!isStatic(method.getModifiers()) && delegate == null) {
       throw new IllegalStateException();
     }
+    this.delegate = delegate;
+    this.invoker = MethodInvoker.forMethod(method);
+    this.argumentCount = 0;
+  }
+
+  /**
+   * Records the invocation in the given profile when it returns.
+   * @param start The nanoTime the native was called at.
+   */
+  public void profile(Profile profile, long start, Class<?> mockClass) {
+    this.profile = profile;
+    this.start = start;
+    this.mockClass = mockClass;
+  }
+
+  private void release() {
+    if (profile != null) {
+      profile.record(System.nanoTime() - start, mockClass, !invoker.isGenerated());
+      profile = null;
+      mockClass = null;
+    }
+    if (frames != null) {
+      Arrays.fill(objects, 0, argumentCount, null);
+      delegate = null;
+      frames.depth--;
+    }
+  }
+
+  private long invokePrimitive() throws InvocationTargetException {
+    try {
+      return invoker.invokePrimitive(delegate, primitives, objects);
+    } finally {
+      release();
+    }
   }
 
   public boolean invokeReturnZ() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Boolean) method.invoke(delegate, args());
+    return invokePrimitive() != 0;
   }
 
   public byte invokeReturnB() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Byte) method.invoke(delegate, args());
+    return (byte) invokePrimitive();
   }
 
   public short invokeReturnS() throws IllegalArgumentException, IllegalAccessException,
     InvocationTargetException {
-    return (Short) method.invoke(delegate, args());
+    return (short) invokePrimitive();
   }
   
   public char invokeReturnC() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Character) method.invoke(delegate, args());
+    return (char) invokePrimitive();
   }
 
   public int invokeReturnI() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Integer) method.invoke(delegate, args());
+    return (int) invokePrimitive();
   }
 
   public long invokeReturnJ() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Long) method.invoke(delegate, args());
+    return invokePrimitive();
   }
 
   public float invokeReturnF() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Float) method.invoke(delegate, args());
+    return Float.intBitsToFloat((int) invokePrimitive());
   }
 
   public double invokeReturnD() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return (Double) method.invoke(delegate, args());
+    return Double.longBitsToDouble(invokePrimitive());
   }
 
   public Object invokeReturnObject() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    return method.invoke(delegate, args());
+    try {
+      return invoker.invokeObject(delegate, primitives, objects);
+    } finally {
+      release();
+    }
   }
 
   public void invokeReturnV() throws IllegalArgumentException, IllegalAccessException,
       InvocationTargetException {
-    method.invoke(delegate, args());
+    invokePrimitive();
   }
 
   public void addArg(boolean arg) {
-    arguments.add(arg);
+    addPrimitive(arg ? 1 : 0);
   }
 
   public void addArg(byte arg) {
-    arguments.add(arg);
+    addPrimitive(arg);
   }
 
   public void addArg(char arg) {
-    arguments.add(arg);
+    addPrimitive(arg);
   }
 
   public void addArg(short arg) {
-    arguments.add(arg);
+    addPrimitive(arg);
   }
 
   public void addArg(int arg) {
-    arguments.add(arg);
+    addPrimitive(arg);
   }
 
   public void addArg(long arg) {
-    arguments.add(arg);
+    addPrimitive(arg);
   }
 
   public void addArg(float arg) {
-    arguments.add(arg);
+    addPrimitive(Float.floatToRawIntBits(arg));
   }
 
   public void addArg(double arg) {
-    arguments.add(arg);
+    addPrimitive(Double.doubleToRawLongBits(arg));
   }
 
   public void addArg(Object arg) {
-    arguments.add(arg);
+    ensureCapacity();
+    objects[argumentCount++] = arg;
   }
 
-  private Object[] args() {
-    return arguments.toArray();
+  private void addPrimitive(long bits) {
+    ensureCapacity();
+    primitives[argumentCount++] = bits;
+  }
+
+  private void ensureCapacity() {
+    if (argumentCount == primitives.length) {
+      primitives = Arrays.copyOf(primitives, argumentCount * 2);
+      objects = Arrays.copyOf(objects, argumentCount * 2);
+    }
   }
 
 }
@@ -0,0 +1,165 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Invokes a mock method with its arguments taken from typed slots: primitives
+ * are passed as raw long bits, references as objects, both indexed by the
+ * position of the parameter. Primitive results are returned the same way.
+ *
+ * Invokers of public methods are generated classes which call the method
+ * directly, without boxing. Other methods are invoked reflectively.
+ */
+public abstract class MethodInvoker {
+
+  // Invokers by method, kept with the declaring class so that they go away
+  // with its loader.
+  private static final ClassValue<ConcurrentMap<Method, MethodInvoker>> INVOKERS =
+      new ClassValue<ConcurrentMap<Method, MethodInvoker>>() {
+        @Override
+        protected ConcurrentMap<Method, MethodInvoker> computeValue(Class<?> type) {
+          return new ConcurrentHashMap<Method, MethodInvoker>();
+        }
+      };
+
+  Class<?> returnType;
+
+  /**
+   * @return The invoker of the given method, created on first use.
+   */
+  public static MethodInvoker forMethod(Method method) {
+    ConcurrentMap<Method, MethodInvoker> invokers = INVOKERS.get(method.getDeclaringClass());
+    MethodInvoker invoker = invokers.get(method);
+    if (invoker == null) {
+      invoker = MethodInvokerGenerator.generate(method);
+      if (invoker == null) {
+        invoker = new ReflectiveInvoker(method);
+      }
+      invoker.returnType = method.getReturnType();
+      MethodInvoker existing = invokers.putIfAbsent(method, invoker);
+      if (existing != null) {
+        invoker = existing;
+      }
+    }
+    return invoker;
+  }
+
+  /**
+   * Invokes a method returning a primitive or void.
+   * @return The raw bits of the result, 0 for void.
+   */
+  public long invokePrimitive(Object target, long[] primitives, Object[] objects)
+      throws InvocationTargetException {
+    return toBits(invokeObject(target, primitives, objects));
+  }
+
+  /**
+   * Invokes a method returning a reference, or boxes the primitive result.
+   */
+  public Object invokeObject(Object target, long[] primitives, Object[] objects)
+      throws InvocationTargetException {
+    return fromBits(returnType, invokePrimitive(target, primitives, objects));
+  }
+
+  /**
+   * @return Whether the invoker calls the method without reflection.
+   */
+  public boolean isGenerated() {
+    return true;
+  }
+
+  static long toBits(Object value) {
+    if (value instanceof Integer) {
+      return (Integer) value;
+    } else if (value instanceof Boolean) {
+      return ((Boolean) value) ? 1 : 0;
+    } else if (value instanceof Character) {
+      return (Character) value;
+    } else if (value instanceof Long) {
+      return (Long) value;
+    } else if (value instanceof Double) {
+      return Double.doubleToRawLongBits((Double) value);
+    } else if (value instanceof Float) {
+      return Float.floatToRawIntBits((Float) value);
+    } else if (value instanceof Number) {
+      // Byte and Short
+      return ((Number) value).intValue();
+    }
+    return 0;
+  }
+
+  static Object fromBits(Class<?> type, long bits) {
+    if (type == int.class) {
+      return (int) bits;
+    } else if (type == boolean.class) {
+      return bits != 0;
+    } else if (type == char.class) {
+      return (char) bits;
+    } else if (type == long.class) {
+      return bits;
+    } else if (type == double.class) {
+      return Double.longBitsToDouble(bits);
+    } else if (type == float.class) {
+      return Float.intBitsToFloat((int) bits);
+    } else if (type == byte.class) {
+      return (byte) bits;
+    } else if (type == short.class) {
+      return (short) bits;
+    }
+    return null;
+  }
+
+  /** Fallback for methods which generated code can not call. */
+  private static class ReflectiveInvoker extends MethodInvoker {
+    private final Method method;
+    private final Class<?>[] parameterTypes;
+
+    ReflectiveInvoker(Method method) {
+      this.method = method;
+      this.parameterTypes = method.getParameterTypes();
+    }
+
+    @Override
+    public long invokePrimitive(Object target, long[] primitives, Object[] objects)
+        throws InvocationTargetException {
+      return toBits(invokeObject(target, primitives, objects));
+    }
+
+    @Override
+    public Object invokeObject(Object target, long[] primitives, Object[] objects)
+        throws InvocationTargetException {
+      Object[] args = new Object[parameterTypes.length];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = parameterTypes[i].isPrimitive() ? fromBits(parameterTypes[i], primitives[i])
+            : objects[i];
+      }
+      try {
+        return method.invoke(target, args);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public boolean isGenerated() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates {@link MethodInvoker}s which call a method directly. The invokers
+ * are defined by a child of the loader of the method's class, kept with that
+ * class so that nothing outside its loader refers to them.
+ */
+class MethodInvokerGenerator {
+
+  private static final String INVOKER = MethodInvoker.class.getName().replace('.', '/');
+  private static final String INVOKE_DESC = "(Ljava/lang/Object;[J[Ljava/lang/Object;)";
+  private static final String INVOCATION_TARGET_EXCEPTION =
+      "java/lang/reflect/InvocationTargetException";
+  private static final String ILLEGAL_ARGUMENT_EXCEPTION = "java/lang/IllegalArgumentException";
+
+  private static final AtomicInteger counter = new AtomicInteger();
+  // The loader of the invokers, by the class declaring their methods.
+  private static final ClassValue<InvokerLoader> loaders = new ClassValue<InvokerLoader>() {
+    @Override
+    protected InvokerLoader computeValue(Class<?> owner) {
+      return new InvokerLoader(owner.getClassLoader());
+    }
+  };
+
+  private static class InvokerLoader extends ClassLoader {
+    InvokerLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * @return An invoker calling the given method directly, or null if generated
+   *   code can not access the method or its parameter types.
+   */
+  static MethodInvoker generate(Method method) {
+    Class<?> owner = method.getDeclaringClass();
+    ClassLoader loader = owner.getClassLoader();
+    if (loader == null || !isAccessible(method)) {
+      return null;
+    }
+    try {
+      if (Class.forName(MethodInvoker.class.getName(), false, loader) != MethodInvoker.class) {
+        // The generated class would extend another MethodInvoker.
+        return null;
+      }
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    String name = INVOKER + "$" + counter.incrementAndGet();
+    byte[] bytes = generate(name, method);
+    try {
+      Class<?> invokerClass = loaders.get(owner).define(name.replace('/', '.'), bytes);
+      return (MethodInvoker) invokerClass.getDeclaredConstructor().newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (NoSuchMethodException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static boolean isAccessible(Method method) {
+    Class<?> owner = method.getDeclaringClass();
+    if (!Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(owner.getModifiers())
+        || owner.isInterface()) {
+      return false;
+    }
+    for (Class<?> parameter : method.getParameterTypes()) {
+      while (parameter.isArray()) {
+        parameter = parameter.getComponentType();
+      }
+      if (!parameter.isPrimitive() && !Modifier.isPublic(parameter.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] generate(String name, Method method) {
+    // Version 1.5 class files do not need stack map frames.
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+        name, null, INVOKER, null);
+
+    MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null,
+        null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, INVOKER, "<init>", "()V");
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    Class<?> returnType = method.getReturnType();
+    boolean isPrimitive = returnType.isPrimitive();
+    MethodVisitor invoke = writer.visitMethod(Opcodes.ACC_PUBLIC,
+        isPrimitive ? "invokePrimitive" : "invokeObject",
+        INVOKE_DESC + (isPrimitive ? "J" : "Ljava/lang/Object;"), null,
+        new String[] {INVOCATION_TARGET_EXCEPTION});
+    invoke.visitCode();
+    // Like Method.invoke, arguments of the wrong type are an
+    // IllegalArgumentException; only what the call throws is wrapped.
+    Label castStart = new Label();
+    Label castEnd = new Label();
+    Label castHandler = new Label();
+    Label start = new Label();
+    Label end = new Label();
+    Label handler = new Label();
+    invoke.visitTryCatchBlock(castStart, castEnd, castHandler, "java/lang/ClassCastException");
+    invoke.visitTryCatchBlock(start, end, handler, "java/lang/Throwable");
+    invoke.visitLabel(castStart);
+    String owner = internalName(method.getDeclaringClass());
+    boolean isStatic = Modifier.isStatic(method.getModifiers());
+    if (!isStatic) {
+      invoke.visitVarInsn(Opcodes.ALOAD, 1);
+      invoke.visitTypeInsn(Opcodes.CHECKCAST, owner);
+    }
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    for (int i = 0; i < parameterTypes.length; i++) {
+      loadArgument(invoke, parameterTypes[i], i);
+    }
+    invoke.visitLabel(castEnd);
+    invoke.visitLabel(start);
+    invoke.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKEVIRTUAL, owner,
+        method.getName(), org.objectweb.asm.Type.getMethodDescriptor(method));
+    invoke.visitLabel(end);
+    returnResult(invoke, returnType);
+    invoke.visitLabel(castHandler);
+    invoke.visitVarInsn(Opcodes.ASTORE, 4);
+    invoke.visitTypeInsn(Opcodes.NEW, ILLEGAL_ARGUMENT_EXCEPTION);
+    invoke.visitInsn(Opcodes.DUP);
+    invoke.visitLdcInsn("argument type mismatch");
+    invoke.visitVarInsn(Opcodes.ALOAD, 4);
+    invoke.visitMethodInsn(Opcodes.INVOKESPECIAL, ILLEGAL_ARGUMENT_EXCEPTION, "<init>",
+        "(Ljava/lang/String;Ljava/lang/Throwable;)V");
+    invoke.visitInsn(Opcodes.ATHROW);
+    invoke.visitLabel(handler);
+    invoke.visitVarInsn(Opcodes.ASTORE, 4);
+    invoke.visitTypeInsn(Opcodes.NEW, INVOCATION_TARGET_EXCEPTION);
+    invoke.visitInsn(Opcodes.DUP);
+    invoke.visitVarInsn(Opcodes.ALOAD, 4);
+    invoke.visitMethodInsn(Opcodes.INVOKESPECIAL, INVOCATION_TARGET_EXCEPTION, "<init>",
+        "(Ljava/lang/Throwable;)V");
+    invoke.visitInsn(Opcodes.ATHROW);
+    invoke.visitMaxs(0, 0);
+    invoke.visitEnd();
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static void loadArgument(MethodVisitor invoke, Class<?> type, int index) {
+    if (type.isPrimitive()) {
+      invoke.visitVarInsn(Opcodes.ALOAD, 2);
+      pushInt(invoke, index);
+      invoke.visitInsn(Opcodes.LALOAD);
+      if (type == long.class) {
+        return;
+      } else if (type == double.class) {
+        invoke.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Double", "longBitsToDouble",
+            "(J)D");
+      } else {
+        invoke.visitInsn(Opcodes.L2I);
+        if (type == float.class) {
+          invoke.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat",
+              "(I)F");
+        }
+      }
+    } else {
+      invoke.visitVarInsn(Opcodes.ALOAD, 3);
+      pushInt(invoke, index);
+      invoke.visitInsn(Opcodes.AALOAD);
+      if (type != Object.class) {
+        invoke.visitTypeInsn(Opcodes.CHECKCAST, internalName(type));
+      }
+    }
+  }
+
+  private static void returnResult(MethodVisitor invoke, Class<?> type) {
+    if (!type.isPrimitive()) {
+      invoke.visitInsn(Opcodes.ARETURN);
+      return;
+    }
+    if (type == void.class) {
+      invoke.visitInsn(Opcodes.LCONST_0);
+    } else if (type == double.class) {
+      invoke.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits",
+          "(D)J");
+    } else if (type == float.class) {
+      invoke.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Float", "floatToRawIntBits",
+          "(F)I");
+      invoke.visitInsn(Opcodes.I2L);
+    } else if (type != long.class) {
+      invoke.visitInsn(Opcodes.I2L);
+    }
+    invoke.visitInsn(Opcodes.LRETURN);
+  }
+
+  private static void pushInt(MethodVisitor visitor, int value) {
+    if (value <= 5) {
+      visitor.visitInsn(Opcodes.ICONST_0 + value);
+    } else if (value <= Byte.MAX_VALUE) {
+      visitor.visitIntInsn(Opcodes.BIPUSH, value);
+    } else {
+      visitor.visitIntInsn(Opcodes.SIPUSH, value);
+    }
+  }
+
+  private static String internalName(Class<?> type) {
+    return type.isArray() ? type.getName().replace('.', '/')
+        : org.objectweb.asm.Type.getInternalName(type);
+  }
+}
@@ -14,7 +14,9 @@
  */
 package com.google.gwt.jvm.asm;
 
+import com.google.gwt.jvm.DispatchSite;
 import com.google.gwt.jvm.GwtNativeDispatch;
+import com.google.gwt.jvm.NativeCallSite;
 
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.Attribute;
@@ -24,7 +26,13 @@ import org.objectweb.asm.Opcodes;
 
 /**
  * Converts a native method to regular method which delegates its invocation to
- * GwtNativeDispatch
+ * GwtNativeDispatch, or for a static native bound at munging time, calls the
+ * static mock method directly. A bound native with a dispatch site field only
+ * does so while the site says the binding holds, and dispatches otherwise.
+ * With a dispatch site field GwtNativeDispatch
+ * resolves the mock through the DispatchSite held by the field. With a call
+ * site field the invocation goes through the NativeCallSite held by the field
+ * instead of GwtNativeDispatch.
  */
 public class NativeMethodDelegatingVisitor implements MethodVisitor {
   private static final String NULL_POINTER_EXCEPTION = "java/lang/NullPointerException";
@@ -32,6 +40,13 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
   private static String InvocationDelegate = InvocationDelegate.class.getName().replace('.', '/');
 
   private static String GwtNativeDispatch = GwtNativeDispatch.class.getName().replace('.', '/');
+  private static String NativeCallSite = NativeCallSite.class.getName().replace('.', '/');
+  static final String DISPATCH_SITE = DispatchSite.class.getName().replace('.', '/');
+  private static final String GwtNativeDispatch_getSiteDelegate =
+      "(Ljava/lang/Object;L" + DISPATCH_SITE + ";)L" + InvocationDelegate + ";";
+  static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+  private static final String NativeCallSite_link =
+      "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)L" + METHOD_HANDLE + ";";
   private static final String GwtNativeDispatch_getDelegate =
       "(Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)L"
           + InvocationDelegate + ";";
@@ -41,20 +56,66 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
   private final String methodName;
   private final Descriptor descriptor;
   private final boolean isStatic;
+  private final String staticDelegate; // owner of the bound mock method, or null.
+  private final String dispatchSiteField; // static field holding the DispatchSite, or null.
+  private final String callSiteField; // static field holding the call site invoker, or null.
 
   public NativeMethodDelegatingVisitor(MethodVisitor delegate, String className, String methodName,
       Descriptor descriptor, boolean isStatic) {
+    this(delegate, className, methodName, descriptor, isStatic, null, null, null);
+  }
+
+  public NativeMethodDelegatingVisitor(MethodVisitor delegate, String className, String methodName,
+      Descriptor descriptor, boolean isStatic, String staticDelegate) {
+    this(delegate, className, methodName, descriptor, isStatic, staticDelegate, null, null);
+  }
+
+  /**
+   * At most one of dispatchSiteField and callSiteField may be set, and
+   * callSiteField not together with staticDelegate.
+   */
+  public NativeMethodDelegatingVisitor(MethodVisitor delegate, String className, String methodName,
+      Descriptor descriptor, boolean isStatic, String staticDelegate, String dispatchSiteField,
+      String callSiteField) {
     this.delegate = delegate;
     this.className = className;
     this.methodName = methodName;
     this.descriptor = descriptor;
     this.isStatic = isStatic;
+    this.staticDelegate = staticDelegate;
+    this.dispatchSiteField = dispatchSiteField;
+    this.callSiteField = callSiteField;
     //System.out.println("Native Method Delegate: " + className + "." + methodName + descriptor);
   }
 
   public void visitEnd() {
     delegate.visitCode();
 
+    int maxStack = 0;
+    if (staticDelegate != null) {
+      if (dispatchSiteField == null) {
+        invokeStaticDelegate();
+        delegate.visitMaxs(Math.max(loadParameterSlots(), 2), loadParameterSlots());
+        delegate.visitEnd();
+        return;
+      }
+      Label dispatch = new Label();
+      delegate.visitFieldInsn(Opcodes.GETSTATIC, className, dispatchSiteField,
+          "L" + DISPATCH_SITE + ";");
+      delegate.visitLdcInsn(staticDelegate);
+      delegate.visitMethodInsn(Opcodes.INVOKEVIRTUAL, DISPATCH_SITE, "isBoundTo",
+          "(Ljava/lang/String;)Z");
+      delegate.visitJumpInsn(Opcodes.IFEQ, dispatch);
+      invokeStaticDelegate();
+      delegate.visitLabel(dispatch);
+      maxStack = loadParameterSlots();
+    }
+    if (callSiteField != null) {
+      invokeCallSite();
+      delegate.visitEnd();
+      return;
+    }
+
     if (!isStatic) {
       assertThisNotNull();
     }
@@ -67,10 +128,117 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
     }
     nativeDelegate_invokeReturnObject();
 
-    delegate.visitMaxs(5, parameterCount + 1);
+    delegate.visitMaxs(Math.max(maxStack, 5), parameterCount + 1);
     delegate.visitEnd();
   }
 
+  private void invokeStaticDelegate() {
+    int parameterCount = 0;
+    for (String parameter : descriptor.getParameterDescs()) {
+      parameterCount += loadParameter(parameter, parameterCount);
+    }
+    delegate.visitMethodInsn(Opcodes.INVOKESTATIC, staticDelegate, methodName,
+        descriptor.getMethodDesc());
+    returnValue();
+  }
+
+  /** Slots taken by the parameters of the (static) native. */
+  private int loadParameterSlots() {
+    int slots = 0;
+    for (String parameter : descriptor.getParameterDescs()) {
+      slots += Descriptor.slotSize(parameter);
+    }
+    return slots;
+  }
+
+  private void invokeCallSite() {
+    if (!isStatic) {
+      assertThisNotNull();
+    }
+    delegate.visitFieldInsn(Opcodes.GETSTATIC, className, callSiteField, "L" + METHOD_HANDLE + ";");
+    int parameterCount = 0;
+    if (!isStatic) {
+      delegate.visitVarInsn(Opcodes.ALOAD, 0);
+      parameterCount++;
+    }
+    for (String parameter : descriptor.getParameterDescs()) {
+      parameterCount += loadParameter(parameter, parameterCount);
+    }
+    delegate.visitMethodInsn(Opcodes.INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+        callSiteDesc(descriptor, isStatic));
+    returnValue();
+    delegate.visitMaxs(Math.max(parameterCount + 1, 2), parameterCount);
+  }
+
+  /**
+   * Signature the call site gets invoked with, instance natives take their
+   * receiver as an Object first.
+   */
+  static String callSiteDesc(Descriptor descriptor, boolean isStatic) {
+    return isStatic ? descriptor.getMethodDesc()
+        : descriptor.toDescPrefix("java/lang/Object");
+  }
+
+  /**
+   * Initializes the call site field of a native, to be emitted into the static
+   * initializer of its class. Needs a stack of four.
+   */
+  static void initCallSite(MethodVisitor visitor, String className, String methodName,
+      String desc, boolean isStatic, String callSiteField) {
+    visitor.visitLdcInsn(className);
+    visitor.visitLdcInsn(methodName);
+    visitor.visitLdcInsn(desc);
+    visitor.visitInsn(isStatic ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+    visitor.visitMethodInsn(Opcodes.INVOKESTATIC, NativeCallSite, "link", NativeCallSite_link);
+    visitor.visitFieldInsn(Opcodes.PUTSTATIC, className, callSiteField, "L" + METHOD_HANDLE + ";");
+  }
+
+  /**
+   * Initializes the dispatch site field of a native, to be emitted into the
+   * static initializer of its class. Needs a stack of five.
+   */
+  static void initDispatchSite(MethodVisitor visitor, String className, String methodName,
+      String desc, String dispatchSiteField) {
+    visitor.visitTypeInsn(Opcodes.NEW, DISPATCH_SITE);
+    visitor.visitInsn(Opcodes.DUP);
+    visitor.visitLdcInsn(className);
+    visitor.visitLdcInsn(methodName);
+    visitor.visitLdcInsn(desc);
+    visitor.visitMethodInsn(Opcodes.INVOKESPECIAL, DISPATCH_SITE, "<init>",
+        "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+    visitor.visitFieldInsn(Opcodes.PUTSTATIC, className, dispatchSiteField,
+        "L" + DISPATCH_SITE + ";");
+  }
+
+  private void returnValue() {
+    switch (descriptor.getReturnKind()) {
+      case 'L':
+        delegate.visitInsn(Opcodes.ARETURN);
+        break;
+      case 'Z':
+      case 'B':
+      case 'S':
+      case 'C':
+      case 'I':
+        delegate.visitInsn(Opcodes.IRETURN);
+        break;
+      case 'J':
+        delegate.visitInsn(Opcodes.LRETURN);
+        break;
+      case 'F':
+        delegate.visitInsn(Opcodes.FRETURN);
+        break;
+      case 'D':
+        delegate.visitInsn(Opcodes.DRETURN);
+        break;
+      case 'V':
+        delegate.visitInsn(Opcodes.RETURN);
+        break;
+      default:
+        throw new IllegalStateException(descriptor.getReturnDesc());
+    }
+  }
+
   private void assertThisNotNull() {
     delegate.visitVarInsn(Opcodes.ALOAD, 0);
     Label notNull = new Label();
@@ -93,6 +261,13 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
     } else {
       delegate.visitVarInsn(Opcodes.ALOAD, 0); // this
     }
+    if (dispatchSiteField != null) {
+      delegate.visitFieldInsn(Opcodes.GETSTATIC, className, dispatchSiteField,
+          "L" + DISPATCH_SITE + ";");
+      delegate.visitMethodInsn(Opcodes.INVOKEVIRTUAL, GwtNativeDispatch, "getDelegate",
+          GwtNativeDispatch_getSiteDelegate);
+      return;
+    }
     delegate.visitLdcInsn(className);
     delegate.visitLdcInsn(methodName);
     delegate.visitLdcInsn(descriptor.getMethodDesc());
@@ -148,12 +323,20 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
   }
 
   private int nativeDelegate_addArgument(String parameter, int index) {
-    int size = 1;
     delegate.visitInsn(Opcodes.DUP);
+    int size = loadParameter(parameter, index);
+    if (parameter.charAt(0) == 'L' || parameter.charAt(0) == '[') {
+      parameter = "Ljava/lang/Object;";
+    }
+    delegate.visitMethodInsn(Opcodes.INVOKEVIRTUAL, InvocationDelegate, "addArg", "(" + parameter
+        + ")V");
+    return size;
+  }
+
+  private int loadParameter(String parameter, int index) {
     switch (parameter.charAt(0)) {
       case 'L':
       case '[':
-        parameter = "Ljava/lang/Object;";
         delegate.visitVarInsn(Opcodes.ALOAD, index);
         break;
       case 'Z':
@@ -165,21 +348,17 @@ public class NativeMethodDelegatingVisitor implements MethodVisitor {
         break;
       case 'J':
         delegate.visitVarInsn(Opcodes.LLOAD, index);
-        size = 2;
         break;
       case 'F':
         delegate.visitVarInsn(Opcodes.FLOAD, index);
         break;
       case 'D':
         delegate.visitVarInsn(Opcodes.DLOAD, index);
-        size = 2;
         break;
       default:
         throw new IllegalStateException(parameter);
     }
-    delegate.visitMethodInsn(Opcodes.INVOKEVIRTUAL, InvocationDelegate, "addArg", "(" + parameter
-        + ")V");
-    return size;
+    return Descriptor.slotSize(parameter);
   }
 
   // //////////////////////////////////////
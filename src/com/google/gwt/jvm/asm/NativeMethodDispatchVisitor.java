@@ -17,45 +17,221 @@ package com.google.gwt.jvm.asm;
 import static com.google.gwt.jvm.asm.GwtClassMunger.isOpcode;
 
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Replaces native methods with dispatch of OverlayType dispatch
  */
 public class NativeMethodDispatchVisitor extends DelegatingClassVisitor {
 
+  private static final String SITE_FIELD = "$gwtNativeSite";
+  private static final String CLINIT = "<clinit>";
+  private static final String DELEGATE_HOLDER = "com/google/gwt/jvm/DelegateHolder";
+  private static final String DELEGATE_FIELD = "$gwtDelegate";
+  private static final String DELEGATE_OWNER_FIELD = "$gwtDelegateOwner";
+  private static final String OBJECT = "Ljava/lang/Object;";
+
+  /** A native which dispatches through a site held in a static field. */
+  private static class Site {
+    final String methodName;
+    final String desc;
+    final boolean isStatic;
+    final String field;
+    final boolean callSite; // a NativeCallSite invoker rather than a DispatchSite.
+
+    Site(String methodName, String desc, boolean isStatic, String field, boolean callSite) {
+      this.methodName = methodName;
+      this.desc = desc;
+      this.isStatic = isStatic;
+      this.field = field;
+      this.callSite = callSite;
+    }
+  }
+
   private final OverlayTypePredicate overlayTypePredicate;
+  private final StaticNativeBinder staticNativeBinder; // null if all natives are dispatched.
+  private final boolean callSites;
+  private final boolean delegateHolder;
+  private final List<Site> sites = new ArrayList<Site>();
+  private MethodNode staticInitializer; // held back until the call sites are known.
   private String className;
 
   public NativeMethodDispatchVisitor(ClassVisitor delegate,
       OverlayTypePredicate overlayTypePredicate) {
+    this(delegate, overlayTypePredicate, null, false, false);
+  }
+
+  public NativeMethodDispatchVisitor(ClassVisitor delegate,
+      OverlayTypePredicate overlayTypePredicate, StaticNativeBinder staticNativeBinder) {
+    this(delegate, overlayTypePredicate, staticNativeBinder, false, false);
+  }
+
+  public NativeMethodDispatchVisitor(ClassVisitor delegate,
+      OverlayTypePredicate overlayTypePredicate, StaticNativeBinder staticNativeBinder,
+      boolean callSites) {
+    this(delegate, overlayTypePredicate, staticNativeBinder, callSites, false);
+  }
+
+  /**
+   * Each native gets a synthetic static field holding its site, initialized by
+   * the static initializer.
+   * @param callSites Whether natives dispatch through a NativeCallSite held in
+   *   the field rather than through GwtNativeDispatch with a DispatchSite.
+   *   Natives bound to a static delegate always get a DispatchSite, which
+   *   guards the binding and dispatches when a test registered another mock.
+   * @param delegateHolder Whether the class gets to implement DelegateHolder,
+   *   keeping the mock of its instance natives in synthetic transient fields.
+   */
+  public NativeMethodDispatchVisitor(ClassVisitor delegate,
+      OverlayTypePredicate overlayTypePredicate, StaticNativeBinder staticNativeBinder,
+      boolean callSites, boolean delegateHolder) {
     super(delegate);
     this.overlayTypePredicate = overlayTypePredicate;
+    this.staticNativeBinder = staticNativeBinder;
+    this.callSites = callSites;
+    this.delegateHolder = delegateHolder;
   }
 
   @Override
   public void visit(int version, int access, String name, String signature, String superName,
       String[] interfaces) {
     this.className = name;
+    if (delegateHolder) {
+      String[] withHolder = new String[interfaces.length + 1];
+      System.arraycopy(interfaces, 0, withHolder, 0, interfaces.length);
+      withHolder[interfaces.length] = DELEGATE_HOLDER;
+      interfaces = withHolder;
+    }
     delegate.visit(version, access, name, signature, superName, interfaces);
   }
 
   @Override
   public MethodVisitor visitMethod(int access, String name, String desc, String signature,
       String[] exceptions) {
+    if (name.equals(CLINIT)) {
+      staticInitializer = new MethodNode(access, name, desc, signature, exceptions);
+      return staticInitializer;
+    }
     int nonNativeAccess = access & ~Opcodes.ACC_NATIVE;
     MethodVisitor visitMethod =
         delegate.visitMethod(nonNativeAccess, name, desc, signature, exceptions);
     if (isOpcode(access, Opcodes.ACC_NATIVE)) {
       boolean isStatic = isOpcode(access, Opcodes.ACC_STATIC);
-      return new NativeMethodDelegatingVisitor(visitMethod, className, name, new Descriptor(desc),
-          isStatic);
+      String staticDelegate = null;
+      if (isStatic && staticNativeBinder != null) {
+        staticDelegate = staticNativeBinder.getStaticDelegate(className, name, desc);
+      }
+      String siteField = SITE_FIELD + sites.size();
+      boolean callSite = callSites && staticDelegate == null;
+      sites.add(new Site(name, desc, isStatic, siteField, callSite));
+      return new NativeMethodDelegatingVisitor(visitMethod, className, name, Descriptor.of(desc),
+          isStatic, staticDelegate, callSite ? null : siteField, callSite ? siteField : null);
     } else {
       //System.out.println(className + "." + name + "(" + desc + ")");
       return new RewriteOverlayMethodDispatch(visitMethod, overlayTypePredicate);
     }
   }
 
+  @Override
+  public void visitEnd() {
+    if (staticInitializer != null || !sites.isEmpty()) {
+      visitStaticInitializer();
+    }
+    if (delegateHolder) {
+      visitDelegateHolder();
+    }
+    delegate.visitEnd();
+  }
+
+  /**
+   * Emits the fields holding the mock and its owner and the DelegateHolder
+   * methods accessing them. Subclasses declaring instance natives override the
+   * methods with their own fields, so only one pair is ever in use.
+   */
+  private void visitDelegateHolder() {
+    for (String name : new String[] {DELEGATE_FIELD, DELEGATE_OWNER_FIELD}) {
+      FieldVisitor field = delegate.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT
+          | Opcodes.ACC_SYNTHETIC, name, OBJECT, null, null);
+      if (field != null) {
+        field.visitEnd();
+      }
+      MethodVisitor getter = delegate.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+          name, "()" + OBJECT, null, null);
+      getter.visitCode();
+      getter.visitVarInsn(Opcodes.ALOAD, 0);
+      getter.visitFieldInsn(Opcodes.GETFIELD, className, name, OBJECT);
+      getter.visitInsn(Opcodes.ARETURN);
+      getter.visitMaxs(1, 1);
+      getter.visitEnd();
+    }
+    MethodVisitor setter = delegate.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+        "$gwtSetDelegate", "(" + OBJECT + OBJECT + ")V", null, null);
+    setter.visitCode();
+    setter.visitVarInsn(Opcodes.ALOAD, 0);
+    setter.visitVarInsn(Opcodes.ALOAD, 2);
+    setter.visitFieldInsn(Opcodes.PUTFIELD, className, DELEGATE_FIELD, OBJECT);
+    setter.visitVarInsn(Opcodes.ALOAD, 0);
+    setter.visitVarInsn(Opcodes.ALOAD, 1);
+    setter.visitFieldInsn(Opcodes.PUTFIELD, className, DELEGATE_OWNER_FIELD, OBJECT);
+    setter.visitInsn(Opcodes.RETURN);
+    setter.visitMaxs(2, 3);
+    setter.visitEnd();
+  }
+
+  /**
+   * Emits the static initializer, starting with the initialization of the site
+   * fields.
+   */
+  private void visitStaticInitializer() {
+    for (Site site : sites) {
+      String fieldDesc = "L" + (site.callSite ? NativeMethodDelegatingVisitor.METHOD_HANDLE
+          : NativeMethodDelegatingVisitor.DISPATCH_SITE) + ";";
+      FieldVisitor field = delegate.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC
+          | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, site.field, fieldDesc, null, null);
+      if (field != null) {
+        field.visitEnd();
+      }
+    }
+    MethodNode original = staticInitializer;
+    if (original == null) {
+      original = new MethodNode(Opcodes.ACC_STATIC, CLINIT, "()V", null, null);
+      original.visitCode();
+      original.visitInsn(Opcodes.RETURN);
+      original.visitMaxs(0, 0);
+      original.visitEnd();
+    }
+    @SuppressWarnings("unchecked") // ASM 3 keeps them in a raw list.
+    List<String> exceptionList = original.exceptions;
+    String[] exceptions = exceptionList.toArray(new String[exceptionList.size()]);
+    MethodVisitor visitor = new RewriteOverlayMethodDispatch(delegate.visitMethod(original.access,
+        original.name, original.desc, original.signature, exceptions), overlayTypePredicate);
+    original.accept(new DelegatingMethodVisitor(visitor) {
+      @Override
+      public void visitCode() {
+        super.visitCode();
+        for (Site site : sites) {
+          if (site.callSite) {
+            NativeMethodDelegatingVisitor.initCallSite(delegate, className, site.methodName,
+                site.desc, site.isStatic, site.field);
+          } else {
+            NativeMethodDelegatingVisitor.initDispatchSite(delegate, className, site.methodName,
+                site.desc, site.field);
+          }
+        }
+      }
+
+      @Override
+      public void visitMaxs(int maxStack, int maxLocals) {
+        super.visitMaxs(sites.isEmpty() ? maxStack : Math.max(maxStack, 5), maxLocals);
+      }
+    });
+  }
+
 
 }
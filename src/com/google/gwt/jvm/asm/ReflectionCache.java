@@ -14,73 +14,242 @@
  */
 package com.google.gwt.jvm.asm;
 
-import com.google.common.base.Function;
-import com.google.common.base.Objects;
-import com.google.common.collect.MapMaker;
-
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Caching utility that reduces the reflection performed within the asm classes by storing
  * reflected results that aren't going to change (like class, field and method lookups by name).
+ *
+ * Methods are cached with the class they were looked up on, so classes of the
+ * same name from different class loaders don't mix and a class loader which
+ * is no longer used can be collected along with its cached methods. The cache
+ * holds at most a maximum number of entries, evicting by the configured policy.
+ * Hits take no lock: they only mark the entry as used, and LRU eviction gives
+ * marked entries a second chance instead of keeping an exact access order.
  */
 public class ReflectionCache {
-  /** Key for identifying methods, parameterized by class & method names plus parameters. */
-  private static class MethodKey {
-    private final Type type; // additionally store the Type for the class.
-    private final String className;
-    private final String methodName;
-    private final String methodDesc;
-    public MethodKey(Type type, String className, String methodName, String methodDesc) {
-      this.type = type;
-      this.className = className;
-      this.methodName = methodName;
-      this.methodDesc = methodDesc;
+
+  public enum EvictionPolicy {
+    /** Evicts an entry not used since it was last passed over, approximating LRU. */
+    LRU,
+    /** Evicts the entry cached first. */
+    FIFO
+  }
+
+  public static final String MAXIMUM_SIZE_JVM_PROPERTY =
+      "com.google.gwt.jvm.reflectionCache.maximumSize";
+  public static final String EVICTION_POLICY_JVM_PROPERTY =
+      "com.google.gwt.jvm.reflectionCache.evictionPolicy";
+  public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+  /** The cache used by Type and Descriptor. */
+  public static final ReflectionCache SHARED = new ReflectionCache();
+
+  /** Entry of a cached method, referring weakly to the class it was looked up on. */
+  private static final class MethodKey extends WeakReference<Class<?>> {
+    private final String member; // method name plus descriptor.
+    private volatile boolean used;
+
+    MethodKey(Class<?> clazz, String member, ReferenceQueue<Class<?>> queue) {
+      super(clazz, queue);
+      this.member = member;
     }
-    @Override
-    public int hashCode() {
-      return Objects.hashCode(className, methodName, methodDesc);
+  }
+
+  private static final class CachedMethod {
+    final Method method;
+    final MethodKey key;
+
+    CachedMethod(Method method, MethodKey key) {
+      this.method = method;
+      this.key = key;
     }
-    @Override
-    public boolean equals(Object o) {
-      if (o == null || !(o instanceof MethodKey)) {
-        return false;
-      }
-      MethodKey that = (MethodKey) o;
-      // exclude the type check in the equality.
-      return className.equals(that.className) && methodName.equals(that.methodName)
-          && methodDesc.equals(that.methodDesc);
+  }
+
+  private static final class CachedClass {
+    final Class<?> clazz;
+    volatile boolean used;
+
+    CachedClass(Class<?> clazz) {
+      this.clazz = clazz;
     }
   }
 
-  /** Cache for Type's method lookups, stores everything for now, and calculates lazily. */
-  public ConcurrentMap<MethodKey, Method> typeMethodCache = new MapMaker().makeComputingMap(
-      new Function<MethodKey, Method>() {
-        @Override
-        public Method apply(MethodKey from) {
-          return from.type.getMethod(
-              from.methodName, new Descriptor(from.methodDesc).getParameters());
-        }
-      });
+  private final int maximumSize;
+  private final EvictionPolicy evictionPolicy;
 
-  /** Cache for Descriptor's toClass lookups, stores everything for now, and calculates lazily. */
-  public ConcurrentMap<String, Class<?>> descriptorClassCache = new MapMaker().makeComputingMap(
-      new Function<String, Class<?>>() {
+  // Methods by name plus descriptor, kept with the class they were looked up on.
+  private final ClassValue<ConcurrentMap<String, CachedMethod>> methods =
+      new ClassValue<ConcurrentMap<String, CachedMethod>>() {
         @Override
-        public Class<?> apply(String descriptor) {
-          return Descriptor.toClassInner(descriptor);
+        protected ConcurrentMap<String, CachedMethod> computeValue(Class<?> clazz) {
+          return new ConcurrentHashMap<String, CachedMethod>();
         }
-      });
+      };
+  // Insertion order of the cached methods, guarded by itself.
+  private final Set<MethodKey> methodOrder = new LinkedHashSet<MethodKey>();
+  private final ReferenceQueue<Class<?>> collectedClasses = new ReferenceQueue<Class<?>>();
+
+  // Classes by descriptor, resolved by the class loader of Descriptor.
+  private final ConcurrentMap<String, CachedClass> descriptorClasses =
+      new ConcurrentHashMap<String, CachedClass>();
+  // Insertion order of the cached classes, guarded by itself.
+  private final Set<String> descriptorOrder = new LinkedHashSet<String>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache sized by the {@link #MAXIMUM_SIZE_JVM_PROPERTY} and
+   * {@link #EVICTION_POLICY_JVM_PROPERTY} jvm properties, if set.
+   */
+  public ReflectionCache() {
+    this(Integer.getInteger(MAXIMUM_SIZE_JVM_PROPERTY, DEFAULT_MAXIMUM_SIZE),
+        EvictionPolicy.valueOf(System.getProperty(EVICTION_POLICY_JVM_PROPERTY,
+            EvictionPolicy.LRU.name())));
+  }
 
-  /** Cached retrieval of a named method from a named class, including parameter list. */
+  /**
+   * @param maximumSize Maximum number of methods, and of classes, held.
+   */
+  public ReflectionCache(int maximumSize, EvictionPolicy evictionPolicy) {
+    this.maximumSize = maximumSize;
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  /** Cached retrieval of a method of the type's class, by name and descriptor. */
   public Method getMethodFromType(final Type type, final String className,
       final String methodName, final String methodDesc) {
-    return typeMethodCache.get(new MethodKey(type, className, methodName, methodDesc));
+    Class<?> clazz = type.getJavaClass();
+    String member = methodName + methodDesc;
+    ConcurrentMap<String, CachedMethod> declared = methods.get(clazz);
+    CachedMethod cached = declared.get(member);
+    if (cached != null) {
+      hits.increment();
+      if (evictionPolicy == EvictionPolicy.LRU && !cached.key.used) {
+        cached.key.used = true;
+      }
+      return cached.method;
+    }
+    misses.increment();
+    Method method = type.getMethod(methodName, Descriptor.of(methodDesc).getParameters());
+    synchronized (methodOrder) {
+      cached = declared.get(member);
+      if (cached != null) {
+        return cached.method;
+      }
+      removeCollectedClasses();
+      MethodKey key = new MethodKey(clazz, member, collectedClasses);
+      declared.put(member, new CachedMethod(method, key));
+      methodOrder.add(key);
+      while (methodOrder.size() > maximumSize) {
+        Iterator<MethodKey> eldest = methodOrder.iterator();
+        MethodKey evicted = eldest.next();
+        eldest.remove();
+        Class<?> evictedClass = evicted.get();
+        if (evicted.used && evictedClass != null) {
+          // used since it was last passed over: give it another round.
+          evicted.used = false;
+          methodOrder.add(evicted);
+          continue;
+        }
+        if (evictedClass != null) {
+          methods.get(evictedClass).remove(evicted.member);
+        }
+        evictions.increment();
+      }
+    }
+    return method;
   }
 
   /** Cached class calculation from classname descriptors. */
   public Class<?> descriptorToClass(String descriptor) {
-    return descriptorClassCache.get(descriptor);
+    CachedClass cached = descriptorClasses.get(descriptor);
+    if (cached != null) {
+      hits.increment();
+      if (evictionPolicy == EvictionPolicy.LRU && !cached.used) {
+        cached.used = true;
+      }
+      return cached.clazz;
+    }
+    misses.increment();
+    Class<?> clazz = Descriptor.toClassInner(descriptor);
+    synchronized (descriptorOrder) {
+      if (descriptorClasses.putIfAbsent(descriptor, new CachedClass(clazz)) != null) {
+        return clazz;
+      }
+      descriptorOrder.add(descriptor);
+      while (descriptorOrder.size() > maximumSize) {
+        Iterator<String> eldest = descriptorOrder.iterator();
+        String evicted = eldest.next();
+        eldest.remove();
+        CachedClass evictedClass = descriptorClasses.get(evicted);
+        if (evictedClass.used) {
+          evictedClass.used = false;
+          descriptorOrder.add(evicted);
+          continue;
+        }
+        descriptorClasses.remove(evicted);
+        evictions.increment();
+      }
+    }
+    return clazz;
+  }
+
+  /** Drops the entries of classes which were garbage collected. */
+  private void removeCollectedClasses() {
+    for (Object key = collectedClasses.poll(); key != null; key = collectedClasses.poll()) {
+      methodOrder.remove(key);
+    }
+  }
+
+  /**
+   * @return Number of methods and classes held.
+   */
+  public int size() {
+    int size;
+    synchronized (methodOrder) {
+      removeCollectedClasses();
+      size = methodOrder.size();
+    }
+    synchronized (descriptorOrder) {
+      return size + descriptorOrder.size();
+    }
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ReflectionCache: %d entries of %d (%s), %d hits, %d misses, "
+        + "%d evictions.", size(), maximumSize, evictionPolicy, getHitCount(), getMissCount(),
+        getEvictionCount());
   }
 }
@@ -44,7 +44,7 @@ public class RewriteOverlayMethodDispatch extends DelegatingMethodVisitor {
         String newDescriptor = desc;
         if (!isStatic) {
           String overlayClass = overlayTypePredicate.getImplementingClass(owner, name, desc);
-          newDescriptor = new Descriptor(desc).toDescPrefix(overlayClass);
+          newDescriptor = Descriptor.of(desc).toDescPrefix(overlayClass);
         }
         super.visitMethodInsn(Opcodes.INVOKESTATIC, owner + "$", name, newDescriptor);
       }
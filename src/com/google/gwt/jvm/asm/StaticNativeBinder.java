@@ -0,0 +1,29 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+/**
+ * Binds static native methods to mock implementations known at munging time,
+ * so that they can be invoked directly instead of through GwtNativeDispatch.
+ */
+public interface StaticNativeBinder {
+
+  /**
+   * @return Internal name of the class declaring the static mock method to call
+   *   instead of the given native, or null to dispatch the native at runtime.
+   */
+  String getStaticDelegate(String className, String methodName, String desc);
+
+}
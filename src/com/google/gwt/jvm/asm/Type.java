@@ -19,19 +19,103 @@ import com.google.common.collect.Lists;
 import com.google.gwt.uibinder.client.UiFactory;
 import com.google.gwt.uibinder.client.UiField;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Simplified way of dealing with classes and invoking methods in reflective way.
+ *
+ * {@link #type(Class)} and {@link #type(String)} return one Type per class, so
+ * the constructors, methods and fields a Type resolves are looked up once and
+ * invoked through method handles afterwards.
  */
 public class Type {
   // Type-wide cache of methods, for speedup.
-  private static final ReflectionCache CACHE = new ReflectionCache();
+  private static final ReflectionCache CACHE = ReflectionCache.SHARED;
+
+  // Canonical Types of classes, kept with the class so they go with its loader.
+  private static final ClassValue<Type> TYPES = new ClassValue<Type>() {
+    @Override
+    protected Type computeValue(Class<?> clazz) {
+      return new Type(clazz);
+    }
+  };
+  // Canonical Types by name, which resolve in the class loader of Type itself.
+  private static final ConcurrentMap<String, Type> NAMED_TYPES =
+      new ConcurrentHashMap<String, Type>();
+
+  private static final MethodType INVOKER =
+      MethodType.methodType(Object.class, Object.class, Object[].class);
+  private static final MethodType INSTANTIATOR =
+      MethodType.methodType(Object.class, Object[].class);
+  private static final MethodHandle NEW_TARGET_EXCEPTION;
+  static {
+    try {
+      NEW_TARGET_EXCEPTION = MethodHandles.lookup().findConstructor(TargetException.class,
+          MethodType.methodType(void.class, Throwable.class));
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    } catch (IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Thrown by the invokers and instantiators in place of what the member threw,
+   * to tell it apart from arguments the handles around the member can't convert.
+   */
+  private static final class TargetException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    TargetException(Throwable cause) {
+      super(null, cause, false, false);
+    }
+  }
+
+  /** A method or constructor name with the classes of the arguments it was called with. */
+  private static final class Signature {
+    private final String name;
+    private final Class<?>[] argumentClasses;
+
+    Signature(String name, Object[] arguments) {
+      this.name = name;
+      this.argumentClasses = new Class<?>[arguments.length];
+      for (int i = 0; i < arguments.length; i++) {
+        argumentClasses[i] = arguments[i] == null ? null : arguments[i].getClass();
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() * 31 + Arrays.hashCode(argumentClasses);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Signature)) {
+        return false;
+      }
+      Signature other = (Signature) obj;
+      return name.equals(other.name) && Arrays.equals(argumentClasses, other.argumentClasses);
+    }
+  }
+
+  private final ConcurrentMap<Signature, MethodHandle> invokers =
+      new ConcurrentHashMap<Signature, MethodHandle>();
+  private final ConcurrentMap<Signature, MethodHandle> instantiators =
+      new ConcurrentHashMap<Signature, MethodHandle>();
+  private final ConcurrentMap<String, Field> fields = new ConcurrentHashMap<String, Field>();
+  private volatile Type superType;
 
   // NOTE: should be final, but creating within the constructor ends up calling static initializer
   // code running outside the classloader, which breaks for things like DOMImpl (has GWT.create)
@@ -50,19 +134,36 @@ public class Type {
 
   @SuppressWarnings("unchecked")
   public <T> T newInstance(Object... parameters) {
+    MethodHandle instantiator;
     try {
-      Constructor<?> constructor = findConstructor(parameters);
-      constructor.setAccessible(true);
-      return (T) constructor.newInstance(parameters);
+      Signature signature = new Signature("<init>", parameters);
+      instantiator = instantiators.get(signature);
+      if (instantiator == null) {
+        Constructor<?> constructor = findConstructor(parameters);
+        constructor.setAccessible(true);
+        instantiator = throwingTargetExceptions(
+            MethodHandles.lookup().unreflectConstructor(constructor).asFixedArity())
+            .asSpreader(Object[].class, parameters.length).asType(INSTANTIATOR);
+        instantiators.putIfAbsent(signature, instantiator);
+      }
     } catch (SecurityException e) {
       throw new RuntimeException(className, e);
     } catch (IllegalArgumentException e) {
       throw new RuntimeException(className, e);
-    } catch (InstantiationException e) {
-      throw new RuntimeException(className, e);
     } catch (IllegalAccessException e) {
       throw new RuntimeException(className, e);
-    } catch (InvocationTargetException e) {
+    }
+    try {
+      Object instance = instantiator.invokeExact(parameters);
+      return (T) instance;
+    } catch (TargetException e) {
+      throw new RuntimeException(className, new InvocationTargetException(e.getCause()));
+    } catch (RuntimeException e) {
+      // Like Constructor.newInstance, arguments which do not fit are illegal.
+      throw new RuntimeException(className, new IllegalArgumentException(e));
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
       throw new RuntimeException(className, e);
     }
   }
@@ -84,21 +185,62 @@ public class Type {
 
   @SuppressWarnings("unchecked")
   public <T> T invoke(Object instance, String methodName, Object... parameters) {
+    MethodHandle invoker;
     try {
-      Method method = findMethod(methodName, parameters);
-      method.setAccessible(true);
-      return (T) method.invoke(instance, parameters);
+      Signature signature = new Signature(methodName, parameters);
+      invoker = invokers.get(signature);
+      if (invoker == null) {
+        invoker = invoker(findMethod(methodName, parameters));
+        invokers.putIfAbsent(signature, invoker);
+      }
     } catch (SecurityException e) {
       throw new RuntimeException(e);
     } catch (IllegalArgumentException e) {
       throw new RuntimeException(e);
     } catch (IllegalAccessException e) {
       throw new RuntimeException(e);
-    } catch (InvocationTargetException e) {
+    }
+    try {
+      Object result = invoker.invokeExact(instance, parameters);
+      return (T) result;
+    } catch (TargetException e) {
+      throw new RuntimeException(new InvocationTargetException(e.getCause()));
+    } catch (RuntimeException e) {
+      // Like Method.invoke, an instance or arguments which do not fit are illegal.
+      throw new RuntimeException(new IllegalArgumentException(e));
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * @return Handle invoking the method with a receiver, ignored for static
+   *   methods, and an array of the arguments.
+   */
+  private static MethodHandle invoker(Method method) throws IllegalAccessException {
+    method.setAccessible(true);
+    MethodHandle handle =
+        throwingTargetExceptions(MethodHandles.lookup().unreflect(method).asFixedArity());
+    if (Modifier.isStatic(method.getModifiers())) {
+      handle = MethodHandles.dropArguments(handle, 0, Object.class);
+    }
+    return handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(INVOKER);
+  }
+
+  /**
+   * @return Handle throwing a TargetException with whatever the member throws.
+   */
+  private static MethodHandle throwingTargetExceptions(MethodHandle member) {
+    MethodType type = member.type();
+    MethodHandle thrower = MethodHandles.filterArguments(
+        MethodHandles.throwException(type.returnType(), TargetException.class), 0,
+        NEW_TARGET_EXCEPTION);
+    thrower = MethodHandles.dropArguments(thrower, 1, type.parameterList());
+    return MethodHandles.catchException(member, Throwable.class, thrower);
+  }
+
   private Method findMethod(String methodName, Object... parameters) {
     Class<?> clazz = getJavaClass();
     while (clazz != null) {
@@ -126,6 +268,9 @@ public class Type {
   }
 
   private boolean parametersMatch(Class<?>[] parameterTypes, Object... parameters) {
+    if (parameterTypes.length != parameters.length) {
+      return false;
+    }
     for (int i = 0; i < parameterTypes.length; i++) {
       if (!noPrimitive(parameterTypes[i]).isInstance(parameters[i])) {
         return false;
@@ -198,11 +343,19 @@ public class Type {
   }
 
   public static Type type(Class<?> clazz) {
-    return clazz == null ? null : new Type(clazz);
+    return clazz == null ? null : TYPES.get(clazz);
   }
 
   public static Type type(String clazz) {
-    return new Type(clazz);
+    Type type = NAMED_TYPES.get(clazz);
+    if (type == null) {
+      type = new Type(clazz);
+      Type existing = NAMED_TYPES.putIfAbsent(clazz, type);
+      if (existing != null) {
+        type = existing;
+      }
+    }
+    return type;
   }
 
   public Method getMethod(String methodName, Class<?>...parameters) {
@@ -249,7 +402,7 @@ public class Type {
   }
 
   public Class<?> getClassContainingMethod(String methodName, String methodDesc) {
-    return getClassContainingMethod(methodName, new Descriptor(methodDesc).getParameters());
+    return getClassContainingMethod(methodName, Descriptor.of(methodDesc).getParameters());
   }
 
   public static <T> T invokeMethod(Object instance, String methodName, Object... args) {
@@ -268,6 +421,15 @@ public class Type {
   }
 
   public Field field(String fieldName) {
+    Field field = fields.get(fieldName);
+    if (field == null) {
+      field = findField(fieldName);
+      fields.putIfAbsent(fieldName, field);
+    }
+    return field;
+  }
+
+  private Field findField(String fieldName) {
     Class<?> clazz = getJavaClass();
     RuntimeException noSuchFieldException = null;
     while (clazz != null) {
@@ -298,7 +460,12 @@ public class Type {
   }
 
   public Type getSuperType() {
-    return type(getJavaClass().getSuperclass());
+    Type type = superType;
+    if (type == null) {
+      type = type(getJavaClass().getSuperclass());
+      superType = type;
+    }
+    return type;
   }
 
 
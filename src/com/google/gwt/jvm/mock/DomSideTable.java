@@ -0,0 +1,88 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.mock;
+
+import com.google.common.collect.MapMaker;
+
+import com.gargoylesoftware.htmlunit.SgmlPage;
+import com.gargoylesoftware.htmlunit.html.DomChangeEvent;
+import com.gargoylesoftware.htmlunit.html.DomChangeListener;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An identity side table from DomNodes to values which may refer back to their
+ * node, as a JavaNode does.
+ *
+ * A weak keyed map can never drop such entries, the value keeps its key alive.
+ * Here the entries of a page are held by the page itself, through a
+ * DomChangeListener, so they are collected together with the page once a reset
+ * loads a new one.
+ */
+class DomSideTable<V> {
+
+  /** The entries of a page, added to the page's DomChangeListeners to tie them to it. */
+  private static class Entries<V> implements DomChangeListener {
+    private static final long serialVersionUID = 1L;
+
+    final SgmlPage page;
+    final Map<DomNode, V> values = new IdentityHashMap<DomNode, V>();
+
+    Entries(SgmlPage page) {
+      this.page = page;
+    }
+
+    public void nodeAdded(DomChangeEvent event) {
+    }
+
+    public void nodeDeleted(DomChangeEvent event) {
+    }
+  }
+
+  private final Map<SgmlPage, Entries<V>> pages = new MapMaker().weakKeys().weakValues().makeMap();
+
+  /** The entries used last, almost always those of the current page. */
+  private WeakReference<Entries<V>> last = new WeakReference<Entries<V>>(null);
+
+  public V get(DomNode node) {
+    Entries<V> entries = entries(node.getPage(), false);
+    return entries == null ? null : entries.values.get(node);
+  }
+
+  public void put(DomNode node, V value) {
+    entries(node.getPage(), true).values.put(node, value);
+  }
+
+  private Entries<V> entries(SgmlPage page, boolean create) {
+    Entries<V> entries = last.get();
+    if (entries != null && entries.page == page) {
+      return entries;
+    }
+    entries = pages.get(page);
+    if (entries == null) {
+      if (!create) {
+        return null;
+      }
+      entries = new Entries<V>(page);
+      page.addDomChangeListener(entries);
+      pages.put(page, entries);
+    }
+    last = new WeakReference<Entries<V>>(entries);
+    return entries;
+  }
+}
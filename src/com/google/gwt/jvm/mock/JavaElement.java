@@ -27,7 +27,6 @@ import com.google.gwt.user.client.EventListener;
 
 import com.gargoylesoftware.htmlunit.html.DomAttr;
 import com.gargoylesoftware.htmlunit.html.DomElement;
-import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HTMLParser;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 
@@ -36,7 +35,6 @@ import org.xml.sax.SAXException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
 
 public class JavaElement extends JavaNode {
   private EventListener listener;
@@ -60,7 +58,6 @@ public class JavaElement extends JavaNode {
   public String getAttribute(final String name) {
     // special-case: lazily calculate style attribute
     if ("style".equals(name)) {
-      JavaStyle style = styleForElement.get(node);
       return style == null ? "" : style.toHtmlString();
     }
     return getHtmlUnitElement().getAttribute(name);
@@ -169,14 +166,12 @@ public class JavaElement extends JavaNode {
     setPropertyObject(name, unwrap(value));
   }
 
-  private final WeakHashMap<DomNode, JavaStyle> styleForElement
-      = new WeakHashMap<DomNode, JavaStyle>();
+  /** Created lazily, the style attribute is computed from it. */
+  private JavaStyle style;
 
   public Style getStyle() {
-    JavaStyle style = styleForElement.get(node);
     if (style == null) {
       style = new JavaStyle(getHtmlUnitElement());
-      styleForElement.put(node, style);
     }
     return wrap(style);
   }
@@ -394,7 +389,6 @@ public class JavaElement extends JavaNode {
     }
 
     // special-case: lazily evaluate the style attribute from a JavaStyle object
-    JavaStyle style = styleForElement.get(node);
     if (style != null) {
       String styleString = style.toHtmlString();
       if (styleString != null && !"".equals(styleString.trim())) {
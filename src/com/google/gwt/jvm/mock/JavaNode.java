@@ -21,6 +21,8 @@ import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.Node;
 import com.google.gwt.dom.client.NodeList;
 import com.google.gwt.event.dom.client.KeyCodes;
+import com.google.gwt.jvm.JavaJSObject;
+import com.google.gwt.jvm.WrapperHolder;
 
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.DomNode;
@@ -31,7 +33,6 @@ import com.gargoylesoftware.htmlunit.html.HtmlTextInput;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.WeakHashMap;
 
 /**
  * JavaNode is a mock for Node. It wraps htmlunit's DomNode.
@@ -40,11 +41,17 @@ import java.util.WeakHashMap;
  * 
  * You can use the static javaNode(node) to get the JavaNode from a Node, and
  * javaNode.getGwtNode() to go the other way. 
+ *
+ * A JavaNode holds its own wrapper, so going from a DomNode to the GWT Node
+ * takes a single identity lookup. JavaNodes live as long as the page of their
+ * DomNode.
  */
-public class JavaNode {
+public class JavaNode implements WrapperHolder {
 
   protected final DomNode node;
 
+  private JavaJSObject wrapper;
+
   /**
    * Enumeration of Html Entities which are used by Gwt widgets.
    */
@@ -182,8 +189,7 @@ public class JavaNode {
     return node;
   }
 
-  private static WeakHashMap<DomNode, JavaNode> javaNodeForDomNode
-                      = new WeakHashMap<DomNode, JavaNode>();
+  private static DomSideTable<JavaNode> javaNodeForDomNode = new DomSideTable<JavaNode>();
 
   public static JavaNode javaNode(final DomNode element) {
     if (element == null) {
@@ -216,6 +222,14 @@ public class JavaNode {
     return wrap(this);
   }
 
+  public JavaJSObject getWrapper() {
+    return wrapper;
+  }
+
+  public void setWrapper(JavaJSObject wrapper) {
+    this.wrapper = wrapper;
+  }
+
   public JavaNode getParentElement() {
     final DomNode parentNode = node.getParentNode();
     if (parentNode instanceof HtmlPage) {
@@ -15,12 +15,13 @@
 
 package com.google.gwt.jvm.staticcompiler;
 
-import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.ext.TreeLogger;
 import com.google.gwt.core.ext.UnableToCompleteException;
 import com.google.gwt.jvm.ClasspathResourceLoader;
 import com.google.gwt.jvm.GwtClassLoader;
+import com.google.gwt.jvm.IndexedResourceLoader;
 import com.google.gwt.jvm.JavaGwtCompiler;
+import com.google.gwt.jvm.OverlayTypeScanner;
 import com.google.gwt.jvm.asm.GwtClassMunger;
 import com.google.gwt.dev.cfg.ModuleDef;
 import com.google.gwt.dev.cfg.ModuleDefLoader;
@@ -35,14 +36,14 @@ import org.objectweb.asm.ClassReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
 
 /**
  * This is a static compiler for offline processing of JARs. Once a JAR has been
@@ -90,12 +91,6 @@ public class Compiler {
       
       gwtCreateClasses.put(Name.InternalName.toBinaryName(internalName), compiledClass.getSourceName());
     }
-    
-    // This is insufficient. We also need to track anything that has JSO as the
-    // root of its type heirachy.
-    if (reader.getSuperName().equals(Name.BinaryName.toInternalName(JavaScriptObject.class.getCanonicalName()))) {
-      System.out.println("Javascriptobject");
-    }
   }
   
   public String compileJar(String jarFileName, String moduleName)
@@ -110,25 +105,17 @@ public class Compiler {
     
     final JarOutputStream outJar = new JarOutputStream(fos, jar.getManifest());
     
-    ClasspathResourceLoader resourceLoader = new ClasspathResourceLoader(new ClassLoader() {
-      @Override
-      public InputStream getResourceAsStream(String name) {
-        System.out.println("Reading " + name);
-        try {
-          ZipEntry entry = jar.getEntry(name);
-          if (entry != null) {
-            return jar.getInputStream(entry);
-          }
-        } catch (IOException e) {
-          // Swallow and fall through below.
-        }
-        
-        return getClass().getClassLoader().getResourceAsStream(name);
-      }
-    });
+    // Classes in the jar take precedence over the ones on the class path.
+    ClassLoader classLoader = getClass().getClassLoader();
+    List<File> classPath = new ArrayList<File>();
+    classPath.add(new File(jarFileName));
+    classPath.addAll(IndexedResourceLoader.classPath(classLoader));
+    IndexedResourceLoader resourceLoader = new IndexedResourceLoader(classLoader, classPath);
     
     ClasspathResourceLoader contextResourceLoader = new ClasspathResourceLoader();
     Set<String> defaultOverlayTypes = contextResourceLoader.loadSet(GwtClassLoader.OVERLAY_TYPES);
+    // Every JavaScriptObject subclass in the jar or on the class path is an overlay type.
+    defaultOverlayTypes.addAll(new OverlayTypeScanner(null).scan(classPath));
     
     final GwtClassMunger munger = new GwtClassMunger(resourceLoader, defaultOverlayTypes);
     
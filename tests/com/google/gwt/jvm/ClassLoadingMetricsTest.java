@@ -0,0 +1,108 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.ClassLoadingMetrics.LoadPath;
+import com.google.gwt.jvm.ClassLoadingMetrics.MungeKind;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+/**
+ * Tests for {@link ClassLoadingMetrics}.
+ */
+public class ClassLoadingMetricsTest extends TestCase {
+
+  private ClassLoadingMetrics metrics = new ClassLoadingMetrics();
+
+  public void testHistogramBucketsByPowersOfTwoMicros() throws Exception {
+    metrics.munged("a.A", MungeKind.NATIVE_DISPATCH, 500, 10, 20);
+    metrics.munged("a.B", MungeKind.DOLLAR, 3000, 10, 20);
+    metrics.munged("a.C", MungeKind.DOLLAR, 3500, 10, 20);
+    String[] histogram = metrics.getMungeTimeHistogram();
+    assertEquals(2, histogram.length);
+    assertEquals("< 1 us: 1", histogram[0]);
+    assertEquals("< 4 us: 2", histogram[1]);
+    assertEquals(30, metrics.getBytesIn());
+    assertEquals(60, metrics.getBytesOut());
+  }
+
+  public void testSlowestClassesFirst() throws Exception {
+    metrics.munged("a.Fast", MungeKind.NATIVE_DISPATCH, 1000, 1, 1);
+    metrics.munged("a.Slow", MungeKind.INTERFACE, 9000, 1, 1);
+    metrics.munged("a.Unmodified", MungeKind.UNMODIFIED, 99000, 1, 1);
+    String[] slowest = metrics.getSlowestClasses();
+    assertEquals(2, slowest.length);
+    assertEquals("a.Slow: 9 us", slowest[0]);
+    assertEquals("a.Fast: 1 us", slowest[1]);
+  }
+
+  public void testReports() throws Exception {
+    metrics.loaded(LoadPath.CLASS_PATH);
+    metrics.munged("a.A", MungeKind.NATIVE_DISPATCH, 2000, 1, 1);
+    assertTrue(metrics.getTextReport().contains("1 from the class path"));
+    String json = metrics.getJsonReport();
+    assertTrue(json.startsWith("{\"unmockedClasses\":0,\"classPathClasses\":1,"));
+    assertTrue(json.endsWith("\"slowestClasses\":{\"a.A\":2}}"));
+    metrics.reset();
+    assertEquals(0, metrics.getClassPathClasses());
+    assertEquals(0, metrics.getSlowestClasses().length);
+  }
+
+  public void testJsonReportsOfAllLoadersGoToOneFile() throws Exception {
+    ClassLoadingMetrics other = new ClassLoadingMetrics();
+    metrics.loaded(LoadPath.CLASS_PATH);
+    other.loaded(LoadPath.UNMOCKED);
+    File file = File.createTempFile("metrics", ".json");
+    ClassLoadingMetrics.writeJsonReports(file, Arrays.asList(metrics, other));
+    byte[] bytes = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      assertEquals(bytes.length, in.read(bytes));
+    } finally {
+      in.close();
+    }
+    file.delete();
+    assertEquals("[" + metrics.getJsonReport() + "," + other.getJsonReport() + "]",
+        new String(bytes, "UTF-8"));
+  }
+
+  public void testEachLoaderRegistersUntilItIsCollected() throws Exception {
+    ClassLoader loader = new URLClassLoader(new URL[0]);
+    ObjectName first = metrics.register(loader);
+    ObjectName second = new ClassLoadingMetrics().register(getClass().getClassLoader());
+    assertFalse(first.equals(second));
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(first));
+
+    loader = null;
+    for (int i = 0; i < 50 && ManagementFactory.getPlatformMBeanServer().isRegistered(first);
+        i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(first));
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(second));
+  }
+}
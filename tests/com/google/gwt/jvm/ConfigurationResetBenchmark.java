@@ -0,0 +1,141 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.ClassMap;
+
+import java.util.List;
+
+/**
+ * Browser-free variant of GwtBrowserEmulatorResetBenchmark, for class paths
+ * without GWT. It measures only the bridge and dispatcher part of a reset,
+ * with a configuration shaped like the emulator's baseline (25 GWT.create()
+ * mappings and 35 native delegates, named by string) but made of JDK classes.
+ * After each reset it makes a bridge lookup and a static native call, like the
+ * first test after a reset does.
+ *
+ * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
+ *     com.google.gwt.jvm.ConfigurationResetBenchmark [iterations]
+ */
+public class ConfigurationResetBenchmark {
+
+  static class Natives {
+    static native int add(int a, int b);
+  }
+
+  public static class JavaNatives {
+    public static int add(int a, int b) {
+      return a + b;
+    }
+  }
+
+  private static final String[] KEYS = {
+      "java.util.List", "java.util.Set", "java.util.Map", "java.util.Queue", "java.util.Deque",
+      "java.util.SortedMap", "java.util.SortedSet", "java.util.NavigableMap",
+      "java.util.NavigableSet", "java.util.Collection", "java.util.Iterator",
+      "java.util.ListIterator", "java.util.Enumeration", "java.util.RandomAccess",
+      "java.util.Comparator", "java.util.EventListener", "java.util.Observer",
+      "java.util.AbstractList", "java.util.AbstractSet", "java.util.AbstractMap",
+      "java.util.AbstractQueue", "java.util.AbstractCollection",
+      "java.util.AbstractSequentialList", "java.util.Dictionary", "java.util.EventObject",
+      "java.io.InputStream", "java.io.OutputStream", "java.io.Reader", "java.io.Writer",
+      "java.io.FilterInputStream", "java.io.FilterOutputStream", "java.io.FilterReader",
+      "java.io.FilterWriter", "java.io.Closeable", "java.io.Flushable"};
+  private static final String[] USES = {
+      "java.util.ArrayList", "java.util.HashSet", "java.util.HashMap",
+      "java.util.PriorityQueue", "java.util.ArrayDeque", "java.util.TreeMap",
+      "java.util.TreeSet", "java.util.concurrent.ConcurrentSkipListMap",
+      "java.util.concurrent.ConcurrentSkipListSet", "java.util.LinkedList",
+      "java.util.Scanner", "java.util.LinkedList", "java.util.StringTokenizer",
+      "java.util.Vector", "java.lang.String", "java.util.EventListenerProxy",
+      "java.util.Observable", "java.util.Stack", "java.util.LinkedHashSet",
+      "java.util.LinkedHashMap", "java.util.concurrent.LinkedBlockingQueue",
+      "java.util.ArrayList", "java.util.LinkedList", "java.util.Hashtable",
+      "java.beans.PropertyChangeEvent", "java.io.ByteArrayInputStream",
+      "java.io.ByteArrayOutputStream", "java.io.StringReader", "java.io.StringWriter",
+      "java.io.BufferedInputStream", "java.io.BufferedOutputStream", "java.io.PushbackReader",
+      "java.io.FilterWriter", "java.io.FileInputStream", "java.io.BufferedWriter"};
+  private static final int BRIDGE_SIZE = 25;
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    ClassMap bridge = newBridge();
+    GwtNativeDispatch dispatcher = newDispatcher();
+
+    // warm up both before measuring.
+    rebuild(iterations);
+    copy(bridge, dispatcher, iterations);
+    long rebuilt = rebuild(iterations);
+    long copied = copy(bridge, dispatcher, iterations);
+
+    System.out.println(String.format("%d resets", iterations));
+    System.out.println(String.format("rebuilt configuration: %.2f us/reset",
+        rebuilt / 1000.0 / iterations));
+    System.out.println(String.format("copied configuration:  %.2f us/reset",
+        copied / 1000.0 / iterations));
+  }
+
+  static ClassMap newBridge() {
+    ClassMap bridge = new ClassMap();
+    for (int i = 0; i < BRIDGE_SIZE; i++) {
+      bridge.addImplementor(KEYS[i], USES[i]);
+    }
+    return bridge;
+  }
+
+  static GwtNativeDispatch newDispatcher() {
+    GwtNativeDispatch dispatcher = new GwtNativeDispatch();
+    for (int i = 0; i < KEYS.length; i++) {
+      dispatcher.delegate(KEYS[i], USES[i]);
+    }
+    dispatcher.delegate(Natives.class, JavaNatives.class);
+    return dispatcher;
+  }
+
+  private static long rebuild(int iterations) {
+    long start = System.nanoTime();
+    int sum = 0;
+    for (int i = 0; i < iterations; i++) {
+      ClassMap bridge = newBridge();
+      GwtNativeDispatch.instance = newDispatcher();
+      sum += use(bridge, i);
+    }
+    return time(start, sum);
+  }
+
+  private static long copy(ClassMap bridgeTemplate, GwtNativeDispatch dispatcherTemplate,
+      int iterations) {
+    long start = System.nanoTime();
+    int sum = 0;
+    for (int i = 0; i < iterations; i++) {
+      ClassMap bridge = bridgeTemplate.copy();
+      GwtNativeDispatch.instance = dispatcherTemplate.copy();
+      sum += use(bridge, i);
+    }
+    return time(start, sum);
+  }
+
+  private static int use(ClassMap bridge, int i) {
+    return (bridge.map(List.class) == null ? 0 : 1) + Natives.add(i, 1);
+  }
+
+  private static long time(long start, int sum) {
+    long time = System.nanoTime() - start;
+    if (sum == 42) {
+      System.out.println(); // keeps the loop from being optimized away.
+    }
+    return time;
+  }
+}
@@ -63,4 +63,20 @@ public class DescriptorTest extends TestCase {
     assertEquals("(LC$;[Ljava/lang/String;)Ljava/lang/String;", descriptor.toDescPrefix("C$"));
   }
 
+  public void testDescriptorsAreInterned() throws Exception {
+    Descriptor descriptor = Descriptor.of("(JLjava/lang/String;D[I)[Ljava/lang/String;");
+    assertSame(descriptor, Descriptor.of("(JLjava/lang/String;D[I)[Ljava/lang/String;"));
+    assertEquals(6, descriptor.getParameterSlots());
+    assertEquals('L', descriptor.getReturnKind());
+    assertEquals('V', Descriptor.of("()V").getReturnKind());
+    assertEquals(0, Descriptor.of("()V").getParameterSlots());
+  }
+
+  public void testResolvedParametersAreNotShared() throws Exception {
+    Descriptor descriptor = Descriptor.of("(Ljava/lang/String;Z)V");
+    Class<?>[] parameters = descriptor.getParameters();
+    parameters[0] = Object.class;
+    assertEquals(Arrays.asList(String.class, boolean.class),
+        Arrays.asList(descriptor.getParameters()));
+  }
 }
@@ -0,0 +1,78 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.asm.ClassMap;
+
+/**
+ * Measures the cost of a GwtBrowserEmulator reset, comparing the baseline
+ * configuration built from scratch, as each reset did before, against copies
+ * of the templates, and reports the latency of a whole reset. Without GWT on
+ * the class path, use ConfigurationResetBenchmark instead.
+ *
+ * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
+ *     com.google.gwt.jvm.GwtBrowserEmulatorResetBenchmark [iterations]
+ */
+public class GwtBrowserEmulatorResetBenchmark {
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    GwtBrowserEmulator browser = new GwtBrowserEmulator();
+    ClassMap bridge = GwtBrowserEmulator.newBaselineBridge();
+    GwtNativeDispatch dispatcher = GwtBrowserEmulator.newBaselineDispatcher();
+
+    // warm up all three before measuring.
+    rebuild(iterations);
+    copy(bridge, dispatcher, iterations);
+    reset(browser, iterations);
+    long rebuilt = rebuild(iterations);
+    long copied = copy(bridge, dispatcher, iterations);
+    long reset = reset(browser, iterations);
+
+    System.out.println(String.format("%d resets", iterations));
+    System.out.println(String.format("rebuilt configuration: %.2f us/reset",
+        rebuilt / 1000.0 / iterations));
+    System.out.println(String.format("copied configuration:  %.2f us/reset",
+        copied / 1000.0 / iterations));
+    System.out.println(String.format("whole reset:           %.2f us/reset",
+        reset / 1000.0 / iterations));
+  }
+
+  private static long rebuild(int iterations) {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      GwtBrowserEmulator.newBaselineBridge();
+      GwtBrowserEmulator.newBaselineDispatcher();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long copy(ClassMap bridge, GwtNativeDispatch dispatcher, int iterations) {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      bridge.copy();
+      dispatcher.copy();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long reset(GwtBrowserEmulator browser, int iterations) {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      browser.reset();
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -14,14 +14,27 @@
  */
 package com.google.gwt.jvm;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.jvm.asm.InvocationDelegateTest;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  */
@@ -129,6 +142,8 @@ public class GwtClassLoaderTest extends TestCase {
   }
 
   public void testCallArgTypeNativeMethodReturnObject() throws Exception {
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    GwtNativeDispatch.instance.delegate(NativeMethod.class, JavaMethod.class);
     assertEquals("args(true, 1, Z, 9, 2, 3, 1.4, 1.5)native", new NativeMethod()._args(true,
         (byte) 1, 'Z', (short) 9, 2, 3l, 1.4f, 1.5d));
   }
@@ -237,4 +252,398 @@ public class GwtClassLoaderTest extends TestCase {
     assertEquals(1, loadedQueue.size());
     assertEquals(TestCase.class.getName(), loadedQueue.remove());
   }
+
+  public void testConcurrentLoadingDefinesEachClassOnce() throws Exception {
+    final GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    final String[] names = {NativeMethod.class.getName(), JavaMethod.class.getName(),
+        GwtClassMungerTest.class.getName() + "$House", GwtClassMungerTest.class.getName() + "$User",
+        JavaScriptObject.class.getName(), Bucket.class.getName()};
+    int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Class<?>[]>> results = Lists.newArrayList();
+    for (int i = 0; i < threads; i++) {
+      results.add(executor.submit(new Callable<Class<?>[]>() {
+        @Override
+        public Class<?>[] call() throws Exception {
+          start.await();
+          Class<?>[] classes = new Class<?>[names.length];
+          for (int j = 0; j < names.length; j++) {
+            classes[j] = Class.forName(names[j], false, target);
+          }
+          return classes;
+        }
+      }));
+    }
+    start.countDown();
+    Class<?>[] expected = results.get(0).get();
+    for (Future<Class<?>[]> result : results) {
+      Class<?>[] classes = result.get();
+      for (int j = 0; j < names.length; j++) {
+        assertSame(expected[j], classes[j]);
+        assertSame(target, classes[j].getClassLoader());
+      }
+    }
+    executor.shutdown();
+  }
+
+  public void testMissingClassesAreRememberedUntilCompilationStateChanges() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    String name = "com.google.gwt.jvm.DoesNotExist";
+    try {
+      target.loadClass(name);
+      fail();
+    } catch (ClassNotFoundException e) {
+      // the first miss goes to the class path.
+      assertTrue(e.getCause() instanceof ClassResourceNotFoundException);
+    }
+    try {
+      target.loadClass(name);
+      fail();
+    } catch (ClassNotFoundException e) {
+      assertNull(e.getCause());
+    }
+    target.setCompilationState(null);
+    try {
+      target.loadClass(name);
+      fail();
+    } catch (ClassNotFoundException e) {
+      assertTrue(e.getCause() instanceof ClassResourceNotFoundException);
+    }
+  }
+
+  public void testRecordedClassesArePreloaded() throws Exception {
+    GwtClassLoader training = new GwtClassLoader(this.getClass().getClassLoader());
+    ClassLoadRecorder recorder = training.recordClassLoads();
+    Class.forName(GwtClassMungerTest.class.getName() + "$House", false, training);
+    Class.forName(NativeMethod.class.getName(), false, training);
+    List<String> classNames = recorder.getClassNames();
+    // the super types get defined, and recorded, before the class itself.
+    assertEquals(5, classNames.size());
+    assertTrue(classNames.subList(0, 2).contains(GwtClassMungerTest.class.getName() + "$Building"));
+    assertTrue(classNames.subList(0, 2).contains(GwtClassMungerTest.class.getName() + "$Dweling"));
+    assertEquals(GwtClassMungerTest.class.getName() + "$House", classNames.get(2));
+    // NativeMethod gets to implement DelegateHolder for its instance natives.
+    assertEquals(DelegateHolder.class.getName(), classNames.get(3));
+    assertEquals(NativeMethod.class.getName(), classNames.get(4));
+
+    File profile = File.createTempFile("profile", ".txt");
+    recorder.save(profile);
+    assertEquals(classNames, ClassLoadRecorder.read(profile));
+    profile.delete();
+
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    ClassPreloader preloader = target.preloadClasses(classNames, true);
+    preloader.start();
+    preloader.join();
+    assertEquals(classNames.size(), preloader.getServed());
+    assertSame(target, Class.forName(NativeMethod.class.getName(), false, target).getClassLoader());
+  }
+
+  public void testPreloadedClassesAreDiscardedWhenTheMungingChanges() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    ClassPreloader preloader = target.preloadClasses(
+        Collections.singletonList(NativeMethod.class.getName()), false);
+    preloader.start();
+    preloader.join();
+    target.munger.setNativeCallSites(!Boolean.getBoolean(
+        GwtClassLoader.NATIVE_CALL_SITES_JVM_PROPERTY));
+    Class.forName(NativeMethod.class.getName(), false, target);
+    assertEquals(0, preloader.getServed());
+    assertEquals(1, preloader.getDiscarded());
+  }
+
+  static class Referenced {
+  }
+
+  static class Referencing {
+    Object create() {
+      return new Referenced();
+    }
+  }
+
+  public void testReferencedClassesArePrefetched() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    ClassPrefetcher prefetcher = target.enablePrefetching(1, 2, 1024 * 1024);
+    Class.forName(Referencing.class.getName(), false, target);
+    assertTrue(prefetcher.awaitIdle(10000));
+    assertTrue(prefetcher.getMunged() > 0);
+
+    Class<?> referenced = Class.forName(Referenced.class.getName(), false, target);
+    assertSame(target, referenced.getClassLoader());
+    assertEquals(1, prefetcher.getHits());
+
+    target.disablePrefetching();
+    assertTrue(prefetcher.isShutdown());
+    Class.forName(NativeMethod.class.getName(), false, target);
+    assertEquals(1, prefetcher.getHits());
+  }
+
+  public void testMetricsCountLoadPathsAndMunging() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    ClassLoadingMetrics metrics = target.getMetrics();
+    metrics.reset();
+    Class.forName(NativeMethod.class.getName(), false, target);
+    Class.forName(java.util.zip.Adler32.class.getName(), false, target);
+
+    // NativeMethod and the DelegateHolder it gets to implement.
+    assertEquals(2, metrics.getClassPathClasses());
+    assertEquals(1, metrics.getNativeDispatchClasses());
+    assertEquals(1, metrics.getUnmockedClasses());
+    assertTrue(metrics.getBytesOut() > 0);
+    assertTrue(metrics.getResourceLoads() > 0);
+    assertEquals(NativeMethod.class.getName(), metrics.getSlowestClasses()[0].split(":")[0]);
+  }
+
+  public void testLoadersReportingAtExitCanBeCollected() throws Exception {
+    File cacheDir = File.createTempFile("munged", "");
+    cacheDir.delete();
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    target.enableMungedClassCache(cacheDir);
+    target.preloadClasses(Collections.singletonList(Referencing.class.getName()), false).start();
+    target.enablePrefetching(1, 1, 1024 * 1024);
+    File metricsJson = File.createTempFile("metrics", ".json");
+    metricsJson.deleteOnExit();
+    target.writeMetricsJson(metricsJson);
+    Class.forName(Referencing.class.getName(), false, target);
+    target.disablePrefetching();
+    WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(target);
+    target = null;
+    for (int i = 0; i < 50 && reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(reference.get());
+  }
+
+  public void testStaticNativesAreBoundWithoutDispatcher() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    target.munger.setStaticDelegates(Collections.singletonMap(
+        GwtClassMungerTest.class.getName() + "$StaticNative",
+        GwtClassMungerTest.class.getName() + "$JavaStaticNative"));
+    // The target has its own GwtNativeDispatch, which was never set up.
+    Class<?> staticNative = Class.forName(GwtClassMungerTest.class.getName() + "$StaticNative",
+        true, target);
+    Method greet = staticNative.getDeclaredMethod("greet", String.class);
+    greet.setAccessible(true);
+    assertEquals("hello shyam", greet.invoke(null, "shyam"));
+  }
+
+  static class FakeStaticNative {
+    static String greet(String name) {
+      return "fake " + name;
+    }
+  }
+
+  /** Calls a bound static native while tests register other mocks for it. */
+  static class OverrideScenario {
+    public static String run() {
+      String result = GwtClassMungerTest.StaticNative.greet("a");
+      GwtNativeDispatch.instance = new GwtNativeDispatch();
+      GwtNativeDispatch.instance.delegate(GwtClassMungerTest.StaticNative.class,
+          FakeStaticNative.class);
+      result += " | " + GwtClassMungerTest.StaticNative.greet("b");
+      GwtNativeDispatch.instance.delegate(GwtClassMungerTest.StaticNative.class,
+          GwtClassMungerTest.JavaStaticNative.class);
+      return result + " | " + GwtClassMungerTest.StaticNative.greet("c");
+    }
+  }
+
+  public void testBoundStaticNativesFollowRegisteredMocks() throws Exception {
+    for (boolean nativeCallSites : new boolean[] {false, true}) {
+      GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+      target.munger.setNativeCallSites(nativeCallSites);
+      target.munger.setStaticDelegates(Collections.singletonMap(
+          GwtClassMungerTest.class.getName() + "$StaticNative",
+          GwtClassMungerTest.class.getName() + "$JavaStaticNative"));
+      Method run = Class.forName(OverrideScenario.class.getName(), true, target).getMethod("run");
+      run.setAccessible(true);
+      assertEquals("hello a | fake b | hello c", run.invoke(null));
+    }
+  }
+
+  public void testLoadStaticDelegates() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    Map<String, String> delegates = target.loadStaticDelegates(GwtClassLoader.STATIC_DELEGATES);
+    assertEquals("com.google.gwt.jvm.mock.JavaURL",
+        delegates.get("com.google.gwt.http.client.URL"));
+  }
+
+  static class OtherJavaMethod {
+    public OtherJavaMethod(NativeMethod nativeMethod) {
+    }
+
+    public int _int() {
+      return 4321;
+    }
+
+    public static double _double() {
+      return 2.5;
+    }
+  }
+
+  /** Runs natives of each kind, loaded into a loader whose natives use call sites. */
+  static class CallSiteScenario {
+    public static String run() {
+      GwtNativeDispatch.instance = new GwtNativeDispatch();
+      GwtNativeDispatch.instance.delegate(NativeMethod.class, JavaMethod.class);
+      NativeMethod nativeMethod = new NativeMethod();
+      nativeMethod._void();
+      String result = nativeMethod._boolean() + " " + nativeMethod._byte() + " "
+          + nativeMethod._char() + " " + (int) nativeMethod._short() + " "
+          + nativeMethod._int() + " " + nativeMethod._long() + " " + nativeMethod._float() + " " + NativeMethod._double()
+          + " " + nativeMethod._string() + " " + nativeMethod.value + " "
+          + nativeMethod._args(true, (byte) 1, 'Z', (short) 9, 2, 3l, 1.4f, 1.5d);
+
+      // changed mappings relink the static natives, new instances get the new mock.
+      GwtNativeDispatch.instance.delegate(NativeMethod.class, OtherJavaMethod.class);
+      result += " | " + NativeMethod._double() + " " + nativeMethod._int() + " "
+          + new NativeMethod()._int();
+
+      // so does a new dispatcher.
+      GwtNativeDispatch.instance = new GwtNativeDispatch();
+      GwtNativeDispatch.instance.delegate(NativeMethod.class, JavaMethod.class);
+      result += " | " + NativeMethod._double();
+
+      GwtClassMungerTest.Stateful stateful =
+          JavaJSObject.wrap(new GwtClassMungerTest.JavaStateful());
+      stateful.setValue(999);
+      return result + " | " + stateful.getValue();
+    }
+  }
+
+  public void testNativesDispatchThroughCallSites() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    target.munger.setNativeCallSites(true);
+    Method run = Class.forName(CallSiteScenario.class.getName(), true, target).getMethod("run");
+    run.setAccessible(true);
+    assertEquals("true 123 Z 12 1234 12345 1.2 1.23 string()native void() "
+        + "args(true, 1, Z, 9, 2, 3, 1.4, 1.5)native | 2.5 1234 4321 | 1.23 | 999",
+        run.invoke(null));
+  }
+
+  public void testNativesDispatchThroughDispatchSites() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    Method run = Class.forName(CallSiteScenario.class.getName(), true, target).getMethod("run");
+    run.setAccessible(true);
+    assertEquals("true 123 Z 12 1234 12345 1.2 1.23 string()native void() "
+        + "args(true, 1, Z, 9, 2, 3, 1.4, 1.5)native | 2.5 1234 4321 | 1.23 | 999",
+        run.invoke(null));
+  }
+
+  /** Runs static natives through copies of a dispatcher. */
+  static class CopyScenario {
+    public static String run() {
+      GwtNativeDispatch template = new GwtNativeDispatch();
+      template.delegate(NativeMethod.class, JavaMethod.class);
+      GwtNativeDispatch.instance = template.copy();
+      String result = NativeMethod._double() + " " + new NativeMethod()._int();
+
+      // changing a copy leaves the template and the other copies alone.
+      GwtNativeDispatch.instance.delegate(NativeMethod.class, OtherJavaMethod.class);
+      result += " | " + NativeMethod._double() + " " + new NativeMethod()._int();
+      GwtNativeDispatch.instance = template.copy();
+      return result + " | " + NativeMethod._double() + " " + new NativeMethod()._int();
+    }
+  }
+
+  public void testDispatcherCopiesKeepTheirOwnMappings() throws Exception {
+    for (boolean nativeCallSites : new boolean[] {false, true}) {
+      GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+      target.munger.setNativeCallSites(nativeCallSites);
+      Method run = Class.forName(CopyScenario.class.getName(), true, target).getMethod("run");
+      run.setAccessible(true);
+      assertEquals("1.23 1234 | 2.5 4321 | 1.23 1234", run.invoke(null));
+    }
+  }
+
+  static class Mock0 {
+    Mock0(Object instance) {
+    }
+
+    String name(int i) {
+      return getClass().getSimpleName() + i;
+    }
+  }
+
+  static class Mock1 extends Mock0 { Mock1(Object o) { super(o); } }
+  static class Mock2 extends Mock0 { Mock2(Object o) { super(o); } }
+  static class Mock3 extends Mock0 { Mock3(Object o) { super(o); } }
+  static class Mock4 extends Mock0 { Mock4(Object o) { super(o); } }
+  static class Mock5 extends Mock0 { Mock5(Object o) { super(o); } }
+  static class Mock6 extends Mock0 { Mock6(Object o) { super(o); } }
+  static class Mock7 extends Mock0 { Mock7(Object o) { super(o); } }
+  static class Mock8 extends Mock0 { Mock8(Object o) { super(o); } }
+  static class Mock9 extends Mock0 { Mock9(Object o) { super(o); } }
+
+  public void testMegamorphicCallSiteKeepsResolvingMocks() throws Throwable {
+    Class<?>[] receivers = {Byte.class, Short.class, Integer.class, Long.class, Float.class,
+        Double.class, Character.class, Boolean.class, String.class, StringBuilder.class};
+    Object[] instances = {(byte) 1, (short) 1, 1, 1L, 1f, 1d, 'a', true, "a",
+        new StringBuilder()};
+    Class<?>[] mocks = {Mock0.class, Mock1.class, Mock2.class, Mock3.class, Mock4.class,
+        Mock5.class, Mock6.class, Mock7.class, Mock8.class, Mock9.class};
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    for (int i = 0; i < receivers.length; i++) {
+      GwtNativeDispatch.instance.delegate(receivers[i], mocks[i]);
+    }
+    java.lang.invoke.MethodHandle site = NativeCallSite.link(Mock0.class.getName(), "name",
+        "(I)Ljava/lang/String;", false);
+    // more mock classes than relinks, twice round.
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < instances.length; i++) {
+        assertEquals(mocks[i].getSimpleName() + i, (String) site.invokeExact(instances[i], i));
+      }
+    }
+  }
+
+  public static class Counter {
+    public native int add(int a, int b);
+
+    public static native double scale(double value, float factor);
+  }
+
+  public static class JavaCounter {
+    public JavaCounter(Counter counter) {
+    }
+
+    public int add(int a, int b) {
+      return a + b;
+    }
+
+    public static double scale(double value, float factor) {
+      return value * factor;
+    }
+  }
+
+  public void testSteadyStateNativeCallsDoNotAllocate() throws Exception {
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    GwtNativeDispatch.instance.delegate(Counter.class, JavaCounter.class);
+    Counter counter = new Counter();
+    assertEquals(30, count(counter, 5));
+    count(counter, 10000);
+    long start = InvocationDelegateTest.allocatedBytes();
+    if (start < 0) {
+      return; // not supported by this jvm.
+    }
+    // a late jit compile or relink may allocate once, so retry a few rounds.
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 5 && allocated >= 256; round++) {
+      start = InvocationDelegateTest.allocatedBytes();
+      long before = InvocationDelegateTest.allocatedBytes();
+      count(counter, 10000);
+      long after = InvocationDelegateTest.allocatedBytes();
+      // takes off what measuring allocates itself.
+      allocated = (after - before) - (before - start);
+    }
+    assertTrue("allocated " + allocated + " bytes", allocated < 256);
+  }
+
+  private static int count(Counter counter, int iterations) {
+    int sum = 0;
+    for (int i = 0; i < iterations; i++) {
+      sum = counter.add(sum, i) + (int) Counter.scale(i, 2f);
+    }
+    return sum;
+  }
 }
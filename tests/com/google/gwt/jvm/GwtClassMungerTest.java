@@ -23,12 +23,16 @@ import com.google.gwt.dom.client.Node;
 import com.google.gwt.jvm.ClasspathResourceLoader;
 import com.google.gwt.jvm.GwtNativeDispatch;
 import com.google.gwt.jvm.JavaJSObject;
+import com.google.gwt.jvm.asm.ClassPrescan;
 import com.google.gwt.jvm.asm.GwtClassMunger;
 import com.google.gwt.jvm.asm.GwtClassMunger.ClassMeta;
 import com.google.gwt.user.client.Element;
 
 import junit.framework.TestCase;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  */
 public class GwtClassMungerTest extends TestCase {
@@ -68,6 +72,34 @@ public class GwtClassMungerTest extends TestCase {
     assertEquals(desc(Dweling.class), classMeta.getInterfaces()[0]);
   }
 
+  private byte[] classBytes(Class<?> clazz) {
+    return resourceLoader.loadClassBytes(clazz.getName());
+  }
+
+  public void testUntouchedClassKeepsOriginalBytes() throws Exception {
+    byte[] classBytes = classBytes(House.class);
+    assertFalse(munger.needsMunging(House.class.getName(), classBytes));
+    assertSame(classBytes, munger.mungeBytes(House.class.getName(), classBytes));
+    assertEquals(1, munger.getUnmodifiedClassCount());
+    assertEquals(0, munger.getMungedClassCount());
+  }
+
+  static class UsesOverlayType {
+    Object cast(JavaScriptObject jso) {
+      return jso.cast();
+    }
+  }
+
+  public void testNativeOrOverlayReferencingClassesNeedMunging() throws Exception {
+    assertTrue(munger.needsMunging(StaticNative.class.getName(), classBytes(StaticNative.class)));
+    assertTrue(munger.needsMunging(UsesOverlayType.class.getName(),
+        classBytes(UsesOverlayType.class)));
+    assertTrue(munger.needsMunging(JavaScriptObject.class.getName() + "$",
+        classBytes(JavaScriptObject.class)));
+    munger.mungeBytes(StaticNative.class.getName(), classBytes(StaticNative.class));
+    assertEquals(1, munger.getMungedClassCount());
+  }
+
   public static class MockJavaScriptObject {
     @Override
     public String toString() {
@@ -110,6 +142,57 @@ public class GwtClassMungerTest extends TestCase {
     assertEquals("hello shyam", StaticNative.greet("shyam"));
   }
 
+  public void testStaticNativeIsBoundToStaticDelegate() throws Exception {
+    munger.setStaticDelegates(Collections.singletonMap(StaticNative.class.getName(),
+        JavaStaticNative.class.getName()));
+    assertEquals(desc(JavaStaticNative.class), munger.getStaticDelegate(desc(StaticNative.class),
+        "greet", "(Ljava/lang/String;)Ljava/lang/String;"));
+    List<String> referenced = ClassPrescan.referencedClasses(
+        munger.mungeBytes(StaticNative.class.getName(), classBytes(StaticNative.class)));
+    assertTrue(referenced.contains(desc(JavaStaticNative.class)));
+    // the site guarding the binding.
+    assertTrue(referenced.contains(desc(DispatchSite.class)));
+  }
+
+  public void testStaticNativeWithoutDelegateMethodIsDispatched() throws Exception {
+    munger.setStaticDelegates(Collections.singletonMap(StaticNative.class.getName(),
+        House.class.getName()));
+    assertNull(munger.getStaticDelegate(desc(StaticNative.class), "greet",
+        "(Ljava/lang/String;)Ljava/lang/String;"));
+    List<String> referenced = ClassPrescan.referencedClasses(
+        munger.mungeBytes(StaticNative.class.getName(), classBytes(StaticNative.class)));
+    assertTrue(referenced.contains(desc(GwtNativeDispatch.class)));
+  }
+
+  public void testNativesDispatchThroughDispatchSites() throws Exception {
+    List<String> referenced = ClassPrescan.referencedClasses(
+        munger.mungeBytes(StaticNative.class.getName(), classBytes(StaticNative.class)));
+    assertTrue(referenced.contains(desc(DispatchSite.class)));
+    assertTrue(referenced.contains(desc(GwtNativeDispatch.class)));
+  }
+
+  public void testNativesDispatchThroughCallSites() throws Exception {
+    munger.setNativeCallSites(true);
+    List<String> referenced = ClassPrescan.referencedClasses(
+        munger.mungeBytes(StaticNative.class.getName(), classBytes(StaticNative.class)));
+    assertTrue(referenced.contains(desc(NativeCallSite.class)));
+    assertFalse(referenced.contains(desc(GwtNativeDispatch.class)));
+    referenced = ClassPrescan.referencedClasses(munger.mungeBytes(Stateful.class.getName() + "$",
+        classBytes(Stateful.class)));
+    assertTrue(referenced.contains(desc(NativeCallSite.class)));
+  }
+
+  public void testMungingStampFollowsSettings() throws Exception {
+    String stamp = munger.getMungingStamp();
+    assertEquals(stamp, munger.getMungingStamp());
+    munger.setNativeCallSites(true);
+    String callSitesStamp = munger.getMungingStamp();
+    assertFalse(stamp.equals(callSitesStamp));
+    munger.setStaticDelegates(Collections.singletonMap(StaticNative.class.getName(),
+        JavaStaticNative.class.getName()));
+    assertFalse(callSitesStamp.equals(munger.getMungingStamp()));
+  }
+
   static class StaticJS extends JavaScriptObject {
     static String greet(String name) {
       return "hello " + name;
@@ -158,6 +241,17 @@ public class GwtClassMungerTest extends TestCase {
         "()Ljava/lang/String;"));
   }
 
+  public void testImplementingClassIsIndexed() throws Exception {
+    munger.getImplementingClass(desc(User.class), "toString", "()Ljava/lang/String;");
+    int indexSize = munger.getIndexSize();
+    assertEquals(GWT_JAVA_SCRIPT_OBJECT, munger.getImplementingClass(desc(User.class), "toString",
+        "()Ljava/lang/String;"));
+    assertEquals(2, munger.getIndexLookups());
+    assertEquals(1, munger.getIndexHits());
+    assertEquals(indexSize, munger.getIndexSize());
+    assertSame(munger.classMeta(desc(User.class)), munger.classMeta(User.class.getName()));
+  }
+
   public void testJavaJSObjectImplementsAll() throws Exception {
     Object obj = wrap(new Object());
     assertTrue(obj instanceof JavaScriptObject);
@@ -248,4 +342,50 @@ public class GwtClassMungerTest extends TestCase {
     assertEquals(5, obj1.getValue());
     assertEquals(999, obj2.getValue());
   }
+
+  static class EqualStateful {
+    public native int getValue();
+    public native void setValue(int newValue);
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof EqualStateful;
+    }
+
+    @Override
+    public int hashCode() {
+      return 0;
+    }
+  }
+
+  public static class JavaEqualStateful extends JavaStateful {
+    public JavaEqualStateful(EqualStateful stateful) {
+    }
+  }
+
+  public void testEqualInstancesKeepTheirOwnMock() {
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    GwtNativeDispatch.instance.delegate(EqualStateful.class, JavaEqualStateful.class);
+    EqualStateful obj1 = new EqualStateful();
+    EqualStateful obj2 = new EqualStateful();
+    assertEquals(obj1, obj2);
+    obj1.setValue(5);
+    obj2.setValue(999);
+    assertEquals(5, obj1.getValue());
+    assertEquals(999, obj2.getValue());
+    assertTrue(obj1 instanceof DelegateHolder);
+    assertSame(GwtNativeDispatch.instance, ((DelegateHolder) obj1).$gwtDelegateOwner());
+
+    // a new dispatcher does not see the mocks of the former one.
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    GwtNativeDispatch.instance.delegate(EqualStateful.class, JavaEqualStateful.class);
+    assertEquals(0, obj1.getValue());
+  }
+
+  public void testOnlyClassesWithInstanceNativesHoldDelegates() throws Exception {
+    assertTrue(ClassPrescan.referencedClasses(munger.mungeBytes(EqualStateful.class.getName(),
+        classBytes(EqualStateful.class))).contains(desc(DelegateHolder.class)));
+    assertFalse(ClassPrescan.referencedClasses(munger.mungeBytes(StaticNative.class.getName(),
+        classBytes(StaticNative.class))).contains(desc(DelegateHolder.class)));
+  }
 }
@@ -0,0 +1,186 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for {@link IndexedResourceLoader}.
+ */
+public class IndexedResourceLoaderTest extends TestCase {
+
+  private static final byte[] STORED = "stored bytes".getBytes();
+  private static final byte[] DEFLATED = new byte[5000];
+  static {
+    for (int i = 0; i < DEFLATED.length; i++) {
+      DEFLATED[i] = (byte) (i % 7);
+    }
+  }
+
+  private File jar;
+  private File directory;
+  private IndexedResourceLoader resourceLoader;
+
+  @Override
+  protected void setUp() throws Exception {
+    jar = File.createTempFile("indexed", ".jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    ZipEntry stored = new ZipEntry("a/b/Stored.class");
+    CRC32 crc = new CRC32();
+    crc.update(STORED);
+    stored.setMethod(ZipEntry.STORED);
+    stored.setSize(STORED.length);
+    stored.setCrc(crc.getValue());
+    out.putNextEntry(stored);
+    out.write(STORED);
+    out.putNextEntry(new ZipEntry("a/b/Deflated.class"));
+    out.write(DEFLATED);
+    out.putNextEntry(new ZipEntry("a/Shadowed.txt"));
+    out.write(STORED);
+    out.close();
+
+    directory = File.createTempFile("indexed", "");
+    directory.delete();
+    new File(directory, "a").mkdirs();
+    write(new File(directory, "a/Shadowed.txt"), DEFLATED);
+    write(new File(directory, "a/Other.txt"), DEFLATED);
+
+    resourceLoader = new IndexedResourceLoader(getClass().getClassLoader(),
+        Arrays.asList(jar, directory));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    jar.delete();
+    new File(directory, "a/Shadowed.txt").delete();
+    new File(directory, "a/Other.txt").delete();
+    new File(directory, "a").delete();
+    directory.delete();
+  }
+
+  private void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+  }
+
+  public void testReadsStoredAndDeflatedJarEntries() throws Exception {
+    assertTrue(Arrays.equals(STORED, resourceLoader.loadBytes("a/b/Stored.class")));
+    assertTrue(Arrays.equals(DEFLATED, resourceLoader.loadClassBytes("a.b.Deflated")));
+  }
+
+  public void testReadsDirectoriesAndEarlierEntriesWin() throws Exception {
+    assertTrue(Arrays.equals(DEFLATED, resourceLoader.loadBytes("a/Other.txt")));
+    assertTrue(Arrays.equals(STORED, resourceLoader.loadBytes("a/Shadowed.txt")));
+    assertEquals(4, resourceLoader.size());
+  }
+
+  public void testMissInIndexedPackage() throws Exception {
+    assertNull(resourceLoader.loadBytes("a/b/Missing.class"));
+    try {
+      resourceLoader.loadClassBytes("a.b.Missing");
+      fail();
+    } catch (ClassResourceNotFoundException e) {
+    }
+  }
+
+  public void testMissingSetIsReportedByName() throws Exception {
+    try {
+      resourceLoader.loadSet("a/b/Missing.properties");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Resource not found: a/b/Missing.properties", e.getMessage());
+    }
+  }
+
+  public void testMissInIndexFallsBackToTheClassLoader() throws Exception {
+    // a/b is indexed, but a jar the index does not see splits the package.
+    File split = File.createTempFile("split", ".jar");
+    try {
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(split));
+      out.putNextEntry(new ZipEntry("a/b/Split.class"));
+      out.write(STORED);
+      out.close();
+      URLClassLoader splitLoader = new URLClassLoader(new URL[] {split.toURI().toURL()}, null);
+      IndexedResourceLoader loader = new IndexedResourceLoader(splitLoader, Arrays.asList(jar));
+      assertTrue(Arrays.equals(STORED, loader.loadBytes("a/b/Split.class")));
+      assertNull(loader.loadBytes("a/b/Missing.class"));
+    } finally {
+      split.delete();
+    }
+  }
+
+  public void testEntriesWhichCanNotBeIndexedAreSkipped() throws Exception {
+    File notAJar = File.createTempFile("broken", ".jar");
+    try {
+      write(notAJar, STORED);
+      IndexedResourceLoader loader = new IndexedResourceLoader(getClass().getClassLoader(),
+          Arrays.asList(notAJar, jar));
+      assertTrue(Arrays.equals(STORED, loader.loadBytes("a/b/Stored.class")));
+    } finally {
+      notAJar.delete();
+    }
+  }
+
+  public void testChangedJarsAreIndexedAgain() throws Exception {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    out.putNextEntry(new ZipEntry("a/b/Rewritten.class"));
+    out.write(DEFLATED);
+    out.close();
+    jar.setLastModified(jar.lastModified() + 2000);
+    IndexedResourceLoader loader = new IndexedResourceLoader(getClass().getClassLoader(),
+        Arrays.asList(jar));
+    assertTrue(Arrays.equals(DEFLATED, loader.loadBytes("a/b/Rewritten.class")));
+    assertEquals(1, loader.size());
+  }
+
+  public void testClassPathFollowsManifestClassPath() throws Exception {
+    File launcher = File.createTempFile("launcher", ".jar");
+    try {
+      Manifest manifest = new Manifest();
+      manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH,
+          jar.getName() + " " + directory.toURI().toURL());
+      new JarOutputStream(new FileOutputStream(launcher), manifest).close();
+      List<File> classPath = IndexedResourceLoader.classPath(
+          new URLClassLoader(new URL[] {launcher.toURI().toURL()}, null));
+      int index = classPath.indexOf(launcher.getAbsoluteFile());
+      assertEquals(jar.getAbsoluteFile(), classPath.get(index + 1));
+      assertEquals(directory.getAbsoluteFile(), classPath.get(index + 2));
+    } finally {
+      launcher.delete();
+    }
+  }
+
+  public void testUnindexedPackagesComeFromTheClassLoader() throws Exception {
+    assertNotNull(resourceLoader.loadBytes(
+        IndexedResourceLoaderTest.class.getName().replace('.', '/') + ".class"));
+  }
+}
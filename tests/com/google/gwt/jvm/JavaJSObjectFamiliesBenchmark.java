@@ -0,0 +1,92 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.jvm.GwtClassMungerTest.EnglishGreeter;
+import com.google.gwt.jvm.GwtClassMungerTest.SpanishGreeter;
+import com.google.gwt.jvm.JavaJSObjectFamiliesTest.JavaGreeter;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares the cost of type checks against overlay interfaces on wrappers of
+ * the one JavaJSObject implementing every overlay type against wrappers
+ * specialized per family. The checks alternate between overlay types, as GWT
+ * code casting a wrapper to Node, Element and so on does.
+ *
+ * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
+ *     com.google.gwt.jvm.JavaJSObjectFamiliesBenchmark [iterations]
+ *
+ * Each mode gets a class loader of its own. Fully optimized code checks the
+ * class it profiled exactly, in both modes; add -XX:TieredStopAtLevel=1 (or
+ * -Xint) to measure the code most tests run in, where every check of an
+ * interface not in the one element cache scans the interfaces of the class.
+ */
+public class JavaJSObjectFamiliesBenchmark {
+
+  /** Loaded in the loader of each mode. */
+  public static class Driver {
+    public static long run(int iterations) {
+      Object[] wrappers = new Object[64];
+      for (int i = 0; i < wrappers.length; i++) {
+        wrappers[i] = JavaJSObject.wrap(new JavaGreeter());
+      }
+      long start = System.nanoTime();
+      int count = 0;
+      for (int i = 0; i < iterations; i++) {
+        Object wrapper = wrappers[i & (wrappers.length - 1)];
+        EnglishGreeter greeter = (EnglishGreeter) wrapper;
+        if (greeter instanceof SpanishGreeter) {
+          count++;
+        }
+        if (wrapper instanceof JavaScriptObject) {
+          count++;
+        }
+        count += wrapper.hashCode() & 1;
+      }
+      long time = System.nanoTime() - start;
+      if (count == 42) {
+        System.out.println(); // keeps the loop from being optimized away.
+      }
+      return time;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    for (boolean families : new boolean[] {false, true}) {
+      if (families) {
+        System.setProperty(GwtClassLoader.JS_OBJECT_FAMILIES_JVM_PROPERTY,
+            "com/google/gwt/jvm/JavaJSObjectFamiliesTest.properties");
+      }
+      GwtClassLoader loader;
+      try {
+        loader = new GwtClassLoader(JavaJSObjectFamiliesBenchmark.class.getClassLoader());
+      } finally {
+        System.clearProperty(GwtClassLoader.JS_OBJECT_FAMILIES_JVM_PROPERTY);
+      }
+      Method run = Class.forName(Driver.class.getName(), true, loader)
+          .getMethod("run", int.class);
+      // warm up before measuring.
+      for (int i = 0; i < 5; i++) {
+        run.invoke(null, iterations);
+      }
+      long time = (Long) run.invoke(null, iterations);
+      System.out.println(String.format("%-11s %.2f ns/iteration",
+          families ? "families:" : "all types:", (double) time / iterations));
+    }
+  }
+}
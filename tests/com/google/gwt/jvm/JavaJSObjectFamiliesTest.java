@@ -0,0 +1,94 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.jvm.GwtClassMungerTest.EnglishGreeter;
+import com.google.gwt.jvm.GwtClassMungerTest.SpanishGreeter;
+import com.google.gwt.jvm.GwtClassMungerTest.User;
+import com.google.gwt.jvm.asm.GwtClassMunger;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+
+/**
+ * Tests JavaJSObject specialized per overlay family, see
+ * {@link GwtClassMunger#setJavaJSObjectFamilies}.
+ */
+public class JavaJSObjectFamiliesTest extends TestCase {
+
+  /** In the greeter family, see JavaJSObjectFamiliesTest.properties. */
+  public static class JavaGreeter {
+  }
+
+  public static class JavaLoudGreeter extends JavaGreeter {
+  }
+
+  /** Wraps delegates, loaded into a loader which specializes JavaJSObject. */
+  static class FamilyScenario {
+    private static String casts(Object jsObject) {
+      return (jsObject instanceof JavaScriptObject) + " " + (jsObject instanceof EnglishGreeter)
+          + " " + (jsObject instanceof SpanishGreeter) + " " + (jsObject instanceof User);
+    }
+
+    public static String run() {
+      Object greeter = JavaJSObject.wrap(new JavaGreeter());
+      Object loudGreeter = JavaJSObject.wrap(new JavaLoudGreeter());
+      Object other = JavaJSObject.wrap(new Object());
+      assertSame(greeter, JavaJSObject.wrap(JavaJSObject.unwrap(greeter)));
+      assertSame(greeter.getClass(), loudGreeter.getClass());
+      return casts(greeter) + " | " + casts(loudGreeter) + " | " + casts(other);
+    }
+  }
+
+  private static String runScenario(String families) throws Exception {
+    GwtClassLoader target;
+    if (families == null) {
+      target = new GwtClassLoader(JavaJSObjectFamiliesTest.class.getClassLoader());
+    } else {
+      System.setProperty(GwtClassLoader.JS_OBJECT_FAMILIES_JVM_PROPERTY, families);
+      try {
+        target = new GwtClassLoader(JavaJSObjectFamiliesTest.class.getClassLoader());
+      } finally {
+        System.clearProperty(GwtClassLoader.JS_OBJECT_FAMILIES_JVM_PROPERTY);
+      }
+    }
+    Method run = Class.forName(FamilyScenario.class.getName(), true, target).getMethod("run");
+    run.setAccessible(true);
+    return (String) run.invoke(null);
+  }
+
+  public void testWrappersImplementTheOverlayTypesOfTheirFamily() throws Exception {
+    assertEquals("true true true false | true true true false | true true true true",
+        runScenario("com/google/gwt/jvm/JavaJSObjectFamiliesTest.properties"));
+  }
+
+  public void testWrappersImplementAllOverlayTypesByDefault() throws Exception {
+    assertEquals("true true true true | true true true true | true true true true",
+        runScenario(null));
+  }
+
+  public void testFamiliesAreGeneratedOnlyForListedDelegates() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(getClass().getClassLoader());
+    try {
+      target.munger.getJavaJSObjectFamily(GwtClassMunger.javaJSObjectFamily(
+          JavaGreeter.class.getName()).replace('/', '.'));
+      fail();
+    } catch (ClassResourceNotFoundException e) {
+      // not specialized.
+    }
+  }
+}
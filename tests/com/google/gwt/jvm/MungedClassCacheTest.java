@@ -0,0 +1,82 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MungedClassCache}.
+ */
+public class MungedClassCacheTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("munged", "");
+    directory.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(directory);
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testMissThenHit() throws Exception {
+    MungedClassCache cache = new MungedClassCache(directory, "stamp");
+    byte[] original = {1, 2, 3};
+    byte[] munged = {4, 5, 6, 7};
+
+    assertNull(cache.get("a.B", original));
+    cache.put("a.B", original, munged);
+    assertTrue(Arrays.equals(munged, cache.get("a.B", original)));
+
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(4, cache.getBytesSaved());
+  }
+
+  public void testEntriesSurviveNewCacheInstance() throws Exception {
+    byte[] original = {1, 2, 3};
+    byte[] munged = {4, 5, 6, 7};
+    new MungedClassCache(directory, "stamp").put("a.B", original, munged);
+
+    MungedClassCache cache = new MungedClassCache(directory, "stamp");
+    assertTrue(Arrays.equals(munged, cache.get("a.B", original)));
+  }
+
+  public void testKeyIncludesNameBytesAndStamp() throws Exception {
+    byte[] original = {1, 2, 3};
+    new MungedClassCache(directory, "stamp").put("a.B", original, new byte[] {4});
+
+    assertNull(new MungedClassCache(directory, "other stamp").get("a.B", original));
+    assertNull(new MungedClassCache(directory, "stamp").get("a.B$", original));
+    assertNull(new MungedClassCache(directory, "stamp").get("a.B", new byte[] {1, 2, 4}));
+  }
+}
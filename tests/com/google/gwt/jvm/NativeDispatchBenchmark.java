@@ -0,0 +1,87 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares the per-call cost of native methods dispatched reflectively through
+ * GwtNativeDispatch against natives dispatched through a NativeCallSite.
+ *
+ * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
+ *     com.google.gwt.jvm.NativeDispatchBenchmark [iterations]
+ *
+ * Each mode munges the driver into a class loader of its own.
+ */
+public class NativeDispatchBenchmark {
+
+  static class Natives {
+    static native int add(int a, int b);
+
+    native double scale(double value);
+  }
+
+  public static class JavaNatives {
+    public JavaNatives(Natives natives) {
+    }
+
+    public static int add(int a, int b) {
+      return a + b;
+    }
+
+    public double scale(double value) {
+      return value * 1.5;
+    }
+  }
+
+  /** Loaded in the loader of each mode. */
+  public static class Driver {
+    public static long run(int iterations) {
+      GwtNativeDispatch.instance = new GwtNativeDispatch();
+      GwtNativeDispatch.instance.delegate(Natives.class, JavaNatives.class);
+      Natives natives = new Natives();
+      long start = System.nanoTime();
+      int sum = 0;
+      double total = 0;
+      for (int i = 0; i < iterations; i++) {
+        sum = Natives.add(sum, i);
+        total += natives.scale(i);
+      }
+      long time = System.nanoTime() - start;
+      if (sum == 42 && total == 42) {
+        System.out.println(); // keeps the loop from being optimized away.
+      }
+      return time;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    for (boolean callSites : new boolean[] {false, true}) {
+      GwtClassLoader loader = new GwtClassLoader(NativeDispatchBenchmark.class.getClassLoader());
+      loader.munger.setNativeCallSites(callSites);
+      Method run = Class.forName(Driver.class.getName(), true, loader)
+          .getMethod("run", int.class);
+      // warm up before measuring.
+      for (int i = 0; i < 5; i++) {
+        run.invoke(null, iterations);
+      }
+      long time = (Long) run.invoke(null, iterations);
+      // two natives per iteration.
+      System.out.println(String.format("%-12s %.2f ns/call",
+          callSites ? "call sites:" : "reflective:", time / 2.0 / iterations));
+    }
+  }
+}
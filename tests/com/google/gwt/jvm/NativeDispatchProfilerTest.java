@@ -0,0 +1,127 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import com.google.gwt.jvm.GwtClassLoaderTest.Counter;
+import com.google.gwt.jvm.GwtClassLoaderTest.JavaCounter;
+import com.google.gwt.jvm.GwtClassLoaderTest.JavaMethod;
+import com.google.gwt.jvm.GwtClassLoaderTest.NativeMethod;
+import com.google.gwt.jvm.NativeDispatchProfiler.Profile;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link NativeDispatchProfiler}.
+ */
+public class NativeDispatchProfilerTest extends TestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    NativeDispatchProfiler.disable();
+  }
+
+  /** Profiles natives, loaded into a loader whose natives go through the dispatcher. */
+  static class ProfileScenario {
+    private static Profile find(List<Profile> profiles, String methodName) {
+      for (Profile profile : profiles) {
+        if (profile.getMethodName().equals(methodName)) {
+          return profile;
+        }
+      }
+      return null;
+    }
+
+    private static String summary(Profile profile) {
+      assertTrue(profile.getTotalNanos() > 0);
+      assertTrue(profile.getPercentileNanos(99) > 0);
+      assertTrue(profile.getPercentileNanos(50) <= profile.getPercentileNanos(99));
+      return profile + " " + profile.getCalls() + " " + profile.getBoxedArguments() + " "
+          + profile.getMockClasses().keySet();
+    }
+
+    public static String run() {
+      GwtNativeDispatch.instance = new GwtNativeDispatch();
+      GwtNativeDispatch.instance.delegate(Counter.class, JavaCounter.class);
+      GwtNativeDispatch.instance.delegate(NativeMethod.class, JavaMethod.class);
+      NativeDispatchProfiler profiler = NativeDispatchProfiler.enable();
+      try {
+        Counter counter = new Counter();
+        for (int i = 0; i < 10; i++) {
+          counter.add(i, i);
+        }
+        for (int i = 0; i < 5; i++) {
+          Counter.scale(i, 2f);
+        }
+        new NativeMethod()._args(true, (byte) 1, 'Z', (short) 9, 2, 3l, 1.4f, 1.5d);
+
+        List<Profile> profiles = profiler.snapshot();
+        String result = summary(find(profiles, "add")) + " | " + summary(find(profiles, "scale"))
+            + " | " + summary(find(profiles, "_args"));
+        assertTrue(profiler.getTextReport().contains("_args"));
+
+        // snapshots don't change as calls go on.
+        counter.add(1, 1);
+        return result + " | " + find(profiles, "add").getCalls() + " "
+            + find(profiler.snapshot(), "add").getCalls();
+      } finally {
+        NativeDispatchProfiler.disable();
+      }
+    }
+  }
+
+  public void testRecordsCallsPerNative() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    target.munger.setNativeCallSites(false);
+    Method run = Class.forName(ProfileScenario.class.getName(), true, target).getMethod("run");
+    run.setAccessible(true);
+    String counter = Counter.class.getName().replace('.', '/');
+    // JavaMethod is not public, so its methods get invoked reflectively, boxing primitives.
+    assertEquals(counter + ".add(II)I 10 0 [" + JavaCounter.class.getName() + "] | "
+        + counter + ".scale(DF)D 5 0 [" + JavaCounter.class.getName() + "] | "
+        + NativeMethod.class.getName().replace('.', '/')
+        + "._args(ZBCSIJFD)Ljava/lang/String; 1 8 [" + JavaMethod.class.getName() + "] | 10 11",
+        run.invoke(null));
+  }
+
+  public void testRecordsCallsOfBoundNativesAndCallSites() throws Exception {
+    GwtClassLoader target = new GwtClassLoader(this.getClass().getClassLoader());
+    target.munger.setNativeCallSites(true);
+    target.munger.setStaticDelegates(
+        Collections.singletonMap(Counter.class.getName(), JavaCounter.class.getName()));
+    Method run = Class.forName(ProfileScenario.class.getName(), true, target).getMethod("run");
+    run.setAccessible(true);
+    String counter = Counter.class.getName().replace('.', '/');
+    // scale is bound to JavaCounter, the others dispatch through call sites.
+    assertEquals(counter + ".add(II)I 10 0 [" + JavaCounter.class.getName() + "] | "
+        + counter + ".scale(DF)D 5 0 [" + JavaCounter.class.getName() + "] | "
+        + NativeMethod.class.getName().replace('.', '/')
+        + "._args(ZBCSIJFD)Ljava/lang/String; 1 0 [" + JavaMethod.class.getName() + "] | 10 11",
+        run.invoke(null));
+  }
+
+  public void testRecordsNothingWhenDisabled() throws Exception {
+    GwtNativeDispatch.instance = new GwtNativeDispatch();
+    GwtNativeDispatch.instance.delegate(Counter.class, JavaCounter.class);
+    NativeDispatchProfiler profiler = NativeDispatchProfiler.enable();
+    NativeDispatchProfiler.disable();
+    assertNull(NativeDispatchProfiler.getCurrent());
+    new Counter().add(1, 2);
+    assertTrue(profiler.snapshot().isEmpty());
+  }
+}
@@ -0,0 +1,164 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm;
+
+import static com.google.gwt.jvm.OverlayTypeScanner.JAVA_SCRIPT_OBJECT;
+
+import junit.framework.TestCase;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for {@link OverlayTypeScanner}.
+ */
+public class OverlayTypeScannerTest extends TestCase {
+
+  private File jar;
+  private File directory;
+  private File cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    jar = File.createTempFile("overlays", ".jar");
+    writeJar(jar, "a/Element", JAVA_SCRIPT_OBJECT, "a/DivElement", "a/Element",
+        "a/Widget", "java/lang/Object");
+    directory = File.createTempFile("overlays", "");
+    directory.delete();
+    writeClass(directory, "b/FancyDiv", "a/DivElement");
+    writeClass(directory, "b/Panel", "a/Widget");
+    cache = File.createTempFile("overlays", "");
+    cache.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(jar);
+    delete(directory);
+    delete(cache);
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testFindsTransitiveSubclassesAcrossTheClassPath() throws Exception {
+    assertEquals(
+        new TreeSet<String>(Arrays.asList(JAVA_SCRIPT_OBJECT, "a/Element", "a/DivElement",
+            "b/FancyDiv")),
+        new OverlayTypeScanner(null, 2).scan(Arrays.asList(jar, directory)));
+  }
+
+  public void testSkipsUnreadableClassFiles() throws Exception {
+    byte[] bytes = classBytes("b/Broken", "a/DivElement");
+    byte[] unknownTag = bytes.clone();
+    unknownTag[10] = 42; // the tag of the first constant
+    write(new File(directory, "b/UnknownTag.class"), unknownTag);
+    write(new File(directory, "b/Truncated.class"), Arrays.copyOf(bytes, 16));
+    assertEquals(
+        new TreeSet<String>(Arrays.asList(JAVA_SCRIPT_OBJECT, "a/Element", "a/DivElement",
+            "b/FancyDiv")),
+        new OverlayTypeScanner(null, 2).scan(Arrays.asList(jar, directory)));
+  }
+
+  public void testSkipsClassPathEntriesWhichCanNotBeScanned() throws Exception {
+    File notAJar = File.createTempFile("overlays", ".jar");
+    write(notAJar, new byte[] {1, 2, 3});
+    try {
+      assertEquals(
+          new TreeSet<String>(Arrays.asList(JAVA_SCRIPT_OBJECT, "a/Element", "a/DivElement",
+              "b/FancyDiv")),
+          new OverlayTypeScanner(null, 2).scan(Arrays.asList(notAJar, jar, directory)));
+    } finally {
+      notAJar.delete();
+    }
+  }
+
+  public void testCachesJarsByPathLengthAndModificationTime() throws Exception {
+    OverlayTypeScanner scanner = new OverlayTypeScanner(cache);
+    scanner.scan(Arrays.asList(jar, directory));
+    assertEquals(0, scanner.getCacheHits());
+    assertEquals(1, scanner.getCacheMisses());
+
+    // directories are always scanned, only the jar comes from the cache.
+    writeClass(directory, "b/FancierDiv", "b/FancyDiv");
+    OverlayTypeScanner cached = new OverlayTypeScanner(cache);
+    assertTrue(cached.scan(Arrays.asList(jar, directory)).contains("b/FancierDiv"));
+    assertEquals(1, cached.getCacheHits());
+
+    long lastModified = jar.lastModified();
+    writeJar(jar, "a/Element", JAVA_SCRIPT_OBJECT, "a/Widget", "a/Element");
+    jar.setLastModified(lastModified + 2000);
+    OverlayTypeScanner changed = new OverlayTypeScanner(cache);
+    assertTrue(changed.scan(Collections.singletonList(jar)).contains("a/Widget"));
+    assertEquals(0, changed.getCacheHits());
+    assertEquals(1, changed.getCacheMisses());
+  }
+
+  public void testFindsTheOverlayTypesOfTheseTests() throws Exception {
+    // the test fixtures listed in AdditionalOverlayTypes.properties are on the class path.
+    assertTrue(new OverlayTypeScanner(null).scan(
+        IndexedResourceLoader.classPath(getClass().getClassLoader())).containsAll(
+        new ClasspathResourceLoader().loadSet("AdditionalOverlayTypes.properties")));
+  }
+
+  /** Writes classes given as name, superclass pairs into a jar. */
+  private static void writeJar(File jar, String... classes) throws Exception {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (int i = 0; i < classes.length; i += 2) {
+        out.putNextEntry(new ZipEntry(classes[i] + ".class"));
+        out.write(classBytes(classes[i], classes[i + 1]));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeClass(File directory, String name, String superName) throws Exception {
+    write(new File(directory, name + ".class"), classBytes(name, superName));
+  }
+
+  private static void write(File file, byte[] bytes) throws Exception {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] classBytes(String name, String superName) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, name, null, superName, null);
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
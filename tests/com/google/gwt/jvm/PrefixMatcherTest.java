@@ -0,0 +1,46 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gwt.jvm;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link PrefixMatcher}.
+ */
+public class PrefixMatcherTest extends TestCase {
+
+  public void testMatchesPrefixes() throws Exception {
+    PrefixMatcher matcher = new PrefixMatcher(Arrays.asList("java.", "javax.", "com.sun.net"));
+    assertTrue(matcher.matches("java.lang.Object"));
+    assertTrue(matcher.matches("javax.swing.JFrame"));
+    assertTrue(matcher.matches("com.sun.net.httpserver.HttpServer"));
+    assertTrue(matcher.matches("java."));
+    assertFalse(matcher.matches("java"));
+    assertFalse(matcher.matches("javafx.Stage"));
+    assertFalse(matcher.matches("com.sun.xml.Foo"));
+  }
+
+  public void testNoPrefixesMatchNothing() throws Exception {
+    assertFalse(new PrefixMatcher(Collections.<String>emptySet()).matches("java.lang.Object"));
+  }
+
+  public void testEmptyPrefixMatchesEverything() throws Exception {
+    assertTrue(new PrefixMatcher(Collections.singleton("")).matches("a.B"));
+  }
+}
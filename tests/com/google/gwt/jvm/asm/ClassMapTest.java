@@ -19,6 +19,13 @@ import com.google.gwt.jvm.asm.Type;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Tests for {@link ClassMap}.
  */
@@ -36,4 +43,64 @@ public class ClassMapTest extends TestCase {
     assertNull(map.map(Type.type(String.class)));
   }
 
+  public void testResolutionIsRememberedUntilAnImplementorIsAdded() throws Exception {
+    map.addImplementor(Number.class, Integer.class);
+    assertSame(map.map(Integer.class), map.map(Integer.class));
+    assertEquals(Type.type(Integer.class), map.map(Integer.class));
+    assertNull(map.map(String.class));
+
+    // both answers, the miss included, change with the new implementor.
+    map.addImplementor(Integer.class, Long.class);
+    map.addImplementor(Object.class, Short.class);
+    assertEquals(Type.type(Long.class), map.map(Integer.class));
+    assertEquals(Type.type(Short.class), map.map(String.class));
+    assertNull(map.map(Runnable.class));
+  }
+
+  public void testCopiesAreIndependentOnceWrittenTo() throws Exception {
+    map.addImplementor(Number.class, Integer.class);
+    ClassMap first = map.copy();
+    ClassMap second = map.copy();
+    assertEquals(Type.type(Integer.class), first.map(Integer.class));
+
+    first.addImplementor(Integer.class, Long.class);
+    second.addImplementor(Object.class, Short.class);
+    assertEquals(Type.type(Long.class), first.map(Integer.class));
+    assertNull(first.map(String.class));
+    assertEquals(Type.type(Integer.class), second.map(Integer.class));
+    assertEquals(Type.type(Short.class), second.map(String.class));
+    // the original keeps its mappings, and so do copies made after a write.
+    assertEquals(Type.type(Integer.class), map.map(Integer.class));
+    assertNull(map.map(String.class));
+    map.addImplementor(Runnable.class, Thread.class);
+    assertNull(second.map(Runnable.class));
+    assertEquals(Type.type(Thread.class), map.copy().map(Runnable.class));
+  }
+
+  public void testConcurrentLookupsSeeAddedImplementors() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> lookups = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 4; i++) {
+        lookups.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() {
+            for (int j = 0; j < 10000; j++) {
+              Type type = map.map(Integer.class);
+              if (type != null && !type.equals(Type.type(Integer.class))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      map.addImplementor(Number.class, Integer.class);
+      for (Future<Boolean> lookup : lookups) {
+        assertTrue(lookup.get());
+      }
+      assertEquals(Type.type(Integer.class), map.map(Integer.class));
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
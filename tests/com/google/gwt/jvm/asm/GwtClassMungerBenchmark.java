@@ -0,0 +1,95 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import static com.google.gwt.jvm.GwtClassLoader.OVERLAY_TYPES;
+
+import com.google.gwt.jvm.ClasspathResourceLoader;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the per-class cost of munging the OverlayType$ classes, comparing
+ * the former two pass pipeline (native dispatch and $ conversion each parse and
+ * serialize the class) against {@link GwtClassMunger#mungeBytes}.
+ *
+ * java com.google.gwt.jvm.asm.GwtClassMungerBenchmark [iterations] [class names...]
+ *
+ * Without class names all overlay types are munged into their $ classes.
+ */
+public class GwtClassMungerBenchmark {
+
+  public static void main(String[] args) {
+    ClasspathResourceLoader resourceLoader = new ClasspathResourceLoader();
+    Set<String> overlayTypes = resourceLoader.loadSet(OVERLAY_TYPES);
+    GwtClassMunger munger = new GwtClassMunger(resourceLoader, overlayTypes);
+
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    List<String> names = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      names.add(args[i]);
+    }
+    if (names.isEmpty()) {
+      for (String overlayType : overlayTypes) {
+        names.add(overlayType.replace('/', '.') + "$");
+      }
+    }
+    List<byte[]> classes = new ArrayList<byte[]>();
+    for (String name : names) {
+      classes.add(resourceLoader.loadClassBytes(GwtClassMunger.resourceName(name)));
+    }
+
+    // warm up both pipelines before measuring.
+    run(munger, names, classes, iterations, true);
+    run(munger, names, classes, iterations, false);
+    long twoPass = run(munger, names, classes, iterations, true);
+    long singlePass = run(munger, names, classes, iterations, false);
+
+    int munged = names.size() * iterations;
+    System.out.println(String.format("%d classes x %d iterations", names.size(), iterations));
+    System.out.println(String.format("two pass:    %.2f us/class", twoPass / 1000.0 / munged));
+    System.out.println(String.format("single pass: %.2f us/class", singlePass / 1000.0 / munged));
+  }
+
+  private static long run(GwtClassMunger munger, List<String> names, List<byte[]> classes,
+      int iterations, boolean twoPass) {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      for (int j = 0; j < names.size(); j++) {
+        if (twoPass) {
+          twoPass(munger, classes.get(j));
+        } else {
+          munger.mungeBytes(names.get(j), classes.get(j));
+        }
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /** The pipeline as it was before the visitors were chained. */
+  private static byte[] twoPass(GwtClassMunger munger, byte[] classBytes) {
+    ClassWriter nativeWriter = new ClassWriter(0);
+    new ClassReader(classBytes).accept(new NativeMethodDispatchVisitor(nativeWriter, munger), 0);
+    ClassWriter dollarWriter = new ClassWriter(0);
+    new ClassReader(nativeWriter.toByteArray()).accept(
+        new ClassDollarVistor(dollarWriter, munger), 0);
+    return dollarWriter.toByteArray();
+  }
+}
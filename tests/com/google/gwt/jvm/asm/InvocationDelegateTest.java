@@ -0,0 +1,277 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Tests for {@link InvocationDelegate}.
+ */
+public class InvocationDelegateTest extends TestCase {
+
+  public static class Mock {
+    public String value;
+
+    public int add(int a, int b) {
+      return a + b;
+    }
+
+    public double mix(boolean z, byte b, char c, short s, long j, float f, double d) {
+      return (z ? 1 : 0) + b + c + s + j + f + d;
+    }
+
+    public String concat(String a, String[] b) {
+      return a + b.length;
+    }
+
+    public void set(String newValue) {
+      value = newValue;
+    }
+
+    public static float half(float value) {
+      return value / 2;
+    }
+
+    public String nested(Mock other) throws Exception {
+      InvocationDelegate invocation = InvocationDelegate.acquire(other, method("add"));
+      invocation.addArg(40);
+      invocation.addArg(2);
+      return "nested " + invocation.invokeReturnI();
+    }
+
+    public void fail() {
+      throw new IllegalStateException("failed");
+    }
+  }
+
+  static class HiddenMock {
+    public int add(int a, int b) {
+      return a - b;
+    }
+  }
+
+  private static Method method(String name) {
+    return method(Mock.class, name);
+  }
+
+  private static Method method(Class<?> clazz, String name) {
+    for (Method method : clazz.getDeclaredMethods()) {
+      if (method.getName().equals(name)) {
+        method.setAccessible(true);
+        return method;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  /**
+   * Checks that the given delegate is the next one acquired, and releases it
+   * again by invoking it.
+   */
+  private static void assertReleased(InvocationDelegate invocation) throws Exception {
+    InvocationDelegate next = InvocationDelegate.acquire(new Mock(), method("add"));
+    assertSame(invocation, next);
+    next.addArg(1);
+    next.addArg(2);
+    assertEquals(3, next.invokeReturnI());
+  }
+
+  public void testInvokesGeneratedInvokers() throws Exception {
+    Mock mock = new Mock();
+    assertTrue(MethodInvoker.forMethod(method("add")).isGenerated());
+
+    InvocationDelegate invocation = InvocationDelegate.acquire(mock, method("add"));
+    invocation.addArg(1);
+    invocation.addArg(2);
+    assertEquals(3, invocation.invokeReturnI());
+
+    invocation = InvocationDelegate.acquire(mock, method("mix"));
+    invocation.addArg(true);
+    invocation.addArg((byte) 2);
+    invocation.addArg((char) 3);
+    invocation.addArg((short) 4);
+    invocation.addArg(5L);
+    invocation.addArg(6.5f);
+    invocation.addArg(7.25d);
+    assertEquals(28.75d, invocation.invokeReturnD());
+
+    invocation = InvocationDelegate.acquire(mock, method("concat"));
+    invocation.addArg("a");
+    invocation.addArg(new String[2]);
+    assertEquals("a2", invocation.invokeReturnObject());
+
+    invocation = InvocationDelegate.acquire(mock, method("set"));
+    invocation.addArg("value");
+    invocation.invokeReturnV();
+    assertEquals("value", mock.value);
+
+    invocation = InvocationDelegate.acquire(null, method("half"));
+    invocation.addArg(3f);
+    assertEquals(1.5f, invocation.invokeReturnF());
+  }
+
+  public void testInvokesInaccessibleMethodsReflectively() throws Exception {
+    Method add = method(HiddenMock.class, "add");
+    assertFalse(MethodInvoker.forMethod(add).isGenerated());
+    InvocationDelegate invocation = InvocationDelegate.acquire(new HiddenMock(), add);
+    invocation.addArg(5);
+    invocation.addArg(2);
+    assertEquals(3, invocation.invokeReturnI());
+    // primitive results can also be asked for as objects.
+    invocation = InvocationDelegate.acquire(new HiddenMock(), add);
+    invocation.addArg(5);
+    invocation.addArg(2);
+    assertEquals(3, invocation.invokeReturnObject());
+  }
+
+  public void testNestedInvocationsUseTheirOwnDelegate() throws Exception {
+    InvocationDelegate invocation = InvocationDelegate.acquire(new Mock(), method("nested"));
+    invocation.addArg(new Mock());
+    assertEquals("nested 42", invocation.invokeReturnObject());
+    assertReleased(invocation);
+  }
+
+  public void testExceptionsAreWrappedAndReleaseTheDelegate() throws Exception {
+    InvocationDelegate invocation = InvocationDelegate.acquire(new Mock(), method("fail"));
+    try {
+      invocation.invokeReturnV();
+      fail();
+    } catch (InvocationTargetException e) {
+      assertEquals("failed", e.getCause().getMessage());
+    }
+    assertReleased(invocation);
+  }
+
+  public void testArgumentsOfTheWrongTypeAreIllegal() throws Exception {
+    InvocationDelegate invocation = InvocationDelegate.acquire(new Mock(), method("concat"));
+    invocation.addArg((Object) 1);
+    invocation.addArg(new String[2]);
+    try {
+      invocation.invokeReturnObject();
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getCause() instanceof ClassCastException);
+    }
+    assertReleased(invocation);
+  }
+
+  public void testLoadersOfMocksWithInvokersCanBeCollected() throws Exception {
+    final byte[] mockBytes = readMockBytes();
+    // Defines its own Mock, and takes everything else from the parent.
+    ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+      @Override
+      protected synchronized Class<?> loadClass(String name, boolean resolve)
+          throws ClassNotFoundException {
+        if (!name.equals(Mock.class.getName())) {
+          return super.loadClass(name, resolve);
+        }
+        Class<?> clazz = findLoadedClass(name);
+        return clazz != null ? clazz : defineClass(name, mockBytes, 0, mockBytes.length);
+      }
+    };
+    Method add = loader.loadClass(Mock.class.getName()).getMethod("add", int.class, int.class);
+    assertTrue(MethodInvoker.forMethod(add).isGenerated());
+    WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(loader);
+    loader = null;
+    add = null;
+    for (int i = 0; i < 50 && reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(reference.get());
+  }
+
+  private byte[] readMockBytes() throws Exception {
+    InputStream in = getClass().getClassLoader().getResourceAsStream(
+        Mock.class.getName().replace('.', '/') + ".class");
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int read; (read = in.read(buffer)) != -1;) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testSteadyStateInvocationDoesNotAllocate() throws Exception {
+    Mock mock = new Mock();
+    Method add = method("add");
+    Method mix = method("mix");
+    invoke(mock, add, mix, 10000);
+    long start = allocatedBytes();
+    if (start < 0) {
+      return; // not supported by this jvm.
+    }
+    // a late jit compile may allocate once, so retry a few rounds.
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 5 && allocated >= 256; round++) {
+      start = allocatedBytes();
+      long before = allocatedBytes();
+      invoke(mock, add, mix, 10000);
+      long after = allocatedBytes();
+      // takes off what measuring allocates itself.
+      allocated = (after - before) - (before - start);
+    }
+    assertTrue("allocated " + allocated + " bytes", allocated < 256);
+  }
+
+  private static void invoke(Mock mock, Method add, Method mix, int iterations) throws Exception {
+    int sum = 0;
+    for (int i = 0; i < iterations; i++) {
+      InvocationDelegate invocation = InvocationDelegate.acquire(mock, add);
+      invocation.addArg(sum);
+      invocation.addArg(i);
+      sum = invocation.invokeReturnI();
+      invocation = InvocationDelegate.acquire(mock, mix);
+      invocation.addArg(true);
+      invocation.addArg((byte) 1);
+      invocation.addArg('a');
+      invocation.addArg((short) 2);
+      invocation.addArg(3L);
+      invocation.addArg(4f);
+      invocation.addArg(5d);
+      invocation.invokeReturnD();
+    }
+  }
+
+  /**
+   * @return Bytes allocated by the current thread, or -1 if the jvm can't tell.
+   */
+  public static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    for (Class<?> type : bean.getClass().getInterfaces()) {
+      if (type.getName().equals("com.sun.management.ThreadMXBean")) {
+        try {
+          return (Long) type.getMethod("getThreadAllocatedBytes", long.class).invoke(bean,
+              Thread.currentThread().getId());
+        } catch (Exception e) {
+          return -1;
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,143 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.asm;
+
+import com.google.gwt.jvm.asm.ReflectionCache.EvictionPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+
+/**
+ * Tests for {@link ReflectionCache}.
+ */
+public class ReflectionCacheTest extends TestCase {
+
+  public static class Sample {
+    public String first() {
+      return "first";
+    }
+
+    public String second() {
+      return "second";
+    }
+
+    public String third() {
+      return "third";
+    }
+  }
+
+  /** Defines Sample on its own, without any parent class loader. */
+  static class SampleLoader extends ClassLoader {
+    SampleLoader() {
+      super(null);
+    }
+
+    Class<?> defineSample() throws Exception {
+      InputStream in = ReflectionCacheTest.class.getClassLoader().getResourceAsStream(
+          Sample.class.getName().replace('.', '/') + ".class");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+        byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read > 0; read = in.read(buffer)) {
+          bytes.write(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+      return defineClass(Sample.class.getName(), bytes.toByteArray(), 0, bytes.size());
+    }
+  }
+
+  private Method method(ReflectionCache cache, Class<?> clazz, String name) {
+    return cache.getMethodFromType(Type.type(clazz), clazz.getName(), name,
+        "()Ljava/lang/String;");
+  }
+
+  public void testCountsHitsAndMisses() throws Exception {
+    ReflectionCache cache = new ReflectionCache(10, EvictionPolicy.LRU);
+    Method first = method(cache, Sample.class, "first");
+    assertSame(first, method(cache, Sample.class, "first"));
+    assertSame(String.class, cache.descriptorToClass("Ljava/lang/String;"));
+    assertSame(String.class, cache.descriptorToClass("Ljava/lang/String;"));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.size());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ReflectionCache cache = new ReflectionCache(2, EvictionPolicy.LRU);
+    Method first = method(cache, Sample.class, "first");
+    method(cache, Sample.class, "second");
+    method(cache, Sample.class, "first");
+    method(cache, Sample.class, "third");
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+    assertSame(first, method(cache, Sample.class, "first"));
+    assertEquals(3, cache.getMissCount());
+    method(cache, Sample.class, "second");
+    assertEquals(4, cache.getMissCount());
+  }
+
+  public void testEvictsWhenEveryEntryWasUsed() throws Exception {
+    ReflectionCache cache = new ReflectionCache(2, EvictionPolicy.LRU);
+    method(cache, Sample.class, "first");
+    Method second = method(cache, Sample.class, "second");
+    method(cache, Sample.class, "first");
+    method(cache, Sample.class, "second");
+    method(cache, Sample.class, "third");
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+    // the eldest entry loses its mark first and goes.
+    assertSame(second, method(cache, Sample.class, "second"));
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testEvictsFirstCached() throws Exception {
+    ReflectionCache cache = new ReflectionCache(2, EvictionPolicy.FIFO);
+    Method first = method(cache, Sample.class, "first");
+    method(cache, Sample.class, "second");
+    method(cache, Sample.class, "first");
+    method(cache, Sample.class, "third");
+    assertEquals(1, cache.getEvictionCount());
+    assertNotSame(first, method(cache, Sample.class, "first"));
+    assertEquals(4, cache.getMissCount());
+  }
+
+  public void testKeepsClassesOfTheSameNameApart() throws Exception {
+    ReflectionCache cache = new ReflectionCache(10, EvictionPolicy.LRU);
+    Class<?> other = new SampleLoader().defineSample();
+    assertEquals(Sample.class.getName(), other.getName());
+    assertSame(Sample.class, method(cache, Sample.class, "first").getDeclaringClass());
+    assertSame(other, method(cache, other, "first").getDeclaringClass());
+  }
+
+  public void testDoesNotHoldOnToClassLoaders() throws Exception {
+    ReflectionCache cache = new ReflectionCache(10, EvictionPolicy.LRU);
+    SampleLoader loader = new SampleLoader();
+    method(cache, loader.defineSample(), "first");
+    WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(loader);
+    loader = null;
+    for (int i = 0; i < 50 && reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(reference.get());
+    assertEquals(0, cache.size());
+  }
+}
@@ -22,7 +22,9 @@ import com.google.gwt.uibinder.client.UiField;
 import junit.framework.TestCase;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.List;
 
 public class TypeTest extends TestCase {
@@ -103,4 +105,68 @@ public class TypeTest extends TestCase {
     assertNotNull(method);
     assertEquals("provideSomebody", method.getName());
   }
+
+  static class Counter {
+    private int count;
+
+    Counter() {
+    }
+
+    private Counter(Integer start) {
+      count = start;
+    }
+
+    int add(int delta) {
+      return count += delta;
+    }
+
+    static String join(String separator, String... parts) {
+      return Arrays.toString(parts).replace(", ", separator);
+    }
+
+    void fail(String message) {
+      throw new IllegalStateException(message);
+    }
+  }
+
+  public void testTypesAreCanonical() throws Exception {
+    assertSame(Type.type(Counter.class), Type.type(Counter.class));
+    assertSame(Type.type(Counter.class.getName()), Type.type(Counter.class.getName()));
+    assertEquals(Type.type(Counter.class), Type.type(Counter.class.getName()));
+    assertSame(Type.type(B.class), Type.type(C.class).getSuperType());
+    assertNull(Type.type((Class<?>) null));
+  }
+
+  public void testInvokesThroughCachedMembers() throws Exception {
+    Type type = Type.type(Counter.class);
+    Counter counter = type.newInstance(5);
+    assertEquals(0, type.<Counter>newInstance().count);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Integer.valueOf(7 + 2 * i), type.invoke(counter, "add", 2));
+    }
+    assertEquals("[a-b]", type.invoke((Object) null, "join", "-", new String[] {"a", "b"}));
+    assertSame(type.field("count"), type.field("count"));
+  }
+
+  public void testExceptionsOfInvokedMethodsAreWrapped() throws Exception {
+    try {
+      Type.invokeMethod(new Counter(), "fail", "failed");
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof InvocationTargetException);
+      assertEquals("failed", e.getCause().getCause().getMessage());
+    }
+  }
+
+  public void testInstancesAndArgumentsWhichDoNotFitAreIllegal() throws Exception {
+    Type type = Type.type(Counter.class);
+    assertEquals(Integer.valueOf(2), type.invoke(new Counter(), "add", 2));
+    try {
+      type.invoke((Object) "not a counter", "add", 2);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+      assertTrue(e.getCause().getCause() instanceof ClassCastException);
+    }
+  }
 }
@@ -0,0 +1,79 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.mock;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Style.Display;
+import com.google.gwt.jvm.JavaGWTTestCase;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the mocks don't keep the DOMs of earlier tests alive across
+ * resets of the browser emulator.
+ */
+public class DomRetentionTest extends JavaGWTTestCase {
+
+  private static final int RESETS = 3;
+  private static final int ELEMENTS = 50;
+
+  public void testResetsDoNotRetainEarlierPages() throws Exception {
+    ReferenceQueue<HtmlPage> collected = new ReferenceQueue<HtmlPage>();
+    List<WeakReference<HtmlPage>> pages = new ArrayList<WeakReference<HtmlPage>>();
+    for (int i = 0; i < RESETS; i++) {
+      build(ELEMENTS);
+      pages.add(new WeakReference<HtmlPage>(JavaDocument.getJavaDocument().getHtmlPage(),
+          collected));
+      getBrowserEmulator().reset();
+    }
+    build(ELEMENTS);
+    int reachable = pages.size();
+    for (int i = 0; i < 50 && reachable > 0; i++) {
+      System.gc();
+      for (Reference<?> page = collected.remove(100); page != null; page = collected.poll()) {
+        reachable--;
+      }
+    }
+    assertEquals("earlier pages still reachable", 0, reachable);
+  }
+
+  public void testNodesKeepTheirStateWhileTheirPageLives() throws Exception {
+    Element body = Document.get().getBody();
+    body.appendChild(Document.get().createDivElement());
+    body.getFirstChildElement().getStyle().setDisplay(Display.NONE);
+    System.gc();
+    Element div = body.getFirstChildElement();
+    assertSame(div, body.getFirstChildElement());
+    assertEquals("display:none; ", div.getAttribute("style"));
+  }
+
+  private static void build(int elements) {
+    Document document = Document.get();
+    Element parent = document.createDivElement();
+    document.getBody().appendChild(parent);
+    for (int i = 0; i < elements; i++) {
+      Element child = document.createDivElement();
+      child.getStyle().setDisplay(Display.NONE);
+      parent.appendChild(child);
+    }
+  }
+}
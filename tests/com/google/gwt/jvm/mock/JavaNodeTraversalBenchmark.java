@@ -0,0 +1,83 @@
+/* Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gwt.jvm.mock;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Node;
+import com.google.gwt.jvm.GwtBrowserEmulator;
+import com.google.gwt.jvm.asm.InvocationDelegateTest;
+
+/**
+ * Measures the per-node cost of walking a DOM through the mocks, i.e. of going
+ * from a DomNode to its JavaNode and on to the GWT Node.
+ *
+ * java -Djava.system.class.loader=com.google.gwt.jvm.GwtClassLoader
+ *     com.google.gwt.jvm.mock.JavaNodeTraversalBenchmark [iterations]
+ */
+public class JavaNodeTraversalBenchmark {
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    GwtBrowserEmulator browser = new GwtBrowserEmulator();
+    browser.reset();
+    Element root = Document.get().createDivElement();
+    Document.get().getBody().appendChild(root);
+    build(root, 10, 3);
+
+    // warm up before measuring.
+    int nodes = 0;
+    for (int i = 0; i < iterations; i++) {
+      nodes = walk(root);
+    }
+    long allocated = InvocationDelegateTest.allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      walk(root);
+    }
+    long time = System.nanoTime() - start;
+    allocated = InvocationDelegateTest.allocatedBytes() - allocated;
+
+    int visited = nodes * iterations;
+    System.out.println(String.format("%d nodes x %d iterations", nodes, iterations));
+    System.out.println(String.format("%.2f ns/node", (double) time / visited));
+    if (allocated >= 0) {
+      System.out.println(String.format("%.2f bytes/node", (double) allocated / visited));
+    }
+  }
+
+  private static void build(Element parent, int children, int depth) {
+    if (depth == 0) {
+      return;
+    }
+    for (int i = 0; i < children; i++) {
+      Element child = Document.get().createDivElement();
+      parent.appendChild(child);
+      build(child, children, depth - 1);
+    }
+  }
+
+  /** Visits every node below the parent, going back up from each. */
+  private static int walk(Node parent) {
+    int count = 0;
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getParentNode() != parent) {
+        throw new IllegalStateException("Lost the identity of " + parent);
+      }
+      count += 1 + walk(child);
+    }
+    return count;
+  }
+}